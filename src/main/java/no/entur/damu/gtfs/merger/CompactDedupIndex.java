@@ -0,0 +1,198 @@
+package no.entur.damu.gtfs.merger;
+
+import java.util.Arrays;
+
+/**
+ * Dedup index backed by an open-addressing hash table of primitive arrays and a byte arena holding the keys.
+ * Each slot takes 9 bytes: the arena offset of the key, a 32-bit hash and a bitmask of the targets that contain the
+ * key. Keys are stored once for all targets, with one byte per character when all characters fit in Latin-1 and two
+ * bytes per character otherwise. A hash match is always verified against the stored key, so that hash collisions
+ * never cause a record to be dropped.
+ * A key is typically stored in about 30 bytes, compared to about 100 bytes per target for a HashSet of strings.
+ */
+final class CompactDedupIndex implements DedupIndex {
+
+  static final int MAX_TARGETS = Byte.SIZE;
+
+  private static final float MAX_LOAD_FACTOR = 0.7f;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Arena offset of the key + 1, 0 for an empty slot.
+   */
+  private int[] offsets;
+  private int[] hashes;
+  private byte[] targetMasks;
+  private int size;
+  private int resizeThreshold;
+
+  private byte[] arena;
+  private int arenaLength;
+
+  CompactDedupIndex(int targetCount, int expectedSize) {
+    if (targetCount > MAX_TARGETS) {
+      throw new IllegalArgumentException(
+        "A compact dedup index supports at most " +
+        MAX_TARGETS +
+        " targets, got " +
+        targetCount
+      );
+    }
+    allocateTable(
+      Integer.highestOneBit(
+        Math.max(16, (int) (expectedSize / MAX_LOAD_FACTOR)) * 2 - 1
+      )
+    );
+    arena = new byte[Math.max(1024, expectedSize * 16)];
+  }
+
+  @Override
+  public boolean add(int targetIndex, char[] chars, int start, int end) {
+    byte targetBit = (byte) (1 << targetIndex);
+    int hash = hash(chars, start, end);
+    int mask = offsets.length - 1;
+    int slot = hash & mask;
+    while (offsets[slot] != 0) {
+      if (
+        hashes[slot] == hash &&
+        keyEquals(offsets[slot] - 1, chars, start, end)
+      ) {
+        if ((targetMasks[slot] & targetBit) != 0) {
+          return false;
+        }
+        targetMasks[slot] |= targetBit;
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    offsets[slot] = storeKey(chars, start, end) + 1;
+    hashes[slot] = hash;
+    targetMasks[slot] = targetBit;
+    size++;
+    if (size > resizeThreshold) {
+      resize();
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of distinct keys, all targets included.
+   */
+  int size() {
+    return size;
+  }
+
+  private void allocateTable(int capacity) {
+    offsets = new int[capacity];
+    hashes = new int[capacity];
+    targetMasks = new byte[capacity];
+    resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+  }
+
+  private void resize() {
+    int[] oldOffsets = offsets;
+    int[] oldHashes = hashes;
+    byte[] oldTargetMasks = targetMasks;
+    allocateTable(oldOffsets.length * 2);
+    int mask = offsets.length - 1;
+    for (int i = 0; i < oldOffsets.length; i++) {
+      if (oldOffsets[i] != 0) {
+        int slot = oldHashes[i] & mask;
+        while (offsets[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        offsets[slot] = oldOffsets[i];
+        hashes[slot] = oldHashes[i];
+        targetMasks[slot] = oldTargetMasks[i];
+      }
+    }
+  }
+
+  /**
+   * Store a key in the arena as a header followed by the characters.
+   * The header is the key length shifted left by one, with the lowest bit set when characters are stored on two
+   * bytes, encoded as a variable-length integer.
+   *
+   * @return the arena offset of the key.
+   */
+  private int storeKey(char[] chars, int start, int end) {
+    int length = end - start;
+    boolean wide = false;
+    for (int i = start; i < end && !wide; i++) {
+      wide = chars[i] > 0xFF;
+    }
+    int offset = arenaLength;
+    ensureArenaCapacity(5 + (wide ? 2 * length : length));
+    int header = (length << 1) | (wide ? 1 : 0);
+    while ((header & ~0x7F) != 0) {
+      arena[arenaLength++] = (byte) ((header & 0x7F) | 0x80);
+      header >>>= 7;
+    }
+    arena[arenaLength++] = (byte) header;
+    for (int i = start; i < end; i++) {
+      if (wide) {
+        arena[arenaLength++] = (byte) (chars[i] >>> 8);
+      }
+      arena[arenaLength++] = (byte) chars[i];
+    }
+    return offset;
+  }
+
+  private boolean keyEquals(int offset, char[] chars, int start, int end) {
+    int header = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = arena[offset++];
+      header |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    if ((header >>> 1) != end - start) {
+      return false;
+    }
+    boolean wide = (header & 1) != 0;
+    for (int i = start; i < end; i++) {
+      char c;
+      if (wide) {
+        c = (char) (((arena[offset] & 0xFF) << 8) | (arena[offset + 1] & 0xFF));
+        offset += 2;
+      } else {
+        c = (char) (arena[offset++] & 0xFF);
+      }
+      if (c != chars[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void ensureArenaCapacity(int additionalLength) {
+    if (arenaLength + additionalLength > arena.length) {
+      long newLength = Math.max(
+        (long) arena.length * 2,
+        (long) arenaLength + additionalLength
+      );
+      if (newLength > Integer.MAX_VALUE - 8) {
+        throw new IllegalStateException("Dedup index arena is full");
+      }
+      arena = Arrays.copyOf(arena, (int) newLength);
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a hash of the characters, finalized with the MurmurHash3 mixer and folded into 32 bits.
+   */
+  private static int hash(char[] chars, int start, int end) {
+    long h = FNV_OFFSET_BASIS;
+    for (int i = start; i < end; i++) {
+      h = (h ^ chars[i]) * FNV_PRIME;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) (h ^ (h >>> 32));
+  }
+}
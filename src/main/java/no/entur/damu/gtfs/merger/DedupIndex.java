@@ -0,0 +1,48 @@
+package no.entur.damu.gtfs.merger;
+
+/**
+ * Set of keys used for removing duplicated GTFS records, shared by all the targets of a merge.
+ * Each key is tracked separately for each target, so that a record skipped for one target because its GTFS archive
+ * is excluded is still merged into the other targets.
+ * Implementations are not thread-safe: an index must be accessed only by the worker merging the corresponding entry.
+ */
+interface DedupIndex {
+  /**
+   * Add a key for a target.
+   *
+   * @param targetIndex the index of the merge target.
+   * @param chars       the buffer containing the key.
+   * @param start       the start of the key in the buffer, inclusive.
+   * @param end         the end of the key in the buffer, exclusive.
+   * @return true if the key was not already present for this target.
+   */
+  boolean add(int targetIndex, char[] chars, int start, int end);
+
+  /**
+   * Add a key for a target.
+   *
+   * @return true if the key was not already present for this target.
+   */
+  default boolean add(int targetIndex, String key) {
+    char[] chars = key.toCharArray();
+    return add(targetIndex, chars, 0, chars.length);
+  }
+
+  /**
+   * Create an index.
+   *
+   * @param type         the type of index.
+   * @param targetCount  the number of merge targets sharing the index.
+   * @param expectedSize the expected number of distinct keys.
+   */
+  static DedupIndex create(
+    GtfsMergeOptions.DedupIndexType type,
+    int targetCount,
+    int expectedSize
+  ) {
+    return switch (type) {
+      case HASH_SET -> new HashSetDedupIndex(targetCount, expectedSize);
+      case COMPACT -> new CompactDedupIndex(targetCount, expectedSize);
+    };
+  }
+}
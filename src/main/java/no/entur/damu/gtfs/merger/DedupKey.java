@@ -0,0 +1,54 @@
+package no.entur.damu.gtfs.merger;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer building a {@link DedupIndex} key out of several fields.
+ * Each field is prefixed by its length, so that two keys are equal if and only if their fields are equal.
+ */
+final class DedupKey {
+
+  private char[] chars = new char[256];
+  private int length;
+
+  void clear() {
+    length = 0;
+  }
+
+  void addField(char[] source, int start, int end) {
+    int fieldLength = end - start;
+    ensureCapacity(2 + fieldLength);
+    chars[length++] = (char) (fieldLength >>> 16);
+    chars[length++] = (char) fieldLength;
+    System.arraycopy(source, start, chars, length, fieldLength);
+    length += fieldLength;
+  }
+
+  void addField(String value) {
+    int fieldLength = value.length();
+    ensureCapacity(2 + fieldLength);
+    chars[length++] = (char) (fieldLength >>> 16);
+    chars[length++] = (char) fieldLength;
+    value.getChars(0, fieldLength, chars, length);
+    length += fieldLength;
+  }
+
+  /**
+   * Add the key to an index.
+   *
+   * @return true if the key was not already present for this target.
+   */
+  boolean addTo(DedupIndex dedupIndex, int targetIndex) {
+    return dedupIndex.add(targetIndex, chars, 0, length);
+  }
+
+  private void ensureCapacity(int additionalLength) {
+    if (length + additionalLength > chars.length) {
+      chars =
+        Arrays.copyOf(
+          chars,
+          Math.max(chars.length * 2, length + additionalLength)
+        );
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.File;
+
+/**
+ * Fetch a GTFS archive to the local file system, for a merge that downloads and merges GTFS archives in a pipeline.
+ * Must be thread-safe: several archives are fetched concurrently.
+ */
+@FunctionalInterface
+public interface GtfsArchiveFetcher {
+  /**
+   * Fetch a GTFS archive. The local file is deleted by the merge once merged.
+   *
+   * @param gtfsFileName the name of the GTFS archive.
+   * @return the local file, named after the GTFS archive, or null if the GTFS archive does not exist or is empty.
+   */
+  File fetch(String gtfsFileName) throws Exception;
+}
@@ -0,0 +1,18 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.InputStream;
+
+/**
+ * Open a GTFS archive for sequential reading, for a merge that reads GTFS archives directly from their source without
+ * local copy.
+ */
+@FunctionalInterface
+public interface GtfsArchiveSource {
+  /**
+   * Open a GTFS archive. The stream is closed by the merge once merged.
+   *
+   * @param gtfsFileName the name of the GTFS archive.
+   * @return the content of the GTFS archive, or null if the GTFS archive does not exist.
+   */
+  InputStream open(String gtfsFileName) throws Exception;
+}
@@ -0,0 +1,100 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Read GTFS CSV rows into a reusable {@link GtfsCsvRow}.
+ * Parsing follows the rules of the commons-csv default format as configured for the GTFS merge: comma delimiter,
+ * double quote encapsulation with doubled quotes as escape, CR, LF or CRLF line breaks, empty lines ignored and
+ * values trimmed.
+ */
+final class GtfsCsvReader {
+
+  private static final int END_OF_FILE = -1;
+  private static final int BUFFER_SIZE = 65536;
+
+  private final Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position;
+  private int limit;
+
+  GtfsCsvReader(Reader reader) {
+    this.reader = reader;
+  }
+
+  /**
+   * Read the next row.
+   *
+   * @param row the row to fill. Its previous content is removed.
+   * @return false if the end of the stream is reached and no row was read.
+   */
+  boolean readRow(GtfsCsvRow row) throws IOException {
+    row.clear();
+    int c = read();
+    while (c == '\r' || c == '\n') {
+      c = read();
+    }
+    if (c == END_OF_FILE) {
+      return false;
+    }
+    while (true) {
+      if (c == '"') {
+        c = readEncapsulatedField(row);
+      } else {
+        while (c != ',' && c != '\r' && c != '\n' && c != END_OF_FILE) {
+          row.append((char) c);
+          c = read();
+        }
+      }
+      row.endTrimmedField();
+      if (c != ',') {
+        return true;
+      }
+      c = read();
+    }
+  }
+
+  /**
+   * Read a field enclosed in double quotes, starting after the opening quote.
+   *
+   * @return the character following the field.
+   */
+  private int readEncapsulatedField(GtfsCsvRow row) throws IOException {
+    while (true) {
+      int c = read();
+      if (c == END_OF_FILE) {
+        throw new IOException(
+          "EOF reached before encapsulated token finished"
+        );
+      }
+      if (c == '"') {
+        c = read();
+        if (c != '"') {
+          while (c != ',' && c != '\r' && c != '\n' && c != END_OF_FILE) {
+            if (!Character.isWhitespace(c)) {
+              throw new IOException(
+                "Invalid char between encapsulated token and delimiter"
+              );
+            }
+            c = read();
+          }
+          return c;
+        }
+      }
+      row.append((char) c);
+    }
+  }
+
+  private int read() throws IOException {
+    if (position == limit) {
+      limit = reader.read(buffer, 0, BUFFER_SIZE);
+      position = 0;
+      if (limit <= 0) {
+        limit = 0;
+        return END_OF_FILE;
+      }
+    }
+    return buffer[position++];
+  }
+}
@@ -0,0 +1,155 @@
+package no.entur.damu.gtfs.merger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A mutable CSV row whose fields are character ranges in a shared buffer.
+ * The buffers grow to fit the largest row and are reused for every subsequent row, so that reading, converting and
+ * writing a row does not allocate.
+ */
+final class GtfsCsvRow {
+
+  private char[] chars = new char[1024];
+  private int length;
+  private int[] fieldStarts = new int[32];
+  private int[] fieldEnds = new int[32];
+  private int size;
+  private int currentFieldStart;
+
+  /**
+   * Remove all fields.
+   */
+  void clear() {
+    length = 0;
+    size = 0;
+    currentFieldStart = 0;
+  }
+
+  /**
+   * @return the number of fields.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Append a character to the field being built.
+   */
+  void append(char c) {
+    if (length == chars.length) {
+      chars = Arrays.copyOf(chars, chars.length * 2);
+    }
+    chars[length++] = c;
+  }
+
+  /**
+   * Complete the field being built. Leading and trailing characters lower than or equal to space are removed, as
+   * done by {@link String#trim()}.
+   */
+  void endTrimmedField() {
+    int start = currentFieldStart;
+    int end = length;
+    while (start < end && chars[start] <= ' ') {
+      start++;
+    }
+    while (end > start && chars[end - 1] <= ' ') {
+      end--;
+    }
+    addRange(start, end);
+  }
+
+  /**
+   * Add a copy of a field of another row.
+   */
+  void addField(GtfsCsvRow row, int index) {
+    int start = row.fieldStarts[index];
+    int end = row.fieldEnds[index];
+    for (int i = start; i < end; i++) {
+      append(row.chars[i]);
+    }
+    addRange(currentFieldStart, length);
+  }
+
+  void addField(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      append(value.charAt(i));
+    }
+    addRange(currentFieldStart, length);
+  }
+
+  void addEmptyField() {
+    addRange(length, length);
+  }
+
+  private void addRange(int start, int end) {
+    if (size == fieldStarts.length) {
+      fieldStarts = Arrays.copyOf(fieldStarts, size * 2);
+      fieldEnds = Arrays.copyOf(fieldEnds, size * 2);
+    }
+    fieldStarts[size] = start;
+    fieldEnds[size] = end;
+    size++;
+    currentFieldStart = length;
+  }
+
+  boolean isEmpty(int index) {
+    return fieldStarts[index] == fieldEnds[index];
+  }
+
+  /**
+   * Return true if the field is equal to the given value.
+   */
+  boolean fieldEquals(int index, String value) {
+    int start = fieldStarts[index];
+    if (fieldEnds[index] - start != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      if (chars[start + i] != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  char[] chars() {
+    return chars;
+  }
+
+  int fieldStart(int index) {
+    return fieldStarts[index];
+  }
+
+  int fieldEnd(int index) {
+    return fieldEnds[index];
+  }
+
+  /**
+   * Return the field as a string. This allocates and should be limited to values that are retained.
+   */
+  String getString(int index) {
+    return new String(
+      chars,
+      fieldStarts[index],
+      fieldEnds[index] - fieldStarts[index]
+    );
+  }
+
+  /**
+   * Return all fields as strings. This allocates and should be limited to rows that are retained.
+   */
+  List<String> getStrings() {
+    List<String> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(getString(i));
+    }
+    return values;
+  }
+
+  @Override
+  public String toString() {
+    return getStrings().toString();
+  }
+}
@@ -0,0 +1,85 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Write {@link GtfsCsvRow}s as GTFS CSV.
+ * The output is identical to the output of a commons-csv CSVPrinter using the default format: values are quoted
+ * only when needed (minimal quote mode), quotes are doubled and rows are separated by CRLF.
+ */
+final class GtfsCsvWriter implements Closeable {
+
+  private static final String RECORD_SEPARATOR = "\r\n";
+
+  private final Writer writer;
+
+  GtfsCsvWriter(Writer writer) {
+    this.writer = writer;
+  }
+
+  void writeRow(GtfsCsvRow row) throws IOException {
+    char[] chars = row.chars();
+    for (int i = 0; i < row.size(); i++) {
+      if (i > 0) {
+        writer.write(',');
+      }
+      writeField(chars, row.fieldStart(i), row.fieldEnd(i), i == 0);
+    }
+    writer.write(RECORD_SEPARATOR);
+  }
+
+  private void writeField(char[] chars, int start, int end, boolean newRecord)
+    throws IOException {
+    if (!needsQuotes(chars, start, end, newRecord)) {
+      writer.write(chars, start, end - start);
+      return;
+    }
+    writer.write('"');
+    int segmentStart = start;
+    for (int i = start; i < end; i++) {
+      if (chars[i] == '"') {
+        writer.write(chars, segmentStart, i + 1 - segmentStart);
+        segmentStart = i;
+      }
+    }
+    writer.write(chars, segmentStart, end - segmentStart);
+    writer.write('"');
+  }
+
+  /**
+   * Apply the commons-csv minimal quote mode rules: an empty first value is quoted so that the row is not an empty
+   * line, and a value is quoted if it starts with a character lower than or equal to '#', contains a delimiter, a
+   * quote or a line break, or ends with a character lower than or equal to space.
+   */
+  private static boolean needsQuotes(
+    char[] chars,
+    int start,
+    int end,
+    boolean newRecord
+  ) {
+    if (start == end) {
+      return newRecord;
+    }
+    if (chars[start] <= '#' || chars[end - 1] <= ' ') {
+      return true;
+    }
+    for (int i = start; i < end; i++) {
+      char c = chars[i];
+      if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void flush() throws IOException {
+    writer.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
@@ -1,20 +1,24 @@
 package no.entur.damu.gtfs.merger;
 
-import static no.entur.damu.gtfs.merger.GtfsExport.GTFS_EXTENDED;
-
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVPrinter;
 import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zeroturnaround.zip.ZipUtil;
@@ -23,33 +27,47 @@ import org.zeroturnaround.zip.ZipUtil;
  * Merge a collection of GTFS archives into a single zip.
  * Duplicates in stops.txt and transfers.txt are removed.
  * All other GTFS entries are assumed to not overlap.
- * Stops duplicates are identified by stop/quay id.
- * Transfers duplicates are identified by string-equality on the whole CSV line.
+ * Stops duplicates are identified by stop/quay id, using a {@link DedupIndex} shared by all merge targets.
+ * Transfers duplicates are identified by string-equality on all the converted values of the CSV line, using a
+ * {@link DedupIndex} shared by all merge targets.
+ * GTFS archives can be merged one at a time with {@link #appendGtfs(File)}, or all at once with one worker per GTFS
+ * entry with {@link #appendGtfsFiles(List, ExecutorService)}.
+ * A merger created with {@link #toZipOutputStreams(Map, GtfsMergeOptions)} writes the merged entries directly into
+ * zip output streams with {@link #writeGtfsFiles(List, ExecutorService)}, without working directory.
+ * Each GTFS entry is parsed once and its records are written to every {@link GtfsMergeTarget} that accepts it.
+ * Entries that are not subject to duplicate removal and whose headers and values need no conversion are copied
+ * line by line, without CSV parsing. Their line terminators are normalised and their unquoted values trimmed, but
+ * their quoted values are not re-quoted.
+ * Other entries are parsed either with commons-csv, or in row buffer mode with a reusable {@link GtfsCsvRow} that
+ * avoids per-row allocations. Both produce the same output.
  */
 public class GtfsFileMerger {
 
+  /**
+   * The merged GTFS entries, largest first so that they are started first when entries are merged in parallel.
+   */
   private static final String[] GTFS_FILE_NAMES = new String[] {
-    GtfsConstants.AGENCY_TXT,
-    GtfsConstants.CALENDAR_TXT,
-    GtfsConstants.CALENDAR_DATES_TXT,
-    GtfsConstants.ROUTES_TXT,
-    GtfsConstants.SHAPES_TXT,
-    GtfsConstants.STOPS_TXT,
     GtfsConstants.STOP_TIMES_TXT,
+    GtfsConstants.SHAPES_TXT,
     GtfsConstants.TRIPS_TXT,
+    GtfsConstants.STOPS_TXT,
+    GtfsConstants.CALENDAR_DATES_TXT,
+    GtfsConstants.CALENDAR_TXT,
+    GtfsConstants.ROUTES_TXT,
     GtfsConstants.TRANSFERS_TXT,
+    GtfsConstants.AGENCY_TXT,
   };
 
+  private static final int COPY_BUFFER_SIZE = 65536;
+  private static final int MAX_HEADER_LINE_LENGTH = 8192;
+  private static final byte[] CRLF = { '\r', '\n' };
+
   private static final Logger LOGGER = LoggerFactory.getLogger(
     GtfsFileMerger.class
   );
 
-  private final Path workingDirectory;
-  private final GtfsExport gtfsExport;
-  private final boolean includeShapes;
-
-  private final Set<String> stopIds = HashSet.newHashSet(150000);
-  private final Set<List<String>> transfers = HashSet.newHashSet(15000);
+  private final List<MergeOutput> mergeOutputs;
+  private final boolean rowBuffer;
 
   /**
    * @param workingDirectory temporary directory in which the GTFS files are merged.
@@ -60,9 +78,87 @@ public class GtfsFileMerger {
     GtfsExport gtfsExport,
     boolean includeShapes
   ) {
-    this.workingDirectory = workingDirectory;
-    this.gtfsExport = gtfsExport;
-    this.includeShapes = includeShapes;
+    this(
+      Map.of(new GtfsMergeTarget(gtfsExport, includeShapes), workingDirectory)
+    );
+  }
+
+  /**
+   * @param workingDirectories the merge targets and the temporary directory in which their GTFS files are merged.
+   */
+  public GtfsFileMerger(Map<GtfsMergeTarget, Path> workingDirectories) {
+    this(workingDirectories, GtfsMergeOptions.DEFAULT);
+  }
+
+  /**
+   * @param workingDirectories the merge targets and the temporary directory in which their GTFS files are merged.
+   * @param mergeOptions       the merge tuning options.
+   */
+  public GtfsFileMerger(
+    Map<GtfsMergeTarget, Path> workingDirectories,
+    GtfsMergeOptions mergeOptions
+  ) {
+    this(mergeOptions, toEntryStores(workingDirectories));
+  }
+
+  private GtfsFileMerger(
+    GtfsMergeOptions mergeOptions,
+    Map<GtfsMergeTarget, MergedEntryStore> entryStores
+  ) {
+    this.rowBuffer = mergeOptions.rowBuffer();
+    DedupIndex stopIds = DedupIndex.create(
+      mergeOptions.dedupIndex(),
+      entryStores.size(),
+      150000
+    );
+    DedupIndex transfers = DedupIndex.create(
+      mergeOptions.dedupIndex(),
+      entryStores.size(),
+      15000
+    );
+    List<MergeOutput> outputs = new ArrayList<>();
+    entryStores.forEach((target, entryStore) ->
+      outputs.add(
+        new MergeOutput(
+          target,
+          outputs.size(),
+          entryStore,
+          stopIds,
+          transfers
+        )
+      )
+    );
+    this.mergeOutputs = List.copyOf(outputs);
+  }
+
+  /**
+   * Create a merger writing the merged GTFS entries directly into zip output streams.
+   * Once {@link #writeGtfsFiles(List, ExecutorService)} returns, every merged entry has been written and closed in
+   * the zip output streams, including the entries spilled to temporary files. The caller may then add its own
+   * entries, and must finish and close the zip output streams.
+   *
+   * @param zipOutputStreams the merge targets and the zip output stream receiving their merged GTFS entries.
+   * @param mergeOptions     the merge tuning options.
+   */
+  public static GtfsFileMerger toZipOutputStreams(
+    Map<GtfsMergeTarget, ParallelZipOutputStream> zipOutputStreams,
+    GtfsMergeOptions mergeOptions
+  ) {
+    Map<GtfsMergeTarget, MergedEntryStore> entryStores = new LinkedHashMap<>();
+    zipOutputStreams.forEach((target, zipOutputStream) ->
+      entryStores.put(target, new ZipEntryStore(zipOutputStream))
+    );
+    return new GtfsFileMerger(mergeOptions, entryStores);
+  }
+
+  private static Map<GtfsMergeTarget, MergedEntryStore> toEntryStores(
+    Map<GtfsMergeTarget, Path> workingDirectories
+  ) {
+    Map<GtfsMergeTarget, MergedEntryStore> entryStores = new LinkedHashMap<>();
+    workingDirectories.forEach((target, workingDirectory) ->
+      entryStores.put(target, new WorkingDirectoryEntryStore(workingDirectory))
+    );
+    return entryStores;
   }
 
   /**
@@ -76,236 +172,420 @@ public class GtfsFileMerger {
     ZipUtil.iterate(
       gtfsFile,
       GTFS_FILE_NAMES,
-      (entryStream, zipEntry) -> {
-        String entryName = zipEntry.getName();
-        Path destinationFile = workingDirectory.resolve(entryName);
-        boolean ignoreHeader = Files.exists(destinationFile);
-
-        if (GtfsConstants.STOPS_TXT.equals(entryName)) {
-          appendStopEntry(entryStream, destinationFile, ignoreHeader);
-        } else if (GtfsConstants.TRANSFERS_TXT.equals(entryName)) {
-          appendTransferEntry(entryStream, destinationFile, ignoreHeader);
-        } else if (
-          GtfsConstants.SHAPES_TXT.equals(entryName) && !includeShapes
-        ) {
-          LOGGER.trace(
-            "Ignoring shapes data in GTFS file {}",
-            gtfsFile.getName()
-          );
-        } else {
-          appendEntry(entryName, entryStream, destinationFile, ignoreHeader);
-        }
-      }
+      (entryStream, zipEntry) ->
+        mergeEntry(gtfsFile.getName(), zipEntry.getName(), entryStream)
     );
   }
 
   /**
-   * Append stop entries and remove duplicates.
+   * Merge a GTFS archive read sequentially from a stream into the working directory, without local copy of the
+   * archive. The entries are read in archive order, the entries that no merge target accepts are skipped without
+   * being parsed.
    *
-   * @param entryStream     the GTFS file entry inside the GTFS archive.
-   * @param destinationFile the temporary file where GTFS lines are merged.
-   * @param ignoreHeader    ignore headers. Headers are created only when the destination file is first created.
+   * @param gtfsFileName the name of the GTFS archive.
+   * @param gtfsStream   the content of the GTFS archive. Not closed by the merger.
    */
-  private void appendStopEntry(
-    InputStream entryStream,
-    Path destinationFile,
-    boolean ignoreHeader
-  ) {
-    try (
-      BufferedReader reader = new BufferedReader(
-        new InputStreamReader(entryStream, StandardCharsets.UTF_8)
-      );
-      BufferedWriter writer = Files.newBufferedWriter(
-        destinationFile,
-        StandardCharsets.UTF_8,
-        StandardOpenOption.CREATE,
-        StandardOpenOption.APPEND
-      )
-    ) {
-      String[] targetHeaders = getTargetHeaders(GtfsConstants.STOPS_TXT);
+  public void appendGtfs(String gtfsFileName, InputStream gtfsStream) {
+    LOGGER.debug("Merging stream {}", gtfsFileName);
 
-      CSVPrinter csvPrinter = ignoreHeader
-        ? new CSVPrinter(writer, CSVFormat.DEFAULT)
-        : new CSVPrinter(writer, getCsvFormatWithHeaders(targetHeaders));
+    // the entry stream is the zip stream itself, it is shielded so that parsing an entry does not close the archive
+    ZipUtil.iterate(
+      CloseShieldInputStream.wrap(gtfsStream),
+      GTFS_FILE_NAMES,
+      (entryStream, zipEntry) ->
+        mergeEntry(
+          gtfsFileName,
+          zipEntry.getName(),
+          CloseShieldInputStream.wrap(entryStream)
+        )
+    );
+  }
 
-      for (CSVRecord csvRecord : getCsvParserWithFirstRecordHasHeaders(
-        reader
-      )) {
-        String stopId = csvRecord.get("stop_id");
-        if (!stopIds.contains(stopId)) {
-          stopIds.add(stopId);
-          List<String> targetValues = Stream
-            .of(targetHeaders)
-            .map(header -> convertValue(csvRecord, header))
-            .toList();
-          csvPrinter.printRecord(targetValues);
-        } else {
-          LOGGER.trace("Ignored duplicated stop: {}", stopId);
+  /**
+   * Merge a list of GTFS files into the working directory, with one worker per GTFS entry.
+   * Each worker reads its entry from every GTFS archive in list order and writes to its own destination file,
+   * so that the merged entries are identical to the ones produced by calling {@link #appendGtfs(File)} on each file.
+   * Duplicate detection state is only accessed by the worker in charge of the corresponding entry.
+   *
+   * @param gtfsFiles       the GTFS archives to merge, sorted in merge order.
+   * @param executorService the executor running the per-entry workers.
+   */
+  public void appendGtfsFiles(
+    List<File> gtfsFiles,
+    ExecutorService executorService
+  ) {
+    mergeEntries(
+      executorService,
+      entryName -> appendGtfsEntry(gtfsFiles, entryName)
+    );
+  }
+
+  /**
+   * Merge a list of GTFS files entry by entry directly into the zip output streams of a merger created with
+   * {@link #toZipOutputStreams(Map, GtfsMergeOptions)}.
+   * Without executor, entries are merged one after the other, each of them straight into the zip output streams.
+   * With an executor, entries are merged by one worker per GTFS entry. Only one worker at a time writes directly to
+   * the zip output streams, the other workers spill their entry to a temporary file that is copied into the zip
+   * output streams once all entries are merged.
+   *
+   * @param gtfsFiles       the GTFS archives to merge, sorted in merge order.
+   * @param executorService the executor running the per-entry workers, or null to merge the entries sequentially.
+   * @throws IllegalStateException if the merger writes into working directories.
+   */
+  public void writeGtfsFiles(
+    List<File> gtfsFiles,
+    ExecutorService executorService
+  ) {
+    List<ZipEntryStore> zipEntryStores = mergeOutputs
+      .stream()
+      .map(MergeOutput::zipEntryStore)
+      .toList();
+    try {
+      if (executorService == null) {
+        for (String entryName : GTFS_FILE_NAMES) {
+          writeGtfsEntry(gtfsFiles, entryName, true);
         }
+      } else {
+        AtomicBoolean zipOutputStreamsAvailable = new AtomicBoolean(true);
+        mergeEntries(
+          executorService,
+          entryName -> {
+            boolean direct = zipOutputStreamsAvailable.compareAndSet(
+              true,
+              false
+            );
+            try {
+              writeGtfsEntry(gtfsFiles, entryName, direct);
+            } finally {
+              if (direct) {
+                zipOutputStreamsAvailable.set(true);
+              }
+            }
+          }
+        );
+      }
+      for (ZipEntryStore zipEntryStore : zipEntryStores) {
+        zipEntryStore.appendSpilledEntries();
       }
-      csvPrinter.flush();
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      closeAll(zipEntryStores);
     }
   }
 
   /**
-   * Append transfer entries and remove duplicates.
-   *
-   * @param entryStream     the GTFS file entry inside the GTFS archive.
-   * @param destinationFile the temporary file where GTFS lines are merged.
-   * @param ignoreHeader    ignore headers. Headers are created only when the destination file is first created.
+   * Merge every GTFS entry accepted by at least one merge target, with one worker per entry.
    */
-  private void appendTransferEntry(
-    InputStream entryStream,
-    Path destinationFile,
-    boolean ignoreHeader
+  private void mergeEntries(
+    ExecutorService executorService,
+    Consumer<String> entryMerger
   ) {
-    try (
-      BufferedReader reader = new BufferedReader(
-        new InputStreamReader(entryStream, StandardCharsets.UTF_8)
+    List<Future<?>> entryMerges = new ArrayList<>();
+    for (String entryName : GTFS_FILE_NAMES) {
+      if (
+        mergeOutputs
+          .stream()
+          .noneMatch(mergeOutput -> mergeOutput.target.accepts(entryName))
+      ) {
+        LOGGER.trace("Ignoring {} in GTFS files", entryName);
+        continue;
+      }
+      entryMerges.add(
+        executorService.submit(() -> entryMerger.accept(entryName))
       );
-      BufferedWriter writer = Files.newBufferedWriter(
-        destinationFile,
-        StandardCharsets.UTF_8,
-        StandardOpenOption.CREATE,
-        StandardOpenOption.APPEND
-      )
-    ) {
-      String[] targetHeaders = getTargetHeaders(GtfsConstants.TRANSFERS_TXT);
-
-      CSVPrinter csvPrinter = ignoreHeader
-        ? new CSVPrinter(writer, CSVFormat.DEFAULT)
-        : new CSVPrinter(writer, getCsvFormatWithHeaders(targetHeaders));
+    }
+    try {
+      for (Future<?> entryMerge : entryMerges) {
+        entryMerge.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      entryMerges.forEach(entryMerge -> entryMerge.cancel(true));
+    }
+  }
 
-      for (CSVRecord csvRecord : getCsvParserWithFirstRecordHasHeaders(
-        reader
-      )) {
-        List<String> targetValues = Stream
-          .of(targetHeaders)
-          .map(header -> convertValue(csvRecord, header))
-          .toList();
-        if (!transfers.contains(targetValues)) {
-          transfers.add(targetValues);
-          csvPrinter.printRecord(targetValues);
-        } else {
-          LOGGER.trace("Ignored duplicated transfer: {}", targetValues);
-        }
+  /**
+   * Merge a single GTFS entry from a list of GTFS archives into the zip output streams, either directly or through
+   * a temporary file.
+   */
+  private void writeGtfsEntry(
+    List<File> gtfsFiles,
+    String entryName,
+    boolean direct
+  ) {
+    List<ZipEntryStore> zipEntryStores = mergeOutputs
+      .stream()
+      .filter(mergeOutput -> mergeOutput.target.accepts(entryName))
+      .map(MergeOutput::zipEntryStore)
+      .toList();
+    if (zipEntryStores.isEmpty()) {
+      LOGGER.trace("Ignoring {} in GTFS files", entryName);
+      return;
+    }
+    try {
+      for (ZipEntryStore zipEntryStore : zipEntryStores) {
+        zipEntryStore.beginEntry(entryName, direct);
       }
-      csvPrinter.flush();
+      appendGtfsEntry(gtfsFiles, entryName);
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      List<Closeable> entryEnds = new ArrayList<>();
+      for (ZipEntryStore zipEntryStore : zipEntryStores) {
+        entryEnds.add(() -> zipEntryStore.endEntry(entryName));
+      }
+      closeAll(entryEnds);
     }
   }
 
   /**
-   * Append GTFS entries other than stops and transfers. No duplicate check is performed.
+   * Merge a single GTFS entry from a list of GTFS archives into the working directory.
    *
-   * @param entryName       the GTFS file entry name inside the GTFS archive.
-   * @param entryStream     the GTFS file entry inside the GTFS archive.
-   * @param destinationFile the temporary file where GTFS lines are merged.
-   * @param ignoreHeader    ignore headers. Headers are created only when the destination file is first created.
+   * @param gtfsFiles the GTFS archives to merge, sorted in merge order.
+   * @param entryName the GTFS entry to merge.
    */
-  private void appendEntry(
+  private void appendGtfsEntry(List<File> gtfsFiles, String entryName) {
+    LOGGER.debug("Merging entry {}", entryName);
+    for (File gtfsFile : gtfsFiles) {
+      ZipUtil.handle(
+        gtfsFile,
+        entryName,
+        (entryStream, zipEntry) ->
+          mergeEntry(gtfsFile.getName(), entryName, entryStream)
+      );
+    }
+  }
+
+  /**
+   * Merge a GTFS entry from a GTFS archive into the corresponding file in the working directory of every merge
+   * target that accepts it. The entry is read only once.
+   * If the entry can be copied as is into every target, the raw bytes are copied without CSV parsing.
+   *
+   * @param gtfsFileName the name of the GTFS archive being merged.
+   * @param entryName    the GTFS file entry name inside the GTFS archive.
+   * @param entryStream  the GTFS file entry inside the GTFS archive.
+   */
+  private void mergeEntry(
+    String gtfsFileName,
     String entryName,
-    InputStream entryStream,
-    Path destinationFile,
-    boolean ignoreHeader
+    InputStream entryStream
   ) {
-    try (
-      BufferedReader reader = new BufferedReader(
-        new InputStreamReader(entryStream, StandardCharsets.UTF_8)
-      );
-      BufferedWriter writer = Files.newBufferedWriter(
-        destinationFile,
-        StandardCharsets.UTF_8,
-        StandardOpenOption.CREATE,
-        StandardOpenOption.APPEND
+    List<MergeOutput> entryMergeOutputs = mergeOutputs
+      .stream()
+      .filter(mergeOutput ->
+        mergeOutput.target.accepts(gtfsFileName, entryName)
       )
-    ) {
-      String[] targetHeaders = getTargetHeaders(entryName);
-
-      CSVPrinter csvPrinter = ignoreHeader
-        ? new CSVPrinter(writer, CSVFormat.DEFAULT)
-        : new CSVPrinter(writer, getCsvFormatWithHeaders(targetHeaders));
+      .toList();
+    if (entryMergeOutputs.isEmpty()) {
+      LOGGER.trace("Ignoring {} in GTFS file {}", entryName, gtfsFileName);
+      return;
+    }
 
-      for (CSVRecord csvRecord : getCsvParserWithFirstRecordHasHeaders(
-        reader
-      )) {
-        List<String> targetValues = Stream
-          .of(targetHeaders)
-          .map(header -> convertValue(csvRecord, header))
-          .toList();
-        csvPrinter.printRecord(targetValues);
+    BufferedInputStream bufferedEntryStream = new BufferedInputStream(
+      entryStream,
+      COPY_BUFFER_SIZE
+    );
+    try {
+      if (
+        skipHeaderIfCopyable(entryName, bufferedEntryStream, entryMergeOutputs)
+      ) {
+        LOGGER.trace("Copying {} from GTFS file {}", entryName, gtfsFileName);
+        copyEntry(entryName, bufferedEntryStream, entryMergeOutputs);
+      } else if (rowBuffer) {
+        readEntry(entryName, bufferedEntryStream, entryMergeOutputs);
+      } else {
+        parseEntry(entryName, bufferedEntryStream, entryMergeOutputs);
       }
-      csvPrinter.flush();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
   /**
-   * Convert default values. null values are inserted as empty string, as well as some default 0 values that are
-   * converted into empty string for compatibility with the original merge algorithm.
+   * Read the header line of the entry and check whether the entry can be copied without transformation into every
+   * merge target.
+   * If so the stream is left positioned after the header line, otherwise it is reset to the beginning of the entry.
    *
+   * @return true if the entry can be copied as is.
    */
-  private String convertValue(CSVRecord csvRecord, String header) {
-    if (!csvRecord.isSet(header)) {
-      return "";
-    }
-    String value = csvRecord.get(header);
-    if (value.isEmpty()) {
-      return "";
-    }
-    if ("wheelchair_accessible".equals(header) && "0".equals(value)) {
-      return "";
-    }
-    if ("location_type".equals(header) && "0".equals(value)) {
-      return "";
-    }
-    if ("drop_off_type".equals(header) && "0".equals(value)) {
-      return "";
+  private static boolean skipHeaderIfCopyable(
+    String entryName,
+    BufferedInputStream entryStream,
+    List<MergeOutput> entryMergeOutputs
+  ) throws IOException {
+    entryStream.mark(MAX_HEADER_LINE_LENGTH);
+    String headerLine = readHeaderLine(entryStream);
+    if (headerLine != null && headerLine.indexOf('"') < 0) {
+      String[] sourceHeaders = Stream
+        .of(headerLine.split(",", -1))
+        .map(String::trim)
+        .toArray(String[]::new);
+      if (
+        entryMergeOutputs
+          .stream()
+          .allMatch(mergeOutput ->
+            mergeOutput.isCopyable(entryName, sourceHeaders)
+          )
+      ) {
+        return true;
+      }
     }
-    if ("pickup_type".equals(header) && "0".equals(value)) {
-      return "";
+    entryStream.reset();
+    return false;
+  }
+
+  /**
+   * Read the first line of the entry, without its line terminator.
+   *
+   * @return the header line, or null if it is longer than {@link #MAX_HEADER_LINE_LENGTH}.
+   */
+  private static String readHeaderLine(InputStream entryStream)
+    throws IOException {
+    ByteArrayOutputStream headerLine = new ByteArrayOutputStream();
+    int b = entryStream.read();
+    while (b != -1 && b != '\n') {
+      if (headerLine.size() >= MAX_HEADER_LINE_LENGTH - 1) {
+        return null;
+      }
+      if (b != '\r') {
+        headerLine.write(b);
+      }
+      b = entryStream.read();
     }
-    if ("route_type".equals(header) || "vehicle_type".equals(header)) {
-      if (gtfsExport == GTFS_EXTENDED) {
-        return value;
+    return headerLine.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Copy the remaining records of the entry into the destination file of every merge target, without CSV parsing.
+   * Records are written with CRLF line terminators like the parsed entries, blank lines are skipped and the values
+   * of unquoted records are trimmed. Quoted records are copied as is, including the line breaks inside quoted values.
+   */
+  private static void copyEntry(
+    String entryName,
+    InputStream entryStream,
+    List<MergeOutput> entryMergeOutputs
+  ) throws IOException {
+    List<OutputStream> destinations = new ArrayList<>();
+    try {
+      for (MergeOutput mergeOutput : entryMergeOutputs) {
+        destinations.add(mergeOutput.openRawEntry(entryName));
       }
-      int routeTypeCode;
-      try {
-        routeTypeCode = Integer.parseInt(value);
-      } catch (NumberFormatException e) {
-        LOGGER.warn("Invalid route type {}", value);
-        return value;
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      CopiedRecord record = new CopiedRecord();
+      boolean inQuotes = false;
+      int read = entryStream.read(buffer);
+      while (read != -1) {
+        int recordStart = 0;
+        for (int i = 0; i < read; i++) {
+          if (buffer[i] == '"') {
+            inQuotes = !inQuotes;
+            record.quoted = true;
+          } else if (buffer[i] == '\n' && !inQuotes) {
+            record.append(buffer, recordStart, i - recordStart);
+            record.writeTo(destinations);
+            recordStart = i + 1;
+          }
+        }
+        record.append(buffer, recordStart, read - recordStart);
+        read = entryStream.read(buffer);
       }
-      try {
-        return Integer.toString(
-          BasicRouteTypeCode.convertRouteType(routeTypeCode)
-        );
-      } catch (IllegalArgumentException e) {
-        LOGGER.warn(
-          "Detected CSV record {} with unmappable route type {}. Converting to bus type by default.",
-          csvRecord,
-          routeTypeCode
+      // last record without line terminator
+      record.writeTo(destinations);
+    } finally {
+      closeAll(destinations);
+    }
+  }
+
+  /**
+   * Parse the entry record by record and append the converted records to the destination file of every merge
+   * target.
+   */
+  private static void parseEntry(
+    String entryName,
+    InputStream entryStream,
+    List<MergeOutput> entryMergeOutputs
+  ) throws IOException {
+    List<EntryAppender> entryAppenders = new ArrayList<>();
+    try (
+      CSVParser csvParser = getCsvParserWithFirstRecordHasHeaders(
+        new BufferedReader(
+          new InputStreamReader(entryStream, StandardCharsets.UTF_8)
+        )
+      )
+    ) {
+      for (MergeOutput mergeOutput : entryMergeOutputs) {
+        entryAppenders.add(
+          mergeOutput.openEntry(entryName, csvParser.getHeaderNames())
         );
-        return Integer.toString(BasicRouteTypeCode.BUS.getCode());
       }
+      for (CSVRecord csvRecord : csvParser) {
+        for (EntryAppender entryAppender : entryAppenders) {
+          entryAppender.append(csvRecord);
+        }
+      }
+    } finally {
+      closeAll(entryAppenders);
     }
+  }
 
-    if ("shape_id".equals(header) && !includeShapes) {
-      return "";
+  /**
+   * Read the entry row by row into a reusable row buffer and append the converted rows to the destination file of
+   * every merge target.
+   */
+  private static void readEntry(
+    String entryName,
+    InputStream entryStream,
+    List<MergeOutput> entryMergeOutputs
+  ) throws IOException {
+    GtfsCsvReader csvReader = new GtfsCsvReader(
+      new InputStreamReader(entryStream, StandardCharsets.UTF_8)
+    );
+    GtfsCsvRow sourceRow = new GtfsCsvRow();
+    List<String> sourceHeaders = csvReader.readRow(sourceRow)
+      ? sourceRow.getStrings()
+      : List.of();
+    List<RowAppender> rowAppenders = new ArrayList<>();
+    try {
+      for (MergeOutput mergeOutput : entryMergeOutputs) {
+        rowAppenders.add(mergeOutput.openRowEntry(entryName, sourceHeaders));
+      }
+      while (csvReader.readRow(sourceRow)) {
+        for (RowAppender rowAppender : rowAppenders) {
+          rowAppender.append(sourceRow);
+        }
+      }
+    } finally {
+      closeAll(rowAppenders);
     }
-
-    return value;
   }
 
-  private String[] getTargetHeaders(String entryName) {
-    return gtfsExport.getHeaders().get(entryName);
+  private static void closeAll(List<? extends Closeable> closeables) {
+    RuntimeException closeException = null;
+    for (Closeable closeable : closeables) {
+      try {
+        closeable.close();
+      } catch (IOException | RuntimeException e) {
+        if (closeException == null) {
+          closeException = new RuntimeException(e);
+        } else {
+          closeException.addSuppressed(e);
+        }
+      }
+    }
+    if (closeException != null) {
+      throw closeException;
+    }
   }
 
-  private CSVParser getCsvParserWithFirstRecordHasHeaders(
+  private static CSVParser getCsvParserWithFirstRecordHasHeaders(
     BufferedReader reader
   ) throws IOException {
     CSVFormat csvFormat = CSVFormat.DEFAULT
@@ -319,7 +599,465 @@ public class GtfsFileMerger {
     return CSVParser.builder().setFormat(csvFormat).setReader(reader).get();
   }
 
-  private CSVFormat getCsvFormatWithHeaders(String[] targetHeaders) {
-    return CSVFormat.DEFAULT.builder().setHeader(targetHeaders).get();
+  /**
+   * The merged GTFS files of a merge target, together with the state used for removing duplicates.
+   */
+  private static final class MergeOutput {
+
+    private final GtfsMergeTarget target;
+    private final MergedEntryStore entryStore;
+
+    private final int targetIndex;
+    private final DedupIndex stopIds;
+    private final DedupIndex transfers;
+
+    /**
+     * @param target           the merge target.
+     * @param targetIndex      the index of the merge target in the dedup indexes shared by all targets.
+     * @param entryStore       the destination of the merged GTFS entries of the target.
+     * @param stopIds          the ids of the stops already merged.
+     * @param transfers        the transfers already merged.
+     */
+    private MergeOutput(
+      GtfsMergeTarget target,
+      int targetIndex,
+      MergedEntryStore entryStore,
+      DedupIndex stopIds,
+      DedupIndex transfers
+    ) {
+      this.target = target;
+      this.targetIndex = targetIndex;
+      this.entryStore = entryStore;
+      this.stopIds = stopIds;
+      this.transfers = transfers;
+    }
+
+    /**
+     * Open the destination file of a GTFS entry for appending.
+     * Headers are created only when the destination file is first created.
+     *
+     * @param entryName     the GTFS file entry name inside the GTFS archive.
+     * @param sourceHeaders the headers of the GTFS entry inside the GTFS archive.
+     */
+    private EntryAppender openEntry(
+      String entryName,
+      List<String> sourceHeaders
+    ) throws IOException {
+      boolean ignoreHeader = entryStore.contains(entryName);
+      String[] targetHeaders = getTargetHeaders(entryName);
+      GtfsRecordConverter recordConverter = GtfsRecordConverter.compile(
+        target,
+        targetHeaders,
+        sourceHeaders
+      );
+
+      BufferedWriter writer = openWriter(entryName);
+      CSVPrinter csvPrinter = ignoreHeader
+        ? new CSVPrinter(writer, CSVFormat.DEFAULT)
+        : new CSVPrinter(writer, getCsvFormatWithHeaders(targetHeaders));
+
+      if (GtfsConstants.STOPS_TXT.equals(entryName)) {
+        return new StopEntryAppender(this, csvPrinter, recordConverter);
+      }
+      if (GtfsConstants.TRANSFERS_TXT.equals(entryName)) {
+        return new TransferEntryAppender(this, csvPrinter, recordConverter);
+      }
+      return new EntryAppender(this, csvPrinter, recordConverter);
+    }
+
+    /**
+     * Open the destination file of a GTFS entry for appending rows from a row buffer.
+     * Headers are created only when the destination file is first created.
+     *
+     * @param entryName     the GTFS file entry name inside the GTFS archive.
+     * @param sourceHeaders the headers of the GTFS entry inside the GTFS archive.
+     */
+    private RowAppender openRowEntry(
+      String entryName,
+      List<String> sourceHeaders
+    ) throws IOException {
+      boolean ignoreHeader = entryStore.contains(entryName);
+      String[] targetHeaders = getTargetHeaders(entryName);
+      GtfsRecordConverter recordConverter = GtfsRecordConverter.compile(
+        target,
+        targetHeaders,
+        sourceHeaders
+      );
+
+      GtfsCsvWriter csvWriter = new GtfsCsvWriter(openWriter(entryName));
+      if (!ignoreHeader) {
+        GtfsCsvRow headerRow = new GtfsCsvRow();
+        for (String targetHeader : targetHeaders) {
+          headerRow.addField(targetHeader);
+        }
+        csvWriter.writeRow(headerRow);
+      }
+
+      if (GtfsConstants.STOPS_TXT.equals(entryName)) {
+        return new StopRowAppender(
+          this,
+          csvWriter,
+          recordConverter,
+          Arrays.asList(targetHeaders).indexOf("stop_id")
+        );
+      }
+      if (GtfsConstants.TRANSFERS_TXT.equals(entryName)) {
+        return new TransferRowAppender(this, csvWriter, recordConverter);
+      }
+      return new RowAppender(this, csvWriter, recordConverter);
+    }
+
+    /**
+     * Return true if the entry can be copied as is into this target, that is if it is not subject to duplicate removal,
+     * its headers are identical to the target headers and none of its values need to be converted.
+     */
+    private boolean isCopyable(String entryName, String[] sourceHeaders) {
+      if (
+        GtfsConstants.STOPS_TXT.equals(entryName) ||
+        GtfsConstants.TRANSFERS_TXT.equals(entryName)
+      ) {
+        return false;
+      }
+      return GtfsRecordConverter
+        .compile(
+          target,
+          getTargetHeaders(entryName),
+          Arrays.asList(sourceHeaders)
+        )
+        .isIdentity();
+    }
+
+    /**
+     * Open the destination file of a GTFS entry for appending raw bytes.
+     * Headers are created only when the destination file is first created.
+     *
+     * @param entryName the GTFS file entry name inside the GTFS archive.
+     */
+    private OutputStream openRawEntry(String entryName) throws IOException {
+      boolean ignoreHeader = entryStore.contains(entryName);
+      OutputStream outputStream = entryStore.openForAppend(entryName);
+      if (!ignoreHeader) {
+        outputStream.write(
+          String
+            .join(",", getTargetHeaders(entryName))
+            .getBytes(StandardCharsets.UTF_8)
+        );
+        outputStream.write(CRLF);
+      }
+      return outputStream;
+    }
+
+    /**
+     * @throws IllegalStateException if the merged entries of the target are not written into a zip output stream.
+     */
+    private ZipEntryStore zipEntryStore() {
+      if (entryStore instanceof ZipEntryStore zipEntryStore) {
+        return zipEntryStore;
+      }
+      throw new IllegalStateException(
+        "The merged GTFS entries of " +
+        target +
+        " are written into a working directory, not into a zip output stream"
+      );
+    }
+
+    private BufferedWriter openWriter(String entryName) throws IOException {
+      return new BufferedWriter(
+        new OutputStreamWriter(
+          entryStore.openForAppend(entryName),
+          StandardCharsets.UTF_8
+        )
+      );
+    }
+
+    private String[] getTargetHeaders(String entryName) {
+      return target.gtfsExport().getHeaders().get(entryName);
+    }
+
+    private static CSVFormat getCsvFormatWithHeaders(String[] targetHeaders) {
+      return CSVFormat.DEFAULT.builder().setHeader(targetHeaders).get();
+    }
+  }
+
+  /**
+   * A record of an entry copied without CSV parsing, accumulated until its line terminator.
+   */
+  private static final class CopiedRecord {
+
+    private byte[] bytes = new byte[256];
+    private int length;
+    private boolean quoted;
+
+    private void append(byte[] buffer, int offset, int count) {
+      if (length + count > bytes.length) {
+        bytes =
+          Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + count));
+      }
+      System.arraycopy(buffer, offset, bytes, length, count);
+      length += count;
+    }
+
+    /**
+     * Write the record followed by CRLF into every destination, unless it is blank, and clear it.
+     */
+    private void writeTo(List<OutputStream> destinations) throws IOException {
+      int end = length;
+      if (end > 0 && bytes[end - 1] == '\r') {
+        end--;
+      }
+      if (!quoted) {
+        end = trimValues(end);
+      }
+      if (end > 0) {
+        for (OutputStream destination : destinations) {
+          destination.write(bytes, 0, end);
+          destination.write(CRLF);
+        }
+      }
+      length = 0;
+      quoted = false;
+    }
+
+    /**
+     * Remove in place the whitespace around the comma-separated values of the record, as the CSV parser does.
+     *
+     * @return the length of the trimmed record, 0 if the record is blank.
+     */
+    private int trimValues(int end) {
+      int trimmedLength = 0;
+      int valueStart = 0;
+      while (true) {
+        int separator = valueStart;
+        while (separator < end && bytes[separator] != ',') {
+          separator++;
+        }
+        int from = valueStart;
+        int to = separator;
+        while (from < to && isWhitespace(bytes[from])) {
+          from++;
+        }
+        while (to > from && isWhitespace(bytes[to - 1])) {
+          to--;
+        }
+        System.arraycopy(bytes, from, bytes, trimmedLength, to - from);
+        trimmedLength += to - from;
+        if (separator == end) {
+          return trimmedLength;
+        }
+        bytes[trimmedLength++] = ',';
+        valueStart = separator + 1;
+      }
+    }
+
+    private static boolean isWhitespace(byte b) {
+      return (b & 0xff) <= ' ';
+    }
+  }
+
+  /**
+   * Append GTFS records to the destination file of a merge target. No duplicate check is performed.
+   */
+  private static class EntryAppender implements Closeable {
+
+    protected final MergeOutput mergeOutput;
+    private final CSVPrinter csvPrinter;
+    private final GtfsRecordConverter recordConverter;
+
+    private EntryAppender(
+      MergeOutput mergeOutput,
+      CSVPrinter csvPrinter,
+      GtfsRecordConverter recordConverter
+    ) {
+      this.mergeOutput = mergeOutput;
+      this.csvPrinter = csvPrinter;
+      this.recordConverter = recordConverter;
+    }
+
+    void append(CSVRecord csvRecord) throws IOException {
+      print(convert(csvRecord));
+    }
+
+    protected List<String> convert(CSVRecord csvRecord) {
+      return recordConverter.convert(csvRecord);
+    }
+
+    protected void print(List<String> targetValues) throws IOException {
+      csvPrinter.printRecord(targetValues);
+    }
+
+    @Override
+    public void close() throws IOException {
+      csvPrinter.flush();
+      csvPrinter.close();
+    }
+  }
+
+  /**
+   * Append stop records and remove duplicates.
+   */
+  private static final class StopEntryAppender extends EntryAppender {
+
+    private StopEntryAppender(
+      MergeOutput mergeOutput,
+      CSVPrinter csvPrinter,
+      GtfsRecordConverter recordConverter
+    ) {
+      super(mergeOutput, csvPrinter, recordConverter);
+    }
+
+    @Override
+    void append(CSVRecord csvRecord) throws IOException {
+      String stopId = csvRecord.get("stop_id");
+      if (mergeOutput.stopIds.add(mergeOutput.targetIndex, stopId)) {
+        print(convert(csvRecord));
+      } else {
+        LOGGER.trace("Ignored duplicated stop: {}", stopId);
+      }
+    }
+  }
+
+  /**
+   * Append transfer records and remove duplicates.
+   */
+  private static final class TransferEntryAppender extends EntryAppender {
+
+    private final DedupKey transferKey = new DedupKey();
+
+    private TransferEntryAppender(
+      MergeOutput mergeOutput,
+      CSVPrinter csvPrinter,
+      GtfsRecordConverter recordConverter
+    ) {
+      super(mergeOutput, csvPrinter, recordConverter);
+    }
+
+    @Override
+    void append(CSVRecord csvRecord) throws IOException {
+      List<String> targetValues = convert(csvRecord);
+      transferKey.clear();
+      targetValues.forEach(transferKey::addField);
+      if (
+        transferKey.addTo(mergeOutput.transfers, mergeOutput.targetIndex)
+      ) {
+        print(targetValues);
+      } else {
+        LOGGER.trace("Ignored duplicated transfer: {}", targetValues);
+      }
+    }
+  }
+
+  /**
+   * Append GTFS rows from a row buffer to the destination file of a merge target. No duplicate check is performed.
+   */
+  private static class RowAppender implements Closeable {
+
+    protected final MergeOutput mergeOutput;
+    private final GtfsCsvWriter csvWriter;
+    private final GtfsRecordConverter recordConverter;
+    private final GtfsCsvRow targetRow = new GtfsCsvRow();
+
+    private RowAppender(
+      MergeOutput mergeOutput,
+      GtfsCsvWriter csvWriter,
+      GtfsRecordConverter recordConverter
+    ) {
+      this.mergeOutput = mergeOutput;
+      this.csvWriter = csvWriter;
+      this.recordConverter = recordConverter;
+    }
+
+    void append(GtfsCsvRow sourceRow) throws IOException {
+      recordConverter.convert(sourceRow, targetRow);
+      if (isNew(targetRow)) {
+        csvWriter.writeRow(targetRow);
+      }
+    }
+
+    /**
+     * Return true if the converted row is not a duplicate of a previously appended row.
+     */
+    protected boolean isNew(GtfsCsvRow targetRow) {
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      csvWriter.flush();
+      csvWriter.close();
+    }
+  }
+
+  /**
+   * Append stop rows and remove duplicates.
+   */
+  private static final class StopRowAppender extends RowAppender {
+
+    private final int stopIdIndex;
+
+    private StopRowAppender(
+      MergeOutput mergeOutput,
+      GtfsCsvWriter csvWriter,
+      GtfsRecordConverter recordConverter,
+      int stopIdIndex
+    ) {
+      super(mergeOutput, csvWriter, recordConverter);
+      this.stopIdIndex = stopIdIndex;
+    }
+
+    @Override
+    protected boolean isNew(GtfsCsvRow targetRow) {
+      if (
+        mergeOutput.stopIds.add(
+          mergeOutput.targetIndex,
+          targetRow.chars(),
+          targetRow.fieldStart(stopIdIndex),
+          targetRow.fieldEnd(stopIdIndex)
+        )
+      ) {
+        return true;
+      }
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace(
+          "Ignored duplicated stop: {}",
+          targetRow.getString(stopIdIndex)
+        );
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Append transfer rows and remove duplicates.
+   */
+  private static final class TransferRowAppender extends RowAppender {
+
+    private final DedupKey transferKey = new DedupKey();
+
+    private TransferRowAppender(
+      MergeOutput mergeOutput,
+      GtfsCsvWriter csvWriter,
+      GtfsRecordConverter recordConverter
+    ) {
+      super(mergeOutput, csvWriter, recordConverter);
+    }
+
+    @Override
+    protected boolean isNew(GtfsCsvRow targetRow) {
+      transferKey.clear();
+      for (int i = 0; i < targetRow.size(); i++) {
+        transferKey.addField(
+          targetRow.chars(),
+          targetRow.fieldStart(i),
+          targetRow.fieldEnd(i)
+        );
+      }
+      if (
+        transferKey.addTo(mergeOutput.transfers, mergeOutput.targetIndex)
+      ) {
+        return true;
+      }
+      LOGGER.trace("Ignored duplicated transfer: {}", targetRow);
+      return false;
+    }
   }
 }
@@ -16,6 +16,7 @@
 
 package no.entur.damu.gtfs.merger;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -24,9 +25,24 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.FileSystemUtils;
@@ -41,6 +57,7 @@ public class GtfsFileUtils {
   );
 
   public static final String FEED_INFO_FILE_NAME = "feed_info.txt";
+  private static final int READ_BUFFER_SIZE = 65536;
   private static final byte[] FEED_INFO_FILE_CONTENT =
     "feed_id,feed_publisher_name,feed_publisher_url,feed_lang\nENTUR,Entur,https://www.entur.org,no".getBytes(
         StandardCharsets.UTF_8
@@ -60,6 +77,85 @@ public class GtfsFileUtils {
     Collection<File> zipFiles,
     GtfsExport gtfsExport,
     boolean includeShapes
+  ) {
+    return mergeGtfsFilesToInputStream(zipFiles, gtfsExport, includeShapes, 1);
+  }
+
+  /**
+   * Merge GTFS files listed by zipFiles.
+   * Files are merged in alphabetical order.
+   *
+   * @param zipFiles        the list of GTFS archives to merge
+   * @param gtfsExport      the type of GTFS export.
+   * @param parallelism     the number of GTFS entries merged concurrently. 1 merges the archives sequentially.
+   * @return a delete-on-close input stream referring to the resulting merged GTFS archive.
+   */
+  public static InputStream mergeGtfsFilesToInputStream(
+    Collection<File> zipFiles,
+    GtfsExport gtfsExport,
+    boolean includeShapes,
+    int parallelism
+  ) {
+    GtfsMergeTarget target = new GtfsMergeTarget(gtfsExport, includeShapes);
+    return mergeGtfsFilesToInputStreams(
+      zipFiles,
+      List.of(target),
+      GtfsMergeOptions.DEFAULT.withParallelism(parallelism)
+    )
+      .get(target);
+  }
+
+  /**
+   * Merge GTFS files listed by zipFiles into several GTFS archives, reading each GTFS file only once.
+   * Files are merged in alphabetical order.
+   *
+   * @param zipFiles     the list of GTFS archives to merge
+   * @param targets      the GTFS archives to produce.
+   * @param mergeOptions the merge tuning options.
+   * @return for each target, a delete-on-close input stream referring to the resulting merged GTFS archive.
+   */
+  public static Map<GtfsMergeTarget, InputStream> mergeGtfsFilesToInputStreams(
+    Collection<File> zipFiles,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) {
+    if (zipFiles.isEmpty()) {
+      throw new RuntimeException("No GTFS archives to merge");
+    }
+
+    List<File> sortedZipFiles = zipFiles
+      .stream()
+      .sorted(Comparator.comparing(File::getName))
+      .toList();
+
+    try {
+      Map<GtfsMergeTarget, File> mergedFiles = mergeGtfsFiles(
+        sortedZipFiles,
+        targets,
+        mergeOptions
+      );
+      return createDeleteOnCloseInputStreams(targets, mergedFiles);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Merge GTFS files listed by zipFiles into several GTFS archives, reusing the merge fragments of the GTFS files that
+   * did not change since the previous merge.
+   * Files are merged in alphabetical order.
+   *
+   * @param zipFiles      the list of GTFS archives to merge
+   * @param fragmentCache the cache of merge fragments.
+   * @param targets       the GTFS archives to produce.
+   * @param mergeOptions  the merge tuning options.
+   * @return for each target, a delete-on-close input stream referring to the resulting merged GTFS archive.
+   */
+  public static Map<GtfsMergeTarget, InputStream> mergeGtfsFilesIncrementallyToInputStreams(
+    Collection<File> zipFiles,
+    GtfsFragmentCache fragmentCache,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
   ) {
     if (zipFiles.isEmpty()) {
       throw new RuntimeException("No GTFS archives to merge");
@@ -71,14 +167,33 @@ public class GtfsFileUtils {
       .toList();
 
     try {
-      return createDeleteOnCloseInputStream(
-        mergeGtfsFiles(sortedZipFiles, gtfsExport, includeShapes)
+      Map<GtfsMergeTarget, File> mergedFiles = mergeGtfsFilesIncrementally(
+        sortedZipFiles,
+        fragmentCache,
+        targets,
+        mergeOptions
       );
+      return createDeleteOnCloseInputStreams(targets, mergedFiles);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  private static Map<GtfsMergeTarget, InputStream> createDeleteOnCloseInputStreams(
+    List<GtfsMergeTarget> targets,
+    Map<GtfsMergeTarget, File> mergedFiles
+  ) throws IOException {
+    Map<GtfsMergeTarget, InputStream> mergedInputStreams =
+      new LinkedHashMap<>();
+    for (GtfsMergeTarget target : targets) {
+      mergedInputStreams.put(
+        target,
+        createDeleteOnCloseInputStream(mergedFiles.get(target))
+      );
+    }
+    return mergedInputStreams;
+  }
+
   /**
    * Open an input stream on a temporary file with the guarantee that the file will be deleted when the stream is closed.
    *
@@ -107,17 +222,493 @@ public class GtfsFileUtils {
     GtfsExport gtfsExport,
     boolean includeShapes
   ) throws IOException {
+    return mergeGtfsFiles(zipFiles, gtfsExport, includeShapes, 1);
+  }
+
+  /**
+   * Merge a collection of GTFS files, add the feed_info.txt entry and return the merged GTFS file.
+   * When parallelism is greater than 1, each GTFS entry is merged by its own worker.
+   *
+   * @param zipFiles    GTFS archives to be merged.
+   * @param gtfsExport  the type of export.
+   * @param parallelism the number of GTFS entries merged concurrently.
+   * @return a zip file containing the merged GTFS data.
+   * @throws IOException
+   */
+  static File mergeGtfsFiles(
+    Collection<File> zipFiles,
+    GtfsExport gtfsExport,
+    boolean includeShapes,
+    int parallelism
+  ) throws IOException {
+    GtfsMergeTarget target = new GtfsMergeTarget(gtfsExport, includeShapes);
+    return mergeGtfsFiles(
+      zipFiles,
+      List.of(target),
+      GtfsMergeOptions.DEFAULT.withParallelism(parallelism)
+    )
+      .get(target);
+  }
+
+  /**
+   * Merge a collection of GTFS files into several GTFS archives, add the feed_info.txt entry and return the merged
+   * GTFS files. Each GTFS entry is read only once and written to every target that accepts it.
+   * When parallelism is greater than 1, each GTFS entry is merged by its own worker.
+   * In streaming mode, the merged entries are written directly into the resulting zip files, and compressed in
+   * parallel when the compression parallelism is greater than 1.
+   * The merged entries are compressed according to the compression of the merge options.
+   *
+   * @param zipFiles     GTFS archives to be merged.
+   * @param targets      the GTFS archives to produce.
+   * @param mergeOptions the merge tuning options.
+   * @return for each target, a zip file containing the merged GTFS data.
+   * @throws IOException
+   */
+  static Map<GtfsMergeTarget, File> mergeGtfsFiles(
+    Collection<File> zipFiles,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    if (mergeOptions.streaming()) {
+      return streamGtfsFiles(zipFiles, targets, mergeOptions);
+    }
     long t1 = System.currentTimeMillis();
-    LOGGER.debug("Merging GTFS files for export {}", gtfsExport);
+    LOGGER.debug(
+      "Merging GTFS files for targets {} with options {}",
+      targets,
+      mergeOptions
+    );
+    int parallelism = mergeOptions.parallelism();
 
-    Path workingDirectory = Files.createTempDirectory("marduk-merge-gtfs");
+    Map<GtfsMergeTarget, Path> workingDirectories = new LinkedHashMap<>();
     try {
+      for (GtfsMergeTarget target : targets) {
+        workingDirectories.put(
+          target,
+          Files.createTempDirectory("marduk-merge-gtfs")
+        );
+      }
       GtfsFileMerger gtfsFileMerger = new GtfsFileMerger(
-        workingDirectory,
-        gtfsExport,
-        includeShapes
+        workingDirectories,
+        mergeOptions
       );
-      zipFiles.forEach(gtfsFileMerger::appendGtfs);
+      if (parallelism > 1) {
+        ExecutorService executorService = Executors.newFixedThreadPool(
+          parallelism
+        );
+        try {
+          gtfsFileMerger.appendGtfsFiles(
+            List.copyOf(zipFiles),
+            executorService
+          );
+        } finally {
+          executorService.shutdownNow();
+        }
+      } else {
+        zipFiles.forEach(gtfsFileMerger::appendGtfs);
+      }
+
+      Map<GtfsMergeTarget, File> mergedFiles = packWorkingDirectories(
+        workingDirectories,
+        mergeOptions
+      );
+
+      LOGGER.debug(
+        "Merged GTFS-files - spent {} ms",
+        (System.currentTimeMillis() - t1)
+      );
+
+      return mergedFiles;
+    } finally {
+      for (Path workingDirectory : workingDirectories.values()) {
+        FileSystemUtils.deleteRecursively(workingDirectory);
+      }
+    }
+  }
+
+  /**
+   * Merge a list of GTFS files into several GTFS archives through a cache of merge fragments, add the feed_info.txt
+   * entry and return the merged GTFS files.
+   * Only the GTFS files that are not in the cache are parsed and converted, concurrently when the parallelism is
+   * greater than 1. The merged entries are then written straight into the merged zip archives by concatenating the
+   * fragments of all the GTFS files, so that the merge is streamed whatever the streaming option. The merge is
+   * serialized with the other merges using the same cache.
+   *
+   * @param zipFiles      GTFS archives to be merged, sorted in merge order.
+   * @param fragmentCache the cache of merge fragments.
+   * @param targets       the GTFS archives to produce.
+   * @param mergeOptions  the merge tuning options.
+   * @return for each target, a zip file containing the merged GTFS data.
+   */
+  static Map<GtfsMergeTarget, File> mergeGtfsFilesIncrementally(
+    List<File> zipFiles,
+    GtfsFragmentCache fragmentCache,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    long t1 = System.currentTimeMillis();
+    LOGGER.debug(
+      "Merging GTFS files incrementally for targets {} with options {}",
+      targets,
+      mergeOptions
+    );
+
+    Map<GtfsMergeTarget, File> mergedFiles = new LinkedHashMap<>();
+    int compressionParallelism = mergeOptions.compressionParallelism();
+    ExecutorService compressionExecutor = compressionParallelism > 1
+      ? Executors.newFixedThreadPool(compressionParallelism)
+      : null;
+    boolean merged = false;
+    try {
+      synchronized (fragmentCache) {
+        List<GtfsFragmentCache.Fragments> fragments = fragmentCache.update(
+          zipFiles,
+          targets,
+          mergeOptions
+        );
+        for (GtfsMergeTarget target : targets) {
+          File mergedFile = Files
+            .createTempFile("marduk-merge-gtfs-merged", ".zip")
+            .toFile();
+          mergedFiles.put(target, mergedFile);
+          try (
+            ParallelZipOutputStream zipOutputStream =
+              new ParallelZipOutputStream(
+                mergedFile.toPath(),
+                metricsOutput(target),
+                mergeOptions.compression(),
+                compressionExecutor,
+                compressionParallelism
+              )
+          ) {
+            GtfsFragmentCache.writeEntries(
+              target,
+              fragments,
+              zipOutputStream,
+              mergeOptions.dedupIndex()
+            );
+            zipOutputStream.putNextEntry(FEED_INFO_FILE_NAME);
+            zipOutputStream.write(FEED_INFO_FILE_CONTENT);
+            zipOutputStream.closeEntry();
+          }
+        }
+      }
+      merged = true;
+
+      LOGGER.debug(
+        "Merged GTFS-files incrementally - spent {} ms",
+        (System.currentTimeMillis() - t1)
+      );
+
+      return mergedFiles;
+    } finally {
+      if (!merged) {
+        mergedFiles.values().forEach(FileUtils::deleteQuietly);
+      }
+      if (compressionExecutor != null) {
+        compressionExecutor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Fetch and merge GTFS files in a pipeline into several GTFS archives, reading each GTFS file only once.
+   * Files are merged in alphabetical order, each of them as soon as it is fetched, while the next ones are being
+   * fetched.
+   *
+   * @param gtfsFileNames the names of the GTFS archives to merge.
+   * @param fetcher       fetches the GTFS archives to local files.
+   * @param lookAhead     the number of GTFS archives fetched ahead of the one being merged.
+   * @param targets       the GTFS archives to produce.
+   * @param mergeOptions  the merge tuning options.
+   * @return for each target, a delete-on-close input stream referring to the resulting merged GTFS archive.
+   */
+  public static Map<GtfsMergeTarget, InputStream> fetchAndMergeGtfsFilesToInputStreams(
+    Collection<String> gtfsFileNames,
+    GtfsArchiveFetcher fetcher,
+    int lookAhead,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) {
+    try {
+      Map<GtfsMergeTarget, File> mergedFiles = fetchAndMergeGtfsFiles(
+        gtfsFileNames,
+        fetcher,
+        lookAhead,
+        targets,
+        mergeOptions
+      );
+      return createDeleteOnCloseInputStreams(targets, mergedFiles);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Fetch and merge GTFS files in a pipeline, add the feed_info.txt entry and return the merged GTFS files.
+   * At most lookAhead GTFS archives are fetched, concurrently, ahead of the one being merged, and each GTFS archive is
+   * deleted once merged, so that network transfer overlaps with merging and the local disk holds only a window of the
+   * GTFS archives.
+   * The GTFS archives are merged one at a time into working directories, whatever the streaming option. When
+   * parallelism is greater than 1, the entries of each GTFS archive are merged by one worker per entry.
+   *
+   * @param gtfsFileNames the names of the GTFS archives to merge.
+   * @param fetcher       fetches the GTFS archives to local files.
+   * @param lookAhead     the number of GTFS archives fetched ahead of the one being merged.
+   * @param targets       the GTFS archives to produce.
+   * @param mergeOptions  the merge tuning options.
+   * @return for each target, a zip file containing the merged GTFS data.
+   */
+  static Map<GtfsMergeTarget, File> fetchAndMergeGtfsFiles(
+    Collection<String> gtfsFileNames,
+    GtfsArchiveFetcher fetcher,
+    int lookAhead,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    if (gtfsFileNames.isEmpty()) {
+      throw new RuntimeException("No GTFS archives to merge");
+    }
+    if (lookAhead < 1) {
+      throw new IllegalArgumentException("Invalid look-ahead: " + lookAhead);
+    }
+    long t1 = System.currentTimeMillis();
+    LOGGER.debug(
+      "Fetching and merging GTFS files for targets {} with look-ahead {} and options {}",
+      targets,
+      lookAhead,
+      mergeOptions
+    );
+
+    List<String> sortedGtfsFileNames = gtfsFileNames
+      .stream()
+      .sorted()
+      .toList();
+    Map<GtfsMergeTarget, Path> workingDirectories = new LinkedHashMap<>();
+    Queue<Future<File>> fetchedFiles = new ArrayDeque<>();
+    ExecutorService fetchExecutorService = Executors.newFixedThreadPool(
+      lookAhead
+    );
+    ExecutorService mergeExecutorService = mergeOptions.parallelism() > 1
+      ? Executors.newFixedThreadPool(mergeOptions.parallelism())
+      : null;
+    try {
+      for (GtfsMergeTarget target : targets) {
+        workingDirectories.put(
+          target,
+          Files.createTempDirectory("marduk-merge-gtfs")
+        );
+      }
+      GtfsFileMerger gtfsFileMerger = new GtfsFileMerger(
+        workingDirectories,
+        mergeOptions
+      );
+
+      int nextFetch = 0;
+      while (nextFetch < Math.min(lookAhead, sortedGtfsFileNames.size())) {
+        String gtfsFileName = sortedGtfsFileNames.get(nextFetch++);
+        fetchedFiles.add(
+          fetchExecutorService.submit(() -> fetcher.fetch(gtfsFileName))
+        );
+      }
+      while (!fetchedFiles.isEmpty()) {
+        File gtfsFile = awaitFetchedFile(fetchedFiles.remove());
+        if (nextFetch < sortedGtfsFileNames.size()) {
+          String gtfsFileName = sortedGtfsFileNames.get(nextFetch++);
+          fetchedFiles.add(
+            fetchExecutorService.submit(() -> fetcher.fetch(gtfsFileName))
+          );
+        }
+        if (gtfsFile == null) {
+          continue;
+        }
+        try {
+          if (mergeExecutorService == null) {
+            gtfsFileMerger.appendGtfs(gtfsFile);
+          } else {
+            gtfsFileMerger.appendGtfsFiles(
+              List.of(gtfsFile),
+              mergeExecutorService
+            );
+          }
+        } finally {
+          FileUtils.deleteQuietly(gtfsFile);
+        }
+      }
+
+      Map<GtfsMergeTarget, File> mergedFiles = packWorkingDirectories(
+        workingDirectories,
+        mergeOptions
+      );
+
+      LOGGER.debug(
+        "Fetched and merged GTFS-files - spent {} ms",
+        (System.currentTimeMillis() - t1)
+      );
+
+      return mergedFiles;
+    } finally {
+      fetchExecutorService.shutdownNow();
+      if (mergeExecutorService != null) {
+        mergeExecutorService.shutdownNow();
+      }
+      discardFetchedFiles(fetchedFiles);
+      for (Path workingDirectory : workingDirectories.values()) {
+        FileSystemUtils.deleteRecursively(workingDirectory);
+      }
+    }
+  }
+
+  /**
+   * Read GTFS archives directly from their source and merge them into several GTFS archives, without local copy of
+   * the GTFS archives. Files are merged in alphabetical order.
+   *
+   * @param gtfsFileNames the names of the GTFS archives to merge.
+   * @param source        opens the GTFS archives.
+   * @param targets       the GTFS archives to produce.
+   * @param mergeOptions  the merge tuning options.
+   * @return for each target, a delete-on-close input stream referring to the resulting merged GTFS archive.
+   */
+  public static Map<GtfsMergeTarget, InputStream> readAndMergeGtfsFilesToInputStreams(
+    Collection<String> gtfsFileNames,
+    GtfsArchiveSource source,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) {
+    try {
+      Map<GtfsMergeTarget, File> mergedFiles = readAndMergeGtfsFiles(
+        gtfsFileNames,
+        source,
+        targets,
+        mergeOptions
+      );
+      return createDeleteOnCloseInputStreams(targets, mergedFiles);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Read GTFS archives directly from their source, merge them, add the feed_info.txt entry and return the merged GTFS
+   * files. Each GTFS archive is read sequentially, once, and merged entry by entry as it is read: nothing but the
+   * merged entries is written to the local disk. Entries that no target accepts are skipped without being parsed.
+   * The GTFS archives are merged one at a time into working directories, whatever the streaming and parallelism
+   * options.
+   *
+   * @param gtfsFileNames the names of the GTFS archives to merge.
+   * @param source        opens the GTFS archives.
+   * @param targets       the GTFS archives to produce.
+   * @param mergeOptions  the merge tuning options.
+   * @return for each target, a zip file containing the merged GTFS data.
+   */
+  static Map<GtfsMergeTarget, File> readAndMergeGtfsFiles(
+    Collection<String> gtfsFileNames,
+    GtfsArchiveSource source,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    if (gtfsFileNames.isEmpty()) {
+      throw new RuntimeException("No GTFS archives to merge");
+    }
+    long t1 = System.currentTimeMillis();
+    LOGGER.debug(
+      "Reading and merging GTFS files for targets {} with options {}",
+      targets,
+      mergeOptions
+    );
+
+    Map<GtfsMergeTarget, Path> workingDirectories = new LinkedHashMap<>();
+    try {
+      for (GtfsMergeTarget target : targets) {
+        workingDirectories.put(
+          target,
+          Files.createTempDirectory("marduk-merge-gtfs")
+        );
+      }
+      GtfsFileMerger gtfsFileMerger = new GtfsFileMerger(
+        workingDirectories,
+        mergeOptions
+      );
+      for (String gtfsFileName : gtfsFileNames.stream().sorted().toList()) {
+        try (InputStream gtfsStream = openGtfsArchive(source, gtfsFileName)) {
+          if (gtfsStream != null) {
+            gtfsFileMerger.appendGtfs(
+              gtfsFileName,
+              new BufferedInputStream(gtfsStream, READ_BUFFER_SIZE)
+            );
+          }
+        }
+      }
+
+      Map<GtfsMergeTarget, File> mergedFiles = packWorkingDirectories(
+        workingDirectories,
+        mergeOptions
+      );
+
+      LOGGER.debug(
+        "Read and merged GTFS-files - spent {} ms",
+        (System.currentTimeMillis() - t1)
+      );
+
+      return mergedFiles;
+    } finally {
+      for (Path workingDirectory : workingDirectories.values()) {
+        FileSystemUtils.deleteRecursively(workingDirectory);
+      }
+    }
+  }
+
+  private static InputStream openGtfsArchive(
+    GtfsArchiveSource source,
+    String gtfsFileName
+  ) throws IOException {
+    try {
+      return source.open(gtfsFileName);
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Failed to open GTFS file " + gtfsFileName, e);
+    }
+  }
+
+  private static File awaitFetchedFile(Future<File> fetchedFile)
+    throws IOException {
+    try {
+      return fetchedFile.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new IOException("Failed to fetch GTFS file", e.getCause());
+    }
+  }
+
+  /**
+   * Delete the GTFS archives that were fetched but not merged, if the merge failed.
+   */
+  private static void discardFetchedFiles(Queue<Future<File>> fetchedFiles) {
+    for (Future<File> fetchedFile : fetchedFiles) {
+      if (fetchedFile.state() == Future.State.SUCCESS) {
+        FileUtils.deleteQuietly(fetchedFile.resultNow());
+      } else {
+        fetchedFile.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Add the feed_info.txt entry to the merged GTFS entries in the working directories and zip them.
+   */
+  private static Map<GtfsMergeTarget, File> packWorkingDirectories(
+    Map<GtfsMergeTarget, Path> workingDirectories,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    Map<GtfsMergeTarget, File> mergedFiles = new LinkedHashMap<>();
+    for (GtfsMergeTarget target : workingDirectories.keySet()) {
+      Path workingDirectory = workingDirectories.get(target);
       Files.write(
         workingDirectory.resolve(FEED_INFO_FILE_NAME),
         FEED_INFO_FILE_CONTENT
@@ -125,17 +716,187 @@ public class GtfsFileUtils {
       File mergedFile = Files
         .createTempFile("marduk-merge-gtfs-merged", ".zip")
         .toFile();
-      ZipUtil.pack(workingDirectory.toFile(), mergedFile);
-      //            ZipFileUtils.zipFilesInFolder(workingDirectory.toString(), mergedFile.toString());
+      mergedFiles.put(target, mergedFile);
+      packDirectory(
+        workingDirectory,
+        mergedFile.toPath(),
+        metricsOutput(target),
+        mergeOptions.compression()
+      );
+    }
+    return mergedFiles;
+  }
+
+  /**
+   * Merge a collection of GTFS files entry by entry directly into one zip file per target and add the feed_info.txt
+   * entry, without working directory.
+   */
+  private static Map<GtfsMergeTarget, File> streamGtfsFiles(
+    Collection<File> zipFiles,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    long t1 = System.currentTimeMillis();
+    LOGGER.debug(
+      "Streaming GTFS files for targets {} with options {}",
+      targets,
+      mergeOptions
+    );
+
+    Map<GtfsMergeTarget, File> mergedFiles = new LinkedHashMap<>();
+    Map<GtfsMergeTarget, ParallelZipOutputStream> zipOutputStreams =
+      new LinkedHashMap<>();
+    int compressionParallelism = mergeOptions.compressionParallelism();
+    ExecutorService compressionExecutor = compressionParallelism > 1
+      ? Executors.newFixedThreadPool(compressionParallelism)
+      : null;
+    boolean merged = false;
+    try {
+      for (GtfsMergeTarget target : targets) {
+        File mergedFile = Files
+          .createTempFile("marduk-merge-gtfs-merged", ".zip")
+          .toFile();
+        mergedFiles.put(target, mergedFile);
+        zipOutputStreams.put(
+          target,
+          new ParallelZipOutputStream(
+            mergedFile.toPath(),
+            metricsOutput(target),
+            mergeOptions.compression(),
+            compressionExecutor,
+            compressionParallelism
+          )
+        );
+      }
+
+      GtfsFileMerger gtfsFileMerger = GtfsFileMerger.toZipOutputStreams(
+        zipOutputStreams,
+        mergeOptions
+      );
+      ExecutorService executorService = mergeOptions.parallelism() > 1
+        ? Executors.newFixedThreadPool(mergeOptions.parallelism())
+        : null;
+      try {
+        gtfsFileMerger.writeGtfsFiles(List.copyOf(zipFiles), executorService);
+      } finally {
+        if (executorService != null) {
+          executorService.shutdownNow();
+        }
+      }
+
+      for (ParallelZipOutputStream zipStream : zipOutputStreams.values()) {
+        zipStream.putNextEntry(FEED_INFO_FILE_NAME);
+        zipStream.write(FEED_INFO_FILE_CONTENT);
+        zipStream.closeEntry();
+        zipStream.close();
+      }
+      merged = true;
 
       LOGGER.debug(
-        "Merged GTFS-files - spent {} ms",
+        "Streamed GTFS-files - spent {} ms",
         (System.currentTimeMillis() - t1)
       );
 
-      return mergedFile;
+      return mergedFiles;
+    } finally {
+      if (!merged) {
+        zipOutputStreams.values().forEach(IOUtils::closeQuietly);
+        mergedFiles.values().forEach(FileUtils::deleteQuietly);
+      }
+      if (compressionExecutor != null) {
+        compressionExecutor.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Zip the files of a directory, in alphabetical order.
+   */
+  private static void packDirectory(
+    Path directory,
+    Path zipFile,
+    String output,
+    ZipCompression compression
+  ) throws IOException {
+    List<Path> files;
+    try (Stream<Path> directoryFiles = Files.list(directory)) {
+      files = directoryFiles.filter(Files::isRegularFile).sorted().toList();
+    }
+    try (
+      ParallelZipOutputStream zipOutputStream = new ParallelZipOutputStream(
+        zipFile,
+        output,
+        compression,
+        null,
+        1
+      )
+    ) {
+      for (Path file : files) {
+        zipOutputStream.putNextEntry(file.getFileName().toString());
+        Files.copy(file, zipOutputStream);
+        zipOutputStream.closeEntry();
+      }
+    }
+  }
+
+  private static String metricsOutput(GtfsMergeTarget target) {
+    return "merge-" + target.gtfsExport().name().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Copy a zip archive entry by entry with the given compression. Directory entries are not copied.
+   * This adapts an archive produced by a third party to its consumer: for example a high compression level for an
+   * archive that is published, or no compression for an archive that is read again right away.
+   *
+   * @param zipContent  the zip archive.
+   * @param output      the name of the output in the compression metrics.
+   * @param compression the compression of the copy.
+   * @return a delete-on-close input stream referring to the copy.
+   */
+  public static InputStream recompressToInputStream(
+    InputStream zipContent,
+    String output,
+    ZipCompression compression
+  ) throws IOException {
+    Path sourceFile = Files.createTempFile("damu-recompress-source", ".zip");
+    Path targetFile = null;
+    boolean recompressed = false;
+    try {
+      Files.copy(zipContent, sourceFile, StandardCopyOption.REPLACE_EXISTING);
+      targetFile = Files.createTempFile("damu-recompress-target", ".zip");
+      try (
+        ZipFile zipFile = new ZipFile(sourceFile.toFile());
+        ParallelZipOutputStream zipOutputStream = new ParallelZipOutputStream(
+          targetFile,
+          output,
+          compression,
+          null,
+          1
+        )
+      ) {
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+        while (zipEntries.hasMoreElements()) {
+          ZipEntry zipEntry = zipEntries.nextElement();
+          if (zipEntry.isDirectory()) {
+            continue;
+          }
+          zipOutputStream.putNextEntry(zipEntry.getName());
+          try (InputStream entryContent = zipFile.getInputStream(zipEntry)) {
+            entryContent.transferTo(zipOutputStream);
+          }
+          zipOutputStream.closeEntry();
+        }
+      }
+      InputStream recompressedContent = createDeleteOnCloseInputStream(
+        targetFile.toFile()
+      );
+      recompressed = true;
+      return recompressedContent;
     } finally {
-      FileSystemUtils.deleteRecursively(workingDirectory);
+      Files.deleteIfExists(sourceFile);
+      if (!recompressed && targetFile != null) {
+        Files.deleteIfExists(targetFile);
+      }
     }
   }
 
@@ -0,0 +1,448 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+/**
+ * Cache of GTFS archives converted into merge fragments, for incremental merges.
+ * A fragment is a GTFS entry of a single GTFS archive as it is merged into a target: converted to the target headers,
+ * with route types mapped, shapes removed and duplicates within the archive removed.
+ * Fragments are stored by content hash of the GTFS archive, so that a GTFS archive that did not change since the
+ * previous merge is not parsed again. A merge then only concatenates the fragments, and reads the stops and transfers
+ * fragments to remove the duplicates across GTFS archives.
+ * The cache keeps only the fragments of the GTFS archives of the latest merge.
+ * Merges using the same cache must be serialized by synchronizing on the cache.
+ * The cache is best-effort: a cache directory that is lost, for instance on ephemeral storage when the application
+ * restarts, only makes the next merge convert all the GTFS archives again.
+ */
+public final class GtfsFragmentCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    GtfsFragmentCache.class
+  );
+
+  /**
+   * Version of the fragment format, to be incremented whenever the conversion of the GTFS entries changes, so that
+   * fragments converted by a previous version are not reused.
+   */
+  private static final int FRAGMENT_VERSION = 2;
+
+  private static final String BUILD_DIRECTORY_PREFIX = "build-";
+  private static final byte[] CRLF = { '\r', '\n' };
+  private static final int READ_BUFFER_SIZE = 65536;
+
+  private final Path cacheDirectory;
+
+  /**
+   * @param cacheDirectory the directory where fragments are stored. Created if it does not exist.
+   */
+  public GtfsFragmentCache(Path cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  /**
+   * The fragments of a GTFS archive.
+   *
+   * @param gtfsFileName the name of the GTFS archive.
+   * @param directory    the directory containing one sub-directory of fragments per type of target.
+   */
+  record Fragments(String gtfsFileName, Path directory) {}
+
+  /**
+   * Return the fragments of the given GTFS archives for the given targets, converting the GTFS archives that are not
+   * in the cache yet. Fragments of GTFS archives that are not part of this merge are removed from the cache.
+   * When the merge parallelism is greater than 1, as many GTFS archives are converted concurrently.
+   *
+   * @param gtfsFiles    the GTFS archives, in merge order.
+   * @param targets      the targets of the merge.
+   * @param mergeOptions the merge tuning options used for converting the GTFS archives.
+   * @return the fragments of each GTFS archive, in merge order.
+   */
+  List<Fragments> update(
+    List<File> gtfsFiles,
+    List<GtfsMergeTarget> targets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    Files.createDirectories(cacheDirectory);
+    Map<String, GtfsMergeTarget> fragmentTargets = new LinkedHashMap<>();
+    for (GtfsMergeTarget target : targets) {
+      fragmentTargets.put(
+        fragmentKey(target),
+        new GtfsMergeTarget(target.gtfsExport(), target.includeShapes())
+      );
+    }
+
+    List<Fragments> fragments = gtfsFiles
+      .stream()
+      .map(gtfsFile ->
+        new Fragments(
+          gtfsFile.getName(),
+          cacheDirectory.resolve(archiveKey(gtfsFile))
+        )
+      )
+      .toList();
+    // identical GTFS archives share their fragments and are converted once
+    Map<Path, File> archives = new LinkedHashMap<>();
+    for (int i = 0; i < gtfsFiles.size(); i++) {
+      archives.putIfAbsent(fragments.get(i).directory(), gtfsFiles.get(i));
+    }
+    int converted = convertAllIfMissing(
+      archives,
+      fragmentTargets,
+      mergeOptions
+    );
+    LOGGER.info(
+      "Converted {} of {} GTFS files into merge fragments, reused the others from the cache",
+      converted,
+      gtfsFiles.size()
+    );
+
+    evictAllBut(
+      fragments
+        .stream()
+        .map(Fragments::directory)
+        .collect(Collectors.toSet())
+    );
+    return fragments;
+  }
+
+  /**
+   * Write the merged GTFS entries of a target into a zip output stream by concatenating the fragments of the
+   * GTFS archives it includes, and removing duplicated stops and transfers.
+   *
+   * @param target          the merge target.
+   * @param fragments       the fragments of the GTFS archives, in merge order.
+   * @param zipOutputStream the zip output stream receiving the merged GTFS entries. Not closed.
+   * @param dedupIndexType  the type of index used for removing duplicates.
+   */
+  static void writeEntries(
+    GtfsMergeTarget target,
+    List<Fragments> fragments,
+    ParallelZipOutputStream zipOutputStream,
+    GtfsMergeOptions.DedupIndexType dedupIndexType
+  ) throws IOException {
+    String fragmentKey = fragmentKey(target);
+    List<String> entryNames = target
+      .gtfsExport()
+      .getHeaders()
+      .keySet()
+      .stream()
+      .filter(target::accepts)
+      .sorted()
+      .toList();
+    for (String entryName : entryNames) {
+      List<Path> entryFragments = fragments
+        .stream()
+        .filter(fragment ->
+          !target.excludedGtfsFiles().contains(fragment.gtfsFileName())
+        )
+        .map(fragment ->
+          fragment.directory().resolve(fragmentKey).resolve(entryName)
+        )
+        .filter(Files::exists)
+        .toList();
+      if (entryFragments.isEmpty()) {
+        continue;
+      }
+      String[] targetHeaders = target.gtfsExport().getHeaders().get(entryName);
+      zipOutputStream.putNextEntry(entryName);
+      zipOutputStream.write(
+        String.join(",", targetHeaders).getBytes(StandardCharsets.UTF_8)
+      );
+      zipOutputStream.write(CRLF);
+      if (GtfsConstants.STOPS_TXT.equals(entryName)) {
+        DedupIndex stopIds = DedupIndex.create(dedupIndexType, 1, 150000);
+        int stopIdIndex = Arrays.asList(targetHeaders).indexOf("stop_id");
+        appendNewRows(
+          entryFragments,
+          zipOutputStream,
+          row ->
+            stopIds.add(
+              0,
+              row.chars(),
+              row.fieldStart(stopIdIndex),
+              row.fieldEnd(stopIdIndex)
+            )
+        );
+      } else if (GtfsConstants.TRANSFERS_TXT.equals(entryName)) {
+        DedupIndex transfers = DedupIndex.create(dedupIndexType, 1, 15000);
+        DedupKey transferKey = new DedupKey();
+        appendNewRows(
+          entryFragments,
+          zipOutputStream,
+          row -> {
+            transferKey.clear();
+            for (int i = 0; i < row.size(); i++) {
+              transferKey.addField(
+                row.chars(),
+                row.fieldStart(i),
+                row.fieldEnd(i)
+              );
+            }
+            return transferKey.addTo(transfers, 0);
+          }
+        );
+      } else {
+        for (Path entryFragment : entryFragments) {
+          appendRows(entryFragment, zipOutputStream);
+        }
+      }
+      zipOutputStream.closeEntry();
+    }
+  }
+
+  /**
+   * Convert GTFS archives into fragments for the targets whose fragments are not in the cache yet, with one worker
+   * per GTFS archive up to the merge parallelism.
+   *
+   * @param archives the GTFS archives, by directory of their fragments.
+   * @return the number of converted GTFS archives.
+   */
+  private int convertAllIfMissing(
+    Map<Path, File> archives,
+    Map<String, GtfsMergeTarget> fragmentTargets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    int converted = 0;
+    if (mergeOptions.parallelism() <= 1) {
+      for (Map.Entry<Path, File> archive : archives.entrySet()) {
+        if (
+          convertIfMissing(
+            archive.getValue(),
+            archive.getKey(),
+            fragmentTargets,
+            mergeOptions
+          )
+        ) {
+          converted++;
+        }
+      }
+      return converted;
+    }
+
+    ExecutorService executorService = Executors.newFixedThreadPool(
+      mergeOptions.parallelism()
+    );
+    try {
+      List<Future<Boolean>> conversions = new ArrayList<>();
+      archives.forEach((archiveDirectory, gtfsFile) ->
+        conversions.add(
+          executorService.submit(() ->
+            convertIfMissing(
+              gtfsFile,
+              archiveDirectory,
+              fragmentTargets,
+              mergeOptions
+            )
+          )
+        )
+      );
+      for (Future<Boolean> conversion : conversions) {
+        if (conversion.get()) {
+          converted++;
+        }
+      }
+      return converted;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  /**
+   * Convert a GTFS archive into fragments for the targets whose fragments are not in the cache yet.
+   * The fragments are first written into a build directory and then moved into the cache, so that the cache never
+   * contains incomplete fragments.
+   *
+   * @return true if the GTFS archive was converted.
+   */
+  private boolean convertIfMissing(
+    File gtfsFile,
+    Path archiveDirectory,
+    Map<String, GtfsMergeTarget> fragmentTargets,
+    GtfsMergeOptions mergeOptions
+  ) throws IOException {
+    List<String> missingFragmentKeys = fragmentTargets
+      .keySet()
+      .stream()
+      .filter(fragmentKey ->
+        !Files.isDirectory(archiveDirectory.resolve(fragmentKey))
+      )
+      .toList();
+    if (missingFragmentKeys.isEmpty()) {
+      LOGGER.debug("Reusing merge fragments of {}", gtfsFile.getName());
+      return false;
+    }
+
+    LOGGER.debug("Converting {} into merge fragments", gtfsFile.getName());
+    Path buildDirectory = Files.createTempDirectory(
+      cacheDirectory,
+      BUILD_DIRECTORY_PREFIX
+    );
+    try {
+      Map<GtfsMergeTarget, Path> workingDirectories = new LinkedHashMap<>();
+      for (String fragmentKey : missingFragmentKeys) {
+        workingDirectories.put(
+          fragmentTargets.get(fragmentKey),
+          Files.createDirectory(buildDirectory.resolve(fragmentKey))
+        );
+      }
+      new GtfsFileMerger(workingDirectories, mergeOptions).appendGtfs(gtfsFile);
+      Files.createDirectories(archiveDirectory);
+      for (Path workingDirectory : workingDirectories.values()) {
+        Files.move(
+          workingDirectory,
+          archiveDirectory.resolve(workingDirectory.getFileName()),
+          StandardCopyOption.ATOMIC_MOVE
+        );
+      }
+      return true;
+    } finally {
+      FileSystemUtils.deleteRecursively(buildDirectory);
+    }
+  }
+
+  /**
+   * Remove from the cache the fragments of the GTFS archives that are not in use, as well as the leftovers of
+   * interrupted conversions.
+   */
+  private void evictAllBut(Set<Path> archiveDirectories) throws IOException {
+    List<Path> unused;
+    try (Stream<Path> cachedDirectories = Files.list(cacheDirectory)) {
+      unused =
+        cachedDirectories
+          .filter(directory -> !archiveDirectories.contains(directory))
+          .toList();
+    }
+    for (Path directory : unused) {
+      LOGGER.debug("Removing unused merge fragments {}", directory);
+      FileSystemUtils.deleteRecursively(directory);
+    }
+  }
+
+  /**
+   * Append the rows of a fragment, without its header line, as is.
+   */
+  private static void appendRows(Path entryFragment, OutputStream outputStream)
+    throws IOException {
+    try (
+      InputStream fragmentStream = new BufferedInputStream(
+        Files.newInputStream(entryFragment),
+        READ_BUFFER_SIZE
+      )
+    ) {
+      int b = fragmentStream.read();
+      while (b != -1 && b != '\n') {
+        b = fragmentStream.read();
+      }
+      fragmentStream.transferTo(outputStream);
+    }
+  }
+
+  /**
+   * Append the rows of a list of fragments that are accepted by a duplicate filter.
+   */
+  private static void appendNewRows(
+    List<Path> entryFragments,
+    OutputStream outputStream,
+    Predicate<GtfsCsvRow> isNew
+  ) throws IOException {
+    GtfsCsvWriter csvWriter = new GtfsCsvWriter(
+      new BufferedWriter(
+        new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)
+      )
+    );
+    GtfsCsvRow row = new GtfsCsvRow();
+    for (Path entryFragment : entryFragments) {
+      try (
+        BufferedReader reader = Files.newBufferedReader(
+          entryFragment,
+          StandardCharsets.UTF_8
+        )
+      ) {
+        GtfsCsvReader csvReader = new GtfsCsvReader(reader);
+        // skip the header line
+        csvReader.readRow(row);
+        while (csvReader.readRow(row)) {
+          if (isNew.test(row)) {
+            csvWriter.writeRow(row);
+          }
+        }
+      }
+    }
+    // the output stream is owned by the caller and must not be closed
+    csvWriter.flush();
+  }
+
+  /**
+   * Key of the fragments of a target. Targets that differ only by their excluded GTFS archives share their fragments.
+   */
+  private static String fragmentKey(GtfsMergeTarget target) {
+    return (
+      target.gtfsExport().name().toLowerCase(Locale.ROOT) +
+      (target.includeShapes() ? "-shapes" : "")
+    );
+  }
+
+  /**
+   * Key of the fragments of a GTFS archive: the SHA-256 hash of its content and the version of the fragment format.
+   */
+  private static String archiveKey(File gtfsFile) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      try (InputStream gtfsStream = Files.newInputStream(gtfsFile.toPath())) {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int read = gtfsStream.read(buffer);
+        while (read != -1) {
+          digest.update(buffer, 0, read);
+          read = gtfsStream.read(buffer);
+        }
+      }
+      return (
+        HexFormat.of().formatHex(digest.digest()) + "-v" + FRAGMENT_VERSION
+      );
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
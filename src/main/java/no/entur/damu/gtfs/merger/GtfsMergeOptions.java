@@ -0,0 +1,124 @@
+package no.entur.damu.gtfs.merger;
+
+/**
+ * Tuning options of a GTFS merge. The options do not change the content of the merged GTFS archives.
+ *
+ * @param parallelism the number of GTFS entries merged concurrently. 1 merges the archives sequentially.
+ * @param rowBuffer   whether GTFS records are parsed and written through a reusable row buffer instead of one
+ *                    CSVRecord per row.
+ * @param dedupIndex  the data structure holding the keys of the records already merged, for removing duplicates.
+ * @param streaming   whether merged entries are written directly into the merged zip archives instead of being
+ *                    written to a working directory and zipped afterwards.
+ * @param compressionParallelism in streaming mode, the number of threads compressing the blocks of the merged zip
+ *                    entries. 1 compresses the entries in the merging threads.
+ * @param compression the compression level of the merged zip entries.
+ */
+public record GtfsMergeOptions(
+  int parallelism,
+  boolean rowBuffer,
+  DedupIndexType dedupIndex,
+  boolean streaming,
+  int compressionParallelism,
+  ZipCompression compression
+) {
+  public static final GtfsMergeOptions DEFAULT = new GtfsMergeOptions(
+    1,
+    false,
+    DedupIndexType.HASH_SET,
+    false,
+    1,
+    ZipCompression.DEFAULT
+  );
+
+  public enum DedupIndexType {
+    /**
+     * One HashSet of strings per merge target.
+     */
+    HASH_SET,
+    /**
+     * A single primitive hash table shared by all merge targets, storing keys in a byte arena.
+     */
+    COMPACT,
+  }
+
+  public GtfsMergeOptions {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException(
+        "Invalid merge parallelism: " + parallelism
+      );
+    }
+    if (compressionParallelism < 1) {
+      throw new IllegalArgumentException(
+        "Invalid compression parallelism: " + compressionParallelism
+      );
+    }
+  }
+
+  public GtfsMergeOptions withParallelism(int parallelism) {
+    return new GtfsMergeOptions(
+      parallelism,
+      rowBuffer,
+      dedupIndex,
+      streaming,
+      compressionParallelism,
+      compression
+    );
+  }
+
+  public GtfsMergeOptions withRowBuffer(boolean rowBuffer) {
+    return new GtfsMergeOptions(
+      parallelism,
+      rowBuffer,
+      dedupIndex,
+      streaming,
+      compressionParallelism,
+      compression
+    );
+  }
+
+  public GtfsMergeOptions withDedupIndex(DedupIndexType dedupIndex) {
+    return new GtfsMergeOptions(
+      parallelism,
+      rowBuffer,
+      dedupIndex,
+      streaming,
+      compressionParallelism,
+      compression
+    );
+  }
+
+  public GtfsMergeOptions withStreaming(boolean streaming) {
+    return new GtfsMergeOptions(
+      parallelism,
+      rowBuffer,
+      dedupIndex,
+      streaming,
+      compressionParallelism,
+      compression
+    );
+  }
+
+  public GtfsMergeOptions withCompressionParallelism(
+    int compressionParallelism
+  ) {
+    return new GtfsMergeOptions(
+      parallelism,
+      rowBuffer,
+      dedupIndex,
+      streaming,
+      compressionParallelism,
+      compression
+    );
+  }
+
+  public GtfsMergeOptions withCompression(ZipCompression compression) {
+    return new GtfsMergeOptions(
+      parallelism,
+      rowBuffer,
+      dedupIndex,
+      streaming,
+      compressionParallelism,
+      compression
+    );
+  }
+}
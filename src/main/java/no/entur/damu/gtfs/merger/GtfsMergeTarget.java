@@ -0,0 +1,39 @@
+package no.entur.damu.gtfs.merger;
+
+import java.util.Set;
+
+/**
+ * An output of a GTFS merge.
+ * Several targets can be produced by the same merge, so that the source GTFS archives are read only once.
+ *
+ * @param gtfsExport        the type of GTFS export.
+ * @param includeShapes     whether shapes.txt and the shape ids in trips.txt are kept.
+ * @param excludedGtfsFiles names of the GTFS archives that are not merged into this target.
+ */
+public record GtfsMergeTarget(
+  GtfsExport gtfsExport,
+  boolean includeShapes,
+  Set<String> excludedGtfsFiles
+) {
+  public GtfsMergeTarget(GtfsExport gtfsExport, boolean includeShapes) {
+    this(gtfsExport, includeShapes, Set.of());
+  }
+
+  public GtfsMergeTarget {
+    excludedGtfsFiles = Set.copyOf(excludedGtfsFiles);
+  }
+
+  /**
+   * Return true if the given GTFS entry from the given GTFS archive is merged into this target.
+   */
+  boolean accepts(String gtfsFileName, String entryName) {
+    return accepts(entryName) && !excludedGtfsFiles.contains(gtfsFileName);
+  }
+
+  /**
+   * Return true if the given GTFS entry is merged into this target.
+   */
+  boolean accepts(String entryName) {
+    return includeShapes || !GtfsConstants.SHAPES_TXT.equals(entryName);
+  }
+}
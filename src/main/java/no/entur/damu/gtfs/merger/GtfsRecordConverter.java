@@ -0,0 +1,217 @@
+package no.entur.damu.gtfs.merger;
+
+import static no.entur.damu.gtfs.merger.GtfsExport.GTFS_EXTENDED;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Convert the records of a GTFS entry into the target headers of a merge target.
+ * The conversion is compiled once per entry and source header layout into an array of column converters indexed by
+ * target column, so that converting a record requires neither header lookups nor header name comparisons.
+ */
+final class GtfsRecordConverter {
+
+  /**
+   * GTFS fields whose default value 0 is converted into an empty string.
+   */
+  private static final Set<String> ZERO_AS_EMPTY_HEADERS = Set.of(
+    "wheelchair_accessible",
+    "location_type",
+    "drop_off_type",
+    "pickup_type"
+  );
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    GtfsRecordConverter.class
+  );
+
+  enum ColumnConverter {
+    /**
+     * Keep the value as is.
+     */
+    IDENTITY,
+    /**
+     * Convert the default value 0 into an empty string, for compatibility with the original merge algorithm.
+     */
+    ZERO_AS_EMPTY,
+    /**
+     * Convert an extended route type into a basic route type.
+     */
+    BASIC_ROUTE_TYPE,
+    /**
+     * Drop the value.
+     */
+    DROP,
+  }
+
+  private final int[] sourceIndexes;
+  private final ColumnConverter[] columnConverters;
+  private final boolean identity;
+
+  private GtfsRecordConverter(
+    int[] sourceIndexes,
+    ColumnConverter[] columnConverters,
+    boolean identity
+  ) {
+    this.sourceIndexes = sourceIndexes;
+    this.columnConverters = columnConverters;
+    this.identity = identity;
+  }
+
+  /**
+   * Compile the conversion of a GTFS entry into the target headers of a merge target.
+   *
+   * @param target        the merge target.
+   * @param targetHeaders the headers of the entry in the merge target.
+   * @param sourceHeaders the headers of the entry in the source GTFS archive, in column order.
+   */
+  static GtfsRecordConverter compile(
+    GtfsMergeTarget target,
+    String[] targetHeaders,
+    List<String> sourceHeaders
+  ) {
+    Map<String, Integer> sourceIndexByHeader = new TreeMap<>(
+      String.CASE_INSENSITIVE_ORDER
+    );
+    for (int i = 0; i < sourceHeaders.size(); i++) {
+      String sourceHeader = sourceHeaders.get(i);
+      if (sourceHeader != null) {
+        sourceIndexByHeader.put(sourceHeader.trim(), i);
+      }
+    }
+
+    int[] sourceIndexes = new int[targetHeaders.length];
+    ColumnConverter[] columnConverters =
+      new ColumnConverter[targetHeaders.length];
+    boolean identity = sourceHeaders.size() == targetHeaders.length;
+    for (int i = 0; i < targetHeaders.length; i++) {
+      sourceIndexes[i] =
+        sourceIndexByHeader.getOrDefault(targetHeaders[i], -1);
+      columnConverters[i] = columnConverter(target, targetHeaders[i]);
+      identity &=
+        sourceIndexes[i] == i &&
+        columnConverters[i] == ColumnConverter.IDENTITY;
+    }
+    return new GtfsRecordConverter(sourceIndexes, columnConverters, identity);
+  }
+
+  private static ColumnConverter columnConverter(
+    GtfsMergeTarget target,
+    String header
+  ) {
+    if (ZERO_AS_EMPTY_HEADERS.contains(header)) {
+      return ColumnConverter.ZERO_AS_EMPTY;
+    }
+    if (
+      ("route_type".equals(header) || "vehicle_type".equals(header)) &&
+      target.gtfsExport() != GTFS_EXTENDED
+    ) {
+      return ColumnConverter.BASIC_ROUTE_TYPE;
+    }
+    if ("shape_id".equals(header) && !target.includeShapes()) {
+      return ColumnConverter.DROP;
+    }
+    return ColumnConverter.IDENTITY;
+  }
+
+  /**
+   * Return true if the source records are identical to the converted records, that is if the source headers are
+   * the target headers and no value is converted.
+   */
+  boolean isIdentity() {
+    return identity;
+  }
+
+  /**
+   * Convert a record into the target headers. Missing values are converted into empty strings.
+   */
+  List<String> convert(CSVRecord csvRecord) {
+    String[] targetValues = new String[columnConverters.length];
+    for (int i = 0; i < columnConverters.length; i++) {
+      targetValues[i] = convertValue(csvRecord, i);
+    }
+    return Arrays.asList(targetValues);
+  }
+
+  private String convertValue(CSVRecord csvRecord, int targetIndex) {
+    int sourceIndex = sourceIndexes[targetIndex];
+    if (sourceIndex < 0 || sourceIndex >= csvRecord.size()) {
+      return "";
+    }
+    String value = csvRecord.get(sourceIndex);
+    if (value.isEmpty()) {
+      return "";
+    }
+    return switch (columnConverters[targetIndex]) {
+      case IDENTITY -> value;
+      case ZERO_AS_EMPTY -> "0".equals(value) ? "" : value;
+      case BASIC_ROUTE_TYPE -> convertToBasicRouteType(csvRecord, value);
+      case DROP -> "";
+    };
+  }
+
+  /**
+   * Convert a row into the target headers, in place of the previous content of the target row.
+   * Missing values are converted into empty strings. Apart from route type conversion, no object is allocated.
+   */
+  void convert(GtfsCsvRow sourceRow, GtfsCsvRow targetRow) {
+    targetRow.clear();
+    for (int i = 0; i < columnConverters.length; i++) {
+      int sourceIndex = sourceIndexes[i];
+      if (
+        sourceIndex < 0 ||
+        sourceIndex >= sourceRow.size() ||
+        sourceRow.isEmpty(sourceIndex)
+      ) {
+        targetRow.addEmptyField();
+        continue;
+      }
+      switch (columnConverters[i]) {
+        case IDENTITY -> targetRow.addField(sourceRow, sourceIndex);
+        case ZERO_AS_EMPTY -> {
+          if (sourceRow.fieldEquals(sourceIndex, "0")) {
+            targetRow.addEmptyField();
+          } else {
+            targetRow.addField(sourceRow, sourceIndex);
+          }
+        }
+        case BASIC_ROUTE_TYPE -> targetRow.addField(
+          convertToBasicRouteType(sourceRow, sourceRow.getString(sourceIndex))
+        );
+        case DROP -> targetRow.addEmptyField();
+      }
+    }
+  }
+
+  /**
+   * @param record the record containing the route type, for logging purpose.
+   */
+  private static String convertToBasicRouteType(Object record, String value) {
+    int routeTypeCode;
+    try {
+      routeTypeCode = Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Invalid route type {}", value);
+      return value;
+    }
+    try {
+      return Integer.toString(
+        BasicRouteTypeCode.convertRouteType(routeTypeCode)
+      );
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn(
+        "Detected CSV record {} with unmappable route type {}. Converting to bus type by default.",
+        record,
+        routeTypeCode
+      );
+      return Integer.toString(BasicRouteTypeCode.BUS.getCode());
+    }
+  }
+}
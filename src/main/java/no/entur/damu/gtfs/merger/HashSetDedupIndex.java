@@ -0,0 +1,31 @@
+package no.entur.damu.gtfs.merger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Dedup index backed by one {@link HashSet} of strings per target.
+ */
+final class HashSetDedupIndex implements DedupIndex {
+
+  private final List<Set<String>> keysByTarget;
+
+  HashSetDedupIndex(int targetCount, int expectedSize) {
+    keysByTarget = new ArrayList<>(targetCount);
+    for (int i = 0; i < targetCount; i++) {
+      keysByTarget.add(HashSet.newHashSet(expectedSize));
+    }
+  }
+
+  @Override
+  public boolean add(int targetIndex, char[] chars, int start, int end) {
+    return add(targetIndex, new String(chars, start, end - start));
+  }
+
+  @Override
+  public boolean add(int targetIndex, String key) {
+    return keysByTarget.get(targetIndex).add(key);
+  }
+}
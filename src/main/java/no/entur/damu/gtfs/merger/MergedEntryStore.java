@@ -0,0 +1,20 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Destination of the merged GTFS entries of a merge target.
+ */
+interface MergedEntryStore {
+  /**
+   * Return true if data has already been appended to the merged entry, in which case the headers must not be
+   * written again.
+   */
+  boolean contains(String entryName);
+
+  /**
+   * Open the merged entry for appending. The returned stream must be closed by the caller.
+   */
+  OutputStream openForAppend(String entryName) throws IOException;
+}
@@ -0,0 +1,549 @@
+package no.entur.damu.gtfs.merger;
+
+import io.micrometer.core.instrument.Metrics;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Write a zip file whose entries are compressed in parallel.
+ * The data of an entry is split into blocks of {@link #BLOCK_SIZE} bytes that are deflated concurrently by the
+ * compression executor, each block using the last 32 KiB of the previous block as preset dictionary. Every block but
+ * the last one ends with a sync flush, so that the concatenated blocks form a single standard DEFLATE stream that any
+ * zip reader can inflate. The CRC-32 is computed by the writing thread.
+ * The number of blocks waiting for compression is bounded, which bounds the memory used by an entry regardless of
+ * its size.
+ * Local headers are patched once an entry is complete, so that the resulting zip file needs no data descriptor.
+ * ZIP64 extensions are used only for the entries and archives that exceed the limits of the zip format.
+ * Entries whose level is {@link ZipCompression#STORED} are written without compression.
+ * The number of bytes written and compressed and the time spent compressing are recorded as metrics, tagged with the
+ * name of the output.
+ * The stream is not thread-safe: entries must be written one at a time.
+ */
+public final class ParallelZipOutputStream extends OutputStream {
+
+  static final int BLOCK_SIZE = 1 << 20;
+
+  static final String METRIC_BYTES_IN = "damu.zip.bytes.in";
+  static final String METRIC_BYTES_OUT = "damu.zip.bytes.out";
+  static final String METRIC_COMPRESSION_TIME = "damu.zip.compression.time";
+  static final String METRIC_OUTPUT_TAG = "output";
+
+  private static final int DICTIONARY_SIZE = 32768;
+  private static final int DEFLATE_BUFFER_SIZE = 65536;
+
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int ZIP64_END_SIZE = 56;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int END_SIZE = 22;
+  private static final short VERSION = 20;
+  private static final short ZIP64_VERSION = 45;
+  private static final short UTF8_FLAG = 0x0800;
+  private static final short DEFLATED = 8;
+  private static final short STORED = 0;
+  private static final short ZIP64_EXTRA_ID = 0x0001;
+  // extra field reserved in the local header for the ZIP64 sizes, marked as alignment padding when not needed
+  private static final short PADDING_EXTRA_ID = (short) 0xd935;
+  private static final int LOCAL_EXTRA_SIZE = 20;
+  private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+  private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+  private final FileChannel channel;
+  private final String output;
+  private final ZipCompression compression;
+  private final ExecutorService compressionExecutor;
+  private final int maxPendingBlocks;
+  private final List<ZipEntryRecord> entries = new ArrayList<>();
+  private final Set<String> entryNames = new HashSet<>();
+  private final Queue<PendingBlock> pendingBlocks = new ArrayDeque<>();
+  private final Queue<byte[]> freeBlocks = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+  private final LongAdder compressionNanos = new LongAdder();
+
+  private long position;
+  private ZipEntryRecord currentEntry;
+  private byte[] block;
+  private int blockLength;
+  private byte[] previousBlock;
+  private byte[] lastWrittenBlock;
+  private boolean finished;
+
+  /**
+   * Create a zip file.
+   *
+   * @param file                   the zip file. An existing file is overwritten.
+   * @param output                 the name of the output in the compression metrics.
+   * @param compression            the compression level of the entries.
+   * @param compressionExecutor    the executor compressing the blocks. If null, blocks are compressed by the writing
+   *                               thread.
+   * @param compressionParallelism the number of threads of the compression executor.
+   */
+  public ParallelZipOutputStream(
+    Path file,
+    String output,
+    ZipCompression compression,
+    ExecutorService compressionExecutor,
+    int compressionParallelism
+  ) throws IOException {
+    this.channel =
+      FileChannel.open(
+        file,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING
+      );
+    this.output = output;
+    this.compression = compression;
+    this.compressionExecutor = compressionExecutor;
+    this.maxPendingBlocks = compressionExecutor == null
+      ? 0
+      : 2 * compressionParallelism;
+  }
+
+  /**
+   * Start a new entry, closing the current entry if any.
+   */
+  public void putNextEntry(String entryName) throws IOException {
+    ensureOpen();
+    if (currentEntry != null) {
+      closeEntry();
+    }
+    if (!entryNames.add(entryName)) {
+      throw new ZipException("duplicate entry: " + entryName);
+    }
+    currentEntry =
+      new ZipEntryRecord(
+        entryName.getBytes(StandardCharsets.UTF_8),
+        compression.levelFor(entryName),
+        dosTime(LocalDateTime.now()),
+        position
+      );
+    writeFully(localHeader(currentEntry));
+    crc.reset();
+    compressionNanos.reset();
+    block = newBlock();
+    blockLength = 0;
+    previousBlock = null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpenEntry();
+    block[blockLength++] = (byte) b;
+    crc.update(b);
+    currentEntry.size++;
+    if (blockLength == BLOCK_SIZE) {
+      submitBlock(false);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpenEntry();
+    crc.update(b, off, len);
+    currentEntry.size += len;
+    while (len > 0) {
+      int n = Math.min(len, BLOCK_SIZE - blockLength);
+      System.arraycopy(b, off, block, blockLength, n);
+      blockLength += n;
+      off += n;
+      len -= n;
+      if (blockLength == BLOCK_SIZE) {
+        submitBlock(false);
+      }
+    }
+  }
+
+  /**
+   * Complete the current entry: wait for the compression of its blocks and patch its local header.
+   */
+  public void closeEntry() throws IOException {
+    ensureOpenEntry();
+    submitBlock(true);
+    while (!pendingBlocks.isEmpty()) {
+      writeNextBlock();
+    }
+    freeBlocks.clear();
+    lastWrittenBlock = null;
+    previousBlock = null;
+    block = null;
+    currentEntry.crc = crc.getValue();
+    channel.write(localHeader(currentEntry), currentEntry.offset);
+    entries.add(currentEntry);
+    recordMetrics(currentEntry);
+    currentEntry = null;
+  }
+
+  private void recordMetrics(ZipEntryRecord entry) {
+    Metrics
+      .counter(METRIC_BYTES_IN, METRIC_OUTPUT_TAG, output)
+      .increment(entry.size);
+    Metrics
+      .counter(METRIC_BYTES_OUT, METRIC_OUTPUT_TAG, output)
+      .increment(entry.compressedSize);
+    Metrics
+      .timer(METRIC_COMPRESSION_TIME, METRIC_OUTPUT_TAG, output)
+      .record(compressionNanos.sum(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Complete the current entry if any and write the central directory, without closing the file.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    if (currentEntry != null) {
+      closeEntry();
+    }
+    long centralDirectoryOffset = position;
+    for (ZipEntryRecord entry : entries) {
+      writeFully(centralHeader(entry));
+    }
+    long centralDirectorySize = position - centralDirectoryOffset;
+    writeFully(
+      end(entries.size(), centralDirectoryOffset, centralDirectorySize)
+    );
+    finished = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Hand over the current block to the compression executor and write the blocks that are already compressed, waiting
+   * for the oldest ones if too many blocks are pending.
+   */
+  private void submitBlock(boolean last) throws IOException {
+    if (currentEntry.level == ZipCompression.STORED) {
+      writeFully(ByteBuffer.wrap(block, 0, blockLength));
+      currentEntry.compressedSize += blockLength;
+      blockLength = 0;
+      return;
+    }
+    byte[] data = block;
+    int length = blockLength;
+    byte[] dictionary = previousBlock;
+    int level = currentEntry.level;
+    Future<byte[]> compressed;
+    if (compressionExecutor == null) {
+      compressed =
+        CompletableFuture.completedFuture(
+          timedDeflate(level, dictionary, data, length, last)
+        );
+    } else {
+      compressed =
+        compressionExecutor.submit(() ->
+          timedDeflate(level, dictionary, data, length, last)
+        );
+    }
+    pendingBlocks.add(new PendingBlock(data, compressed));
+    previousBlock = data;
+    block = last ? null : newBlock();
+    blockLength = 0;
+    while (pendingBlocks.size() > maxPendingBlocks) {
+      writeNextBlock();
+    }
+  }
+
+  /**
+   * Write the oldest pending block. The block written before it is no longer used as a dictionary and is recycled.
+   */
+  private void writeNextBlock() throws IOException {
+    PendingBlock pendingBlock = pendingBlocks.remove();
+    byte[] compressed;
+    try {
+      compressed = pendingBlock.compressed.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+        "Interrupted while compressing zip entry"
+      );
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to compress zip entry", e.getCause());
+    }
+    writeFully(ByteBuffer.wrap(compressed));
+    currentEntry.compressedSize += compressed.length;
+    if (lastWrittenBlock != null) {
+      freeBlocks.add(lastWrittenBlock);
+    }
+    lastWrittenBlock = pendingBlock.data;
+  }
+
+  private byte[] newBlock() {
+    byte[] freeBlock = freeBlocks.poll();
+    return freeBlock == null ? new byte[BLOCK_SIZE] : freeBlock;
+  }
+
+  private byte[] timedDeflate(
+    int level,
+    byte[] dictionary,
+    byte[] data,
+    int length,
+    boolean last
+  ) {
+    long start = System.nanoTime();
+    byte[] deflated = deflate(level, dictionary, data, length, last);
+    compressionNanos.add(System.nanoTime() - start);
+    return deflated;
+  }
+
+  /**
+   * Deflate a block as a raw DEFLATE fragment. All blocks but the last one end on a byte boundary with a sync flush,
+   * the last one terminates the DEFLATE stream.
+   */
+  static byte[] deflate(
+    int level,
+    byte[] dictionary,
+    byte[] data,
+    int length,
+    boolean last
+  ) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      if (dictionary != null) {
+        deflater.setDictionary(
+          dictionary,
+          dictionary.length - DICTIONARY_SIZE,
+          DICTIONARY_SIZE
+        );
+      }
+      deflater.setInput(data, 0, length);
+      ByteArrayOutputStream output = new ByteArrayOutputStream(
+        length / 2 + 64
+      );
+      byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+      if (last) {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buffer);
+          output.write(buffer, 0, n);
+        }
+      } else {
+        int n;
+        do {
+          n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+          output.write(buffer, 0, n);
+        } while (n == buffer.length);
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private ByteBuffer localHeader(ZipEntryRecord entry) {
+    boolean zip64 =
+      entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+    ByteBuffer header = newBuffer(
+      LOCAL_HEADER_SIZE + entry.name.length + LOCAL_EXTRA_SIZE
+    );
+    header.putInt(LOCAL_HEADER_SIGNATURE);
+    header.putShort(zip64 ? ZIP64_VERSION : VERSION);
+    header.putShort(UTF8_FLAG);
+    header.putShort(entry.method());
+    header.putInt(entry.dosTime);
+    header.putInt((int) entry.crc);
+    header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+    header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+    header.putShort((short) entry.name.length);
+    header.putShort((short) LOCAL_EXTRA_SIZE);
+    header.put(entry.name);
+    header.putShort(zip64 ? ZIP64_EXTRA_ID : PADDING_EXTRA_ID);
+    header.putShort((short) (LOCAL_EXTRA_SIZE - 4));
+    header.putLong(zip64 ? entry.size : 0);
+    header.putLong(zip64 ? entry.compressedSize : 0);
+    return header.flip();
+  }
+
+  private ByteBuffer centralHeader(ZipEntryRecord entry) {
+    boolean zip64Size = entry.size >= ZIP64_MAGIC;
+    boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+    boolean zip64Offset = entry.offset >= ZIP64_MAGIC;
+    int zip64Fields =
+      (zip64Size ? 1 : 0) +
+      (zip64CompressedSize ? 1 : 0) +
+      (zip64Offset ? 1 : 0);
+    int extraSize = zip64Fields == 0 ? 0 : 4 + 8 * zip64Fields;
+    short version = zip64Fields == 0 ? VERSION : ZIP64_VERSION;
+    ByteBuffer header = newBuffer(
+      CENTRAL_HEADER_SIZE + entry.name.length + extraSize
+    );
+    header.putInt(CENTRAL_HEADER_SIGNATURE);
+    header.putShort(version);
+    header.putShort(version);
+    header.putShort(UTF8_FLAG);
+    header.putShort(entry.method());
+    header.putInt(entry.dosTime);
+    header.putInt((int) entry.crc);
+    header.putInt(
+      (int) (zip64CompressedSize ? ZIP64_MAGIC : entry.compressedSize)
+    );
+    header.putInt((int) (zip64Size ? ZIP64_MAGIC : entry.size));
+    header.putShort((short) entry.name.length);
+    header.putShort((short) extraSize);
+    // comment length, disk number, internal and external attributes
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putShort((short) 0);
+    header.putInt(0);
+    header.putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.offset));
+    header.put(entry.name);
+    if (zip64Fields > 0) {
+      header.putShort(ZIP64_EXTRA_ID);
+      header.putShort((short) (8 * zip64Fields));
+      if (zip64Size) {
+        header.putLong(entry.size);
+      }
+      if (zip64CompressedSize) {
+        header.putLong(entry.compressedSize);
+      }
+      if (zip64Offset) {
+        header.putLong(entry.offset);
+      }
+    }
+    return header.flip();
+  }
+
+  private ByteBuffer end(
+    int entryCount,
+    long centralDirectoryOffset,
+    long centralDirectorySize
+  ) {
+    boolean zip64 =
+      entryCount >= ZIP64_MAGIC_COUNT ||
+      centralDirectoryOffset >= ZIP64_MAGIC ||
+      centralDirectorySize >= ZIP64_MAGIC;
+    ByteBuffer end = newBuffer(
+      (zip64 ? ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE : 0) + END_SIZE
+    );
+    if (zip64) {
+      long zip64EndOffset = centralDirectoryOffset + centralDirectorySize;
+      end.putInt(ZIP64_END_SIGNATURE);
+      end.putLong(ZIP64_END_SIZE - 12);
+      end.putShort(ZIP64_VERSION);
+      end.putShort(ZIP64_VERSION);
+      end.putInt(0);
+      end.putInt(0);
+      end.putLong(entryCount);
+      end.putLong(entryCount);
+      end.putLong(centralDirectorySize);
+      end.putLong(centralDirectoryOffset);
+      end.putInt(ZIP64_LOCATOR_SIGNATURE);
+      end.putInt(0);
+      end.putLong(zip64EndOffset);
+      end.putInt(1);
+    }
+    end.putInt(END_SIGNATURE);
+    end.putShort((short) 0);
+    end.putShort((short) 0);
+    short shortEntryCount = (short) Math.min(entryCount, ZIP64_MAGIC_COUNT);
+    end.putShort(shortEntryCount);
+    end.putShort(shortEntryCount);
+    end.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+    end.putInt((int) Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+    end.putShort((short) 0);
+    return end.flip();
+  }
+
+  private static ByteBuffer newBuffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private void writeFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer);
+    }
+  }
+
+  /**
+   * Convert a local date-time into the MS-DOS date and time fields of a zip header.
+   */
+  static int dosTime(LocalDateTime dateTime) {
+    if (dateTime.getYear() < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return (
+      ((dateTime.getYear() - 1980) << 25) |
+      (dateTime.getMonthValue() << 21) |
+      (dateTime.getDayOfMonth() << 16) |
+      (dateTime.getHour() << 11) |
+      (dateTime.getMinute() << 5) |
+      (dateTime.getSecond() >> 1)
+    );
+  }
+
+  private void ensureOpen() throws IOException {
+    if (finished) {
+      throw new IOException("Zip file already finished");
+    }
+  }
+
+  private void ensureOpenEntry() throws IOException {
+    if (currentEntry == null) {
+      throw new ZipException("no current zip entry");
+    }
+  }
+
+  private record PendingBlock(byte[] data, Future<byte[]> compressed) {}
+
+  /**
+   * The header fields of an entry, completed when the entry is closed.
+   */
+  private static final class ZipEntryRecord {
+
+    private final byte[] name;
+    private final int level;
+    private final int dosTime;
+    private final long offset;
+    private long crc;
+    private long size;
+    private long compressedSize;
+
+    private ZipEntryRecord(byte[] name, int level, int dosTime, long offset) {
+      this.name = name;
+      this.level = level;
+      this.dosTime = dosTime;
+      this.offset = offset;
+    }
+
+    private short method() {
+      return level == ZipCompression.STORED ? STORED : DEFLATED;
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Store the merged GTFS entries as files in a working directory, to be zipped once the merge is complete.
+ */
+final class WorkingDirectoryEntryStore implements MergedEntryStore {
+
+  private final Path workingDirectory;
+
+  WorkingDirectoryEntryStore(Path workingDirectory) {
+    this.workingDirectory = workingDirectory;
+  }
+
+  @Override
+  public boolean contains(String entryName) {
+    return Files.exists(workingDirectory.resolve(entryName));
+  }
+
+  @Override
+  public OutputStream openForAppend(String entryName) throws IOException {
+    return Files.newOutputStream(
+      workingDirectory.resolve(entryName),
+      StandardOpenOption.CREATE,
+      StandardOpenOption.APPEND
+    );
+  }
+}
@@ -0,0 +1,88 @@
+package no.entur.damu.gtfs.merger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Compression levels of the entries of a zip archive.
+ * Archives that are published are better compressed with a high level, while archives that are read again right away
+ * by Damu are better written with a fast level, or stored without compression.
+ *
+ * @param level       the DEFLATE compression level of the entries that have no specific level, from 0 to 9, -1 for
+ *                    the default level, or {@link #STORED} for entries stored without compression.
+ * @param entryLevels the compression level of specific entries, by entry name.
+ */
+public record ZipCompression(int level, Map<String, Integer> entryLevels) {
+  /**
+   * Level of the entries stored without compression.
+   */
+  public static final int STORED = -2;
+
+  public static final ZipCompression DEFAULT = new ZipCompression(
+    Deflater.DEFAULT_COMPRESSION,
+    Map.of()
+  );
+
+  public ZipCompression {
+    checkLevel(level);
+    entryLevels.values().forEach(ZipCompression::checkLevel);
+    entryLevels = Map.copyOf(entryLevels);
+  }
+
+  public static ZipCompression of(int level) {
+    return new ZipCompression(level, Map.of());
+  }
+
+  /**
+   * Parse a list of entry levels in the form "stop_times.txt=1,shapes.txt=STORED".
+   * A level is either a number from 0 to 9, DEFAULT or STORED.
+   *
+   * @param level       the compression level of the other entries.
+   * @param entryLevels the comma-separated list of entry levels. May be empty.
+   */
+  public static ZipCompression parse(String level, String entryLevels) {
+    Map<String, Integer> parsedEntryLevels = new HashMap<>();
+    for (String entryLevel : entryLevels.split(",")) {
+      if (entryLevel.isBlank()) {
+        continue;
+      }
+      String[] nameAndLevel = entryLevel.split("=");
+      if (nameAndLevel.length != 2) {
+        throw new IllegalArgumentException(
+          "Invalid entry compression level: " + entryLevel
+        );
+      }
+      parsedEntryLevels.put(
+        nameAndLevel[0].trim(),
+        parseLevel(nameAndLevel[1])
+      );
+    }
+    return new ZipCompression(parseLevel(level), parsedEntryLevels);
+  }
+
+  static int parseLevel(String level) {
+    return switch (level.trim()) {
+      case "STORED" -> STORED;
+      case "DEFAULT" -> Deflater.DEFAULT_COMPRESSION;
+      default -> Integer.parseInt(level.trim());
+    };
+  }
+
+  /**
+   * @return the compression level of the given entry.
+   */
+  public int levelFor(String entryName) {
+    return entryLevels.getOrDefault(entryName, level);
+  }
+
+  private static void checkLevel(int level) {
+    if (
+      level != STORED &&
+      level != Deflater.DEFAULT_COMPRESSION &&
+      (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+    ) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package no.entur.damu.gtfs.merger;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+/**
+ * Store the merged GTFS entries directly in a zip output stream.
+ * A zip output stream accepts only one entry at a time: an entry that is merged while another entry is being written
+ * to the zip output stream is spilled to a temporary file, and copied into the zip output stream by
+ * {@link #appendSpilledEntries()}.
+ * Entries are opened by {@link #beginEntry(String, boolean)} and closed by {@link #endEntry(String)} before and after
+ * merging the entry from every GTFS archive. The zip entry is created only when data is first appended.
+ */
+final class ZipEntryStore implements MergedEntryStore, Closeable {
+
+  private static final int SPILL_BUFFER_SIZE = 65536;
+
+  private final ParallelZipOutputStream zipOutputStream;
+  private final Map<String, EntrySink> entrySinks = new ConcurrentHashMap<>();
+  private final Queue<EntrySink> spilledEntries = new ConcurrentLinkedQueue<>();
+
+  ZipEntryStore(ParallelZipOutputStream zipOutputStream) {
+    this.zipOutputStream = zipOutputStream;
+  }
+
+  /**
+   * Start merging an entry.
+   *
+   * @param entryName the GTFS entry name.
+   * @param direct    true if the entry is written directly in the zip output stream, false if it is spilled to a
+   *                  temporary file.
+   */
+  void beginEntry(String entryName, boolean direct) throws IOException {
+    Path spillFile = direct
+      ? null
+      : Files.createTempFile("damu-merge-gtfs-entry", ".txt");
+    entrySinks.put(entryName, new EntrySink(entryName, spillFile));
+  }
+
+  /**
+   * Complete the merge of an entry. A directly written entry is closed in the zip output stream, a spilled entry is
+   * queued for {@link #appendSpilledEntries()}.
+   */
+  void endEntry(String entryName) throws IOException {
+    EntrySink entrySink = entrySinks.remove(entryName);
+    if (entrySink == null) {
+      return;
+    }
+    if (entrySink.spillFile == null) {
+      if (entrySink.started) {
+        zipOutputStream.closeEntry();
+      }
+      return;
+    }
+    if (entrySink.outputStream != null) {
+      entrySink.outputStream.close();
+    }
+    if (entrySink.started) {
+      spilledEntries.add(entrySink);
+    } else {
+      Files.deleteIfExists(entrySink.spillFile);
+    }
+  }
+
+  /**
+   * Copy the spilled entries into the zip output stream and delete the temporary files.
+   * Must not be called while an entry is directly written to the zip output stream.
+   */
+  void appendSpilledEntries() throws IOException {
+    EntrySink entrySink = spilledEntries.poll();
+    while (entrySink != null) {
+      try {
+        zipOutputStream.putNextEntry(entrySink.entryName);
+        Files.copy(entrySink.spillFile, zipOutputStream);
+        zipOutputStream.closeEntry();
+      } finally {
+        Files.deleteIfExists(entrySink.spillFile);
+      }
+      entrySink = spilledEntries.poll();
+    }
+  }
+
+  @Override
+  public boolean contains(String entryName) {
+    return getEntrySink(entryName).started;
+  }
+
+  @Override
+  public OutputStream openForAppend(String entryName) throws IOException {
+    EntrySink entrySink = getEntrySink(entryName);
+    if (!entrySink.started) {
+      if (entrySink.spillFile == null) {
+        zipOutputStream.putNextEntry(entryName);
+        entrySink.outputStream = zipOutputStream;
+      } else {
+        entrySink.outputStream =
+          new BufferedOutputStream(
+            Files.newOutputStream(entrySink.spillFile),
+            SPILL_BUFFER_SIZE
+          );
+      }
+      entrySink.started = true;
+    }
+    return CloseShieldOutputStream.wrap(entrySink.outputStream);
+  }
+
+  /**
+   * Delete the temporary files of the entries that were not appended to the zip output stream, if the merge failed.
+   * The zip output stream itself is not closed.
+   */
+  @Override
+  public void close() throws IOException {
+    for (EntrySink entrySink : entrySinks.values()) {
+      if (entrySink.spillFile != null) {
+        if (entrySink.outputStream != null) {
+          entrySink.outputStream.close();
+        }
+        Files.deleteIfExists(entrySink.spillFile);
+      }
+    }
+    entrySinks.clear();
+    for (EntrySink entrySink : spilledEntries) {
+      Files.deleteIfExists(entrySink.spillFile);
+    }
+    spilledEntries.clear();
+  }
+
+  private EntrySink getEntrySink(String entryName) {
+    EntrySink entrySink = entrySinks.get(entryName);
+    if (entrySink == null) {
+      throw new IllegalStateException("Entry not started: " + entryName);
+    }
+    return entrySink;
+  }
+
+  /**
+   * The destination of an entry being merged. Accessed only by the worker merging the entry.
+   */
+  private static final class EntrySink {
+
+    private final String entryName;
+    private final Path spillFile;
+    private OutputStream outputStream;
+    private boolean started;
+
+    private EntrySink(String entryName, Path spillFile) {
+      this.entryName = entryName;
+      this.spillFile = spillFile;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+package no.entur.damu.gtfs.validator;
+
+import io.micrometer.core.instrument.Metrics;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Run GTFS validations under a limit on the number of concurrent validations and on the heap they are expected to
+ * use, so that validations wait for their turn instead of exhausting the heap.
+ * The heap used by a validation is estimated from the uncompressed size of the GTFS dataset, read from the zip
+ * central directory. A validation whose estimate exceeds the whole budget is admitted alone.
+ * The heap that the NeTEx shared data cache of the export may hold is left out of the budget, since the cache lives in
+ * the same JVM.
+ */
+@Component
+public class GtfsValidationExecutor {
+
+  public static final String METRIC_ACTIVE_VALIDATIONS =
+    "damu.gtfs.validation.active";
+  public static final String METRIC_WAITING_VALIDATIONS =
+    "damu.gtfs.validation.waiting";
+  public static final String METRIC_ADMITTED_BYTES =
+    "damu.gtfs.validation.admitted.bytes";
+  public static final String METRIC_HEAP_HEADROOM =
+    "damu.gtfs.validation.heap.headroom";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    GtfsValidationExecutor.class
+  );
+
+  private static final long MEGABYTE = 1024 * 1024;
+
+  private final Semaphore validationSlots;
+  private final Semaphore memoryPermits;
+  private final int memoryBudgetMegabytes;
+  private final double memoryFactor;
+  private final AtomicInteger activeValidations = new AtomicInteger();
+  private final AtomicInteger waitingValidations = new AtomicInteger();
+  private final AtomicLong admittedBytes = new AtomicLong();
+
+  /**
+   * @param concurrency    the maximum number of concurrent validations.
+   * @param memoryFraction the fraction of the maximum heap size that validations are allowed to use together.
+   * @param memoryFactor   the ratio between the heap used by a validation and the uncompressed size of the GTFS
+   *                       dataset.
+   * @param reservedMemory the heap in bytes reserved for the NeTEx shared data cache, deducted from the budget.
+   */
+  public GtfsValidationExecutor(
+    @Value("${damu.gtfs.validation.concurrency:1}") int concurrency,
+    @Value(
+      "${damu.gtfs.validation.memory.fraction:0.5}"
+    ) double memoryFraction,
+    @Value("${damu.gtfs.validation.memory.factor:8}") double memoryFactor,
+    @Value(
+      "${damu.gtfs.export.netex.shared.data.cache.max.heap:0}"
+    ) long reservedMemory
+  ) {
+    this.validationSlots = new Semaphore(concurrency, true);
+    this.memoryBudgetMegabytes =
+      (int) Math.max(
+        1,
+        (Runtime.getRuntime().maxMemory() * memoryFraction - reservedMemory) /
+        MEGABYTE
+      );
+    this.memoryPermits = new Semaphore(memoryBudgetMegabytes, true);
+    this.memoryFactor = memoryFactor;
+    Metrics.gauge(METRIC_ACTIVE_VALIDATIONS, activeValidations);
+    Metrics.gauge(METRIC_WAITING_VALIDATIONS, waitingValidations);
+    Metrics.gauge(METRIC_ADMITTED_BYTES, admittedBytes);
+    Metrics.gauge(
+      METRIC_HEAP_HEADROOM,
+      Runtime.getRuntime(),
+      runtime ->
+        runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())
+    );
+  }
+
+  /**
+   * Validate a GTFS dataset stored in a local file, once admitted.
+   */
+  public InputStream validate(String datasetReferential, File gtfsFile)
+    throws IOException, InterruptedException {
+    long estimatedBytes = estimateHeapUsage(uncompressedSize(gtfsFile));
+    return run(
+      datasetReferential,
+      estimatedBytes,
+      () -> GtfsValidator.validate(datasetReferential, gtfsFile.toPath())
+    );
+  }
+
+  /**
+   * Validate a GTFS dataset held in memory, once admitted.
+   */
+  public InputStream validate(String datasetReferential, byte[] gtfsContent)
+    throws IOException, InterruptedException {
+    long estimatedBytes = estimateHeapUsage(uncompressedSize(gtfsContent));
+    return run(
+      datasetReferential,
+      estimatedBytes,
+      () ->
+        GtfsValidator.validate(
+          datasetReferential,
+          new ByteArrayInputStream(gtfsContent)
+        )
+    );
+  }
+
+  long estimateHeapUsage(long uncompressedSize) {
+    return (long) (uncompressedSize * memoryFactor);
+  }
+
+  int memoryBudgetMegabytes() {
+    return memoryBudgetMegabytes;
+  }
+
+  private InputStream run(
+    String datasetReferential,
+    long estimatedBytes,
+    Validation validation
+  ) throws IOException, InterruptedException {
+    int memoryMegabytes = (int) Math.min(
+      memoryBudgetMegabytes,
+      Math.max(1, estimatedBytes / MEGABYTE)
+    );
+    long start = System.nanoTime();
+    waitingValidations.incrementAndGet();
+    try {
+      validationSlots.acquire();
+      try {
+        memoryPermits.acquire(memoryMegabytes);
+      } catch (InterruptedException e) {
+        validationSlots.release();
+        throw e;
+      }
+    } finally {
+      waitingValidations.decrementAndGet();
+    }
+    LOGGER.info(
+      "Admitted GTFS validation of {} with an estimated heap usage of {} MB after waiting {} ms",
+      datasetReferential,
+      memoryMegabytes,
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+    );
+    activeValidations.incrementAndGet();
+    admittedBytes.addAndGet(estimatedBytes);
+    try {
+      return validation.run();
+    } finally {
+      admittedBytes.addAndGet(-estimatedBytes);
+      activeValidations.decrementAndGet();
+      memoryPermits.release(memoryMegabytes);
+      validationSlots.release();
+    }
+  }
+
+  /**
+   * Sum the uncompressed sizes of the entries listed in the zip central directory.
+   */
+  static long uncompressedSize(File gtfsFile) throws IOException {
+    long size = 0;
+    try (ZipFile zipFile = new ZipFile(gtfsFile)) {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        size += Math.max(0, entries.nextElement().getSize());
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Measure the uncompressed size of an in-memory zip archive by inflating it.
+   */
+  static long uncompressedSize(byte[] gtfsContent) throws IOException {
+    long size = 0;
+    try (
+      ZipInputStream zipInputStream = new ZipInputStream(
+        new ByteArrayInputStream(gtfsContent)
+      )
+    ) {
+      while (zipInputStream.getNextEntry() != null) {
+        size += zipInputStream.transferTo(OutputStream.nullOutputStream());
+      }
+    }
+    return size;
+  }
+
+  @FunctionalInterface
+  private interface Validation {
+    InputStream run() throws IOException;
+  }
+}
@@ -19,20 +19,71 @@
 package no.entur.damu.gtfs.validator;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
+import no.entur.damu.gtfs.merger.GtfsFileUtils;
 import org.mobilitydata.gtfsvalidator.runner.ApplicationType;
 import org.mobilitydata.gtfsvalidator.runner.ValidationRunner;
 import org.mobilitydata.gtfsvalidator.runner.ValidationRunnerConfig;
 import org.mobilitydata.gtfsvalidator.util.VersionResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
 
 /**
  * Validates a GTFS feed and returns a zip file containing the validation reports.
+ * Validation runners are reused across validations, one runner per concurrent validation, and the validator can be
+ * warmed up at startup so that the validator classes are loaded and compiled before the first export.
  */
 public class GtfsValidator {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    GtfsValidator.class
+  );
+
+  /**
+   * Minimal GTFS feed used to warm up the validator.
+   */
+  private static final Map<String, String> WARM_UP_FEED = Map.of(
+    "agency.txt",
+    "agency_id,agency_name,agency_url,agency_timezone\n" +
+    "A,Agency,https://entur.org,Europe/Oslo\n",
+    "stops.txt",
+    "stop_id,stop_name,stop_lat,stop_lon\n" +
+    "S1,Stop 1,59.91,10.75\n" +
+    "S2,Stop 2,59.92,10.76\n",
+    "routes.txt",
+    "route_id,agency_id,route_short_name,route_type\nR,A,1,3\n",
+    "trips.txt",
+    "route_id,service_id,trip_id\nR,C,T\n",
+    "stop_times.txt",
+    "trip_id,arrival_time,departure_time,stop_id,stop_sequence\n" +
+    "T,08:00:00,08:00:00,S1,1\n" +
+    "T,08:05:00,08:05:00,S2,2\n",
+    "calendar.txt",
+    "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday," +
+    "start_date,end_date\n" +
+    "C,1,1,1,1,1,1,1,20240101,20991231\n"
+  );
+
+  /**
+   * Validation runners that are not in use. A runner is not shared by concurrent validations: each validation takes
+   * an idle runner or creates one, so that the pool grows to the number of concurrent validations, which is bounded
+   * by the {@link GtfsValidationExecutor}.
+   */
+  private static final Queue<ValidationRunner> IDLE_VALIDATION_RUNNERS =
+    new ConcurrentLinkedQueue<>();
+
+  private GtfsValidator() {}
+
   /**
    * Validates a GTFS feed and returns a zip file containing the validation reports.
    *
@@ -61,84 +112,149 @@ public class GtfsValidator {
       "gtfs-" + datasetReferential,
       ".zip"
     );
-    Files.copy(
-      zippedGtfsContent,
-      tempGtfsFile,
-      StandardCopyOption.REPLACE_EXISTING
-    );
+    try {
+      Files.copy(
+        zippedGtfsContent,
+        tempGtfsFile,
+        StandardCopyOption.REPLACE_EXISTING
+      );
+      return validate(datasetReferential, tempGtfsFile);
+    } finally {
+      Files.deleteIfExists(tempGtfsFile);
+    }
+  }
+
+  /**
+   * Validates a GTFS feed stored in a local file, without copying it.
+   *
+   * @param datasetReferential typically the NeTEx codespace of the dataset. Used
+   *                           to name temporary files and directories.
+   * @param gtfsFile the zipped GTFS file to validate
+   * @return the validation reports as an InputStream with zipped content
+   * @throws IOException if an I/O error occurs
+   */
+  public static InputStream validate(String datasetReferential, Path gtfsFile)
+    throws IOException {
+    if (
+      datasetReferential == null ||
+      gtfsFile == null ||
+      datasetReferential.isEmpty() ||
+      Files.size(gtfsFile) == 0
+    ) {
+      throw new IllegalArgumentException(
+        "datasetReferential and gtfsFile must be set"
+      );
+    }
 
     Path gtfsValidationReportsDirectory = Files.createTempDirectory(
       "gtfs-validation-output-" + datasetReferential
     );
+    try {
+      runValidator(gtfsFile, gtfsValidationReportsDirectory);
+      return zipValidationReports(gtfsValidationReportsDirectory);
+    } finally {
+      FileSystemUtils.deleteRecursively(gtfsValidationReportsDirectory);
+    }
+  }
 
-    ValidationRunnerConfig.Builder builder = ValidationRunnerConfig
-      .builder()
-      .setGtfsSource(tempGtfsFile.toUri())
-      .setOutputDirectory(gtfsValidationReportsDirectory)
-      .setSkipValidatorUpdate(true);
-    ValidationRunner runner = new ValidationRunner(
-      new VersionResolver(ApplicationType.WEB)
+  /**
+   * Validate a minimal GTFS feed, so that the classes used by the validator are loaded and compiled ahead of the
+   * first validated dataset.
+   */
+  public static void warmUp() throws IOException {
+    long start = System.nanoTime();
+    Path warmUpFeed = Files.createTempFile("gtfs-validator-warm-up", ".zip");
+    Path warmUpReportsDirectory = Files.createTempDirectory(
+      "gtfs-validator-warm-up-output"
     );
-    runner.run(builder.build());
-
-    InputStream validationReports = zipValidationReports(
-      gtfsValidationReportsDirectory
+    try {
+      try (
+        ZipOutputStream zos = new ZipOutputStream(
+          Files.newOutputStream(warmUpFeed)
+        )
+      ) {
+        for (Map.Entry<String, String> entry : WARM_UP_FEED.entrySet()) {
+          zos.putNextEntry(new ZipEntry(entry.getKey()));
+          zos.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+          zos.closeEntry();
+        }
+      }
+      runValidator(warmUpFeed, warmUpReportsDirectory);
+    } finally {
+      Files.deleteIfExists(warmUpFeed);
+      FileSystemUtils.deleteRecursively(warmUpReportsDirectory);
+    }
+    LOGGER.info(
+      "Warmed up the GTFS validator in {} ms",
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
     );
-    cleanup(tempGtfsFile, gtfsValidationReportsDirectory);
-
-    return validationReports;
   }
 
-  private static InputStream zipValidationReports(
-    Path gtfsValidationReportsDirectory
-  ) throws IOException {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    try (ZipOutputStream zos = new ZipOutputStream(baos)) {
-      Files.walkFileTree(
-        gtfsValidationReportsDirectory,
-        new SimpleFileVisitor<>() {
-          @Override
-          public FileVisitResult visitFile(
-            Path file,
-            BasicFileAttributes attrs
-          ) throws IOException {
-            zos.putNextEntry(
-              new ZipEntry(
-                gtfsValidationReportsDirectory.relativize(file).toString()
-              )
-            );
-            Files.copy(file, zos);
-            zos.closeEntry();
-            return FileVisitResult.CONTINUE;
-          }
-        }
+  private static void runValidator(Path gtfsFile, Path outputDirectory) {
+    ValidationRunner validationRunner = IDLE_VALIDATION_RUNNERS.poll();
+    if (validationRunner == null) {
+      validationRunner =
+        new ValidationRunner(new VersionResolver(ApplicationType.WEB));
+    }
+    try {
+      validationRunner.run(
+        ValidationRunnerConfig
+          .builder()
+          .setGtfsSource(gtfsFile.toUri())
+          .setOutputDirectory(outputDirectory)
+          .setSkipValidatorUpdate(true)
+          .build()
       );
+    } finally {
+      IDLE_VALIDATION_RUNNERS.offer(validationRunner);
     }
-    return new ByteArrayInputStream(baos.toByteArray());
   }
 
-  private static void cleanup(
-    Path gtfsTempFilePath,
+  /**
+   * Zip the files written by the validator into a temporary file, so that the reports are not held in memory.
+   *
+   * @return a delete-on-close input stream on the zipped reports.
+   */
+  private static InputStream zipValidationReports(
     Path gtfsValidationReportsDirectory
   ) throws IOException {
-    Files.deleteIfExists(gtfsTempFilePath);
-    Files.walkFileTree(
-      gtfsValidationReportsDirectory,
-      new SimpleFileVisitor<>() {
-        @Override
-        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-          throws IOException {
-          Files.delete(file);
-          return FileVisitResult.CONTINUE;
-        }
-
-        @Override
-        public FileVisitResult postVisitDirectory(Path dir, IOException exc)
-          throws IOException {
-          Files.delete(dir);
-          return FileVisitResult.CONTINUE;
+    Path zippedReports = Files.createTempFile(
+      "gtfs-validation-reports",
+      ".zip"
+    );
+    try {
+      try (
+        ZipOutputStream zos = new ZipOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(zippedReports))
+        )
+      ) {
+        for (Path report : listReports(gtfsValidationReportsDirectory)) {
+          zos.putNextEntry(
+            new ZipEntry(
+              gtfsValidationReportsDirectory
+                .relativize(report)
+                .toString()
+                .replace(File.separatorChar, '/')
+            )
+          );
+          Files.copy(report, zos);
+          zos.closeEntry();
         }
       }
-    );
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(zippedReports);
+      throw e;
+    }
+    return GtfsFileUtils.createDeleteOnCloseInputStream(zippedReports.toFile());
+  }
+
+  /**
+   * @return the files written by the validator, in a stable order.
+   */
+  private static List<Path> listReports(Path gtfsValidationReportsDirectory)
+    throws IOException {
+    try (Stream<Path> reports = Files.walk(gtfsValidationReportsDirectory)) {
+      return reports.filter(Files::isRegularFile).sorted().toList();
+    }
   }
 }
@@ -18,6 +18,9 @@
 
 package no.entur.damu.netex;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import org.entur.netex.gtfs.export.DefaultGtfsExporter;
 import org.entur.netex.gtfs.export.stop.StopAreaRepository;
 
@@ -26,6 +29,8 @@ import org.entur.netex.gtfs.export.stop.StopAreaRepository;
  */
 public class EnturGtfsExporter extends DefaultGtfsExporter {
 
+  private final NetexConversionMetrics conversionMetrics;
+
   public EnturGtfsExporter(
     String codespace,
     StopAreaRepository stopAreaRepository
@@ -38,13 +43,117 @@ public class EnturGtfsExporter extends DefaultGtfsExporter {
     StopAreaRepository stopAreaRepository,
     boolean generateStaySeatedTransfer
   ) {
-    super(codespace, stopAreaRepository, generateStaySeatedTransfer);
-    setNetexDatasetLoader(new EnturNetexDatasetLoader());
+    this(codespace, stopAreaRepository, generateStaySeatedTransfer, 1);
+  }
+
+  public EnturGtfsExporter(
+    String codespace,
+    StopAreaRepository stopAreaRepository,
+    boolean generateStaySeatedTransfer,
+    int netexParsingParallelism
+  ) {
+    this(
+      codespace,
+      stopAreaRepository,
+      generateStaySeatedTransfer,
+      netexParsingParallelism,
+      null
+    );
+  }
+
+  /**
+   * @param netexParsingParallelism number of NeTEx XML documents parsed concurrently.
+   * @param sharedDataCache         cache of the unmarshalled NeTEx shared data files, or null if they are not cached.
+   */
+  public EnturGtfsExporter(
+    String codespace,
+    StopAreaRepository stopAreaRepository,
+    boolean generateStaySeatedTransfer,
+    int netexParsingParallelism,
+    NetexDocumentCache sharedDataCache
+  ) {
+    this(
+      codespace,
+      stopAreaRepository,
+      generateStaySeatedTransfer,
+      netexParsingParallelism,
+      sharedDataCache,
+      new NetexConversionMetrics(codespace)
+    );
+  }
+
+  private EnturGtfsExporter(
+    String codespace,
+    StopAreaRepository stopAreaRepository,
+    boolean generateStaySeatedTransfer,
+    int netexParsingParallelism,
+    NetexDocumentCache sharedDataCache,
+    NetexConversionMetrics conversionMetrics
+  ) {
+    super(
+      codespace,
+      conversionMetrics.timeStopLookups(stopAreaRepository),
+      generateStaySeatedTransfer
+    );
+    this.conversionMetrics = conversionMetrics;
+    setNetexDatasetLoader(
+      new EnturNetexDatasetLoader(
+        netexParsingParallelism,
+        sharedDataCache,
+        conversionMetrics
+      )
+    );
     setFeedInfoProducer(new EnturFeedInfoProducer());
   }
 
   public EnturGtfsExporter(StopAreaRepository stopAreaRepository) {
     super(stopAreaRepository);
+    this.conversionMetrics = null;
     setFeedInfoProducer(new EnturFeedInfoProducer());
   }
+
+  /**
+   * Convert a NeTEx dataset and record the duration of the conversion phases.
+   */
+  @Override
+  public InputStream convertTimetablesToGtfs(
+    InputStream netexTimetableDataset
+  ) {
+    if (conversionMetrics == null) {
+      return super.convertTimetablesToGtfs(netexTimetableDataset);
+    }
+    long start = System.nanoTime();
+    InputStream gtfs = super.convertTimetablesToGtfs(netexTimetableDataset);
+    long conversionNanos = System.nanoTime() - start;
+    long stopLookupNanos = conversionMetrics.recordStopLookups();
+    conversionMetrics.recordPhase(
+      NetexConversionMetrics.PHASE_CONVERT,
+      conversionNanos -
+      conversionMetrics.getPhaseNanos(NetexConversionMetrics.PHASE_LOAD) -
+      stopLookupNanos
+    );
+    conversionMetrics.publishVolumes();
+    return gtfs;
+  }
+
+  /**
+   * Convert a NeTEx dataset stored in a local file. The dataset is read through the zip central directory.
+   */
+  public InputStream convertTimetablesToGtfs(File netexTimetableDataset)
+    throws IOException {
+    try (
+      InputStream timetableDataset = new NetexDatasetFileInputStream(
+        netexTimetableDataset
+      )
+    ) {
+      return convertTimetablesToGtfs(timetableDataset);
+    }
+  }
+
+  /**
+   * @return the breakdown of the conversion into phases, or null for a stop export.
+   */
+  public NetexConversionMetrics getConversionMetrics() {
+    return conversionMetrics;
+  }
 }
@@ -18,48 +18,414 @@
 
 package no.entur.damu.netex;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.entur.netex.gtfs.export.loader.DefaultNetexDatasetLoader;
 import org.entur.netex.gtfs.export.repository.NetexDatasetRepository;
+import org.entur.netex.index.api.NetexEntitiesIndex;
+import org.entur.netex.loader.NetexXmlParser;
+import org.entur.netex.loader.parser.NetexDocumentParser;
+import org.rutebanken.netex.model.PublicationDeliveryStructure;
 
 /**
  * Custom NeTEx dataset loader that de-duplicates entities that are defined both in flexible lines (NPlan/Uttu) and non-flexible lines (Chouette).
+ * In sequential mode, the line files are parsed straight from the archive stream. In both modes, the common files
+ * parsed last are set aside in temporary files rather than in memory. A stream cannot be read out of order, so the
+ * temporary files deliberately stand in for the random access of a zip file.
+ * The XML documents can optionally be unmarshalled in parallel. The unmarshalled documents are still indexed one at a
+ * time in the order of the archive, so that the content of the index does not depend on the parallelism. When reading
+ * from a stream in parallel, only the line files read ahead of the indexing are buffered in memory.
+ * A dataset stored in a local file (see {@link NetexDatasetFileInputStream}) is read through the zip central
+ * directory instead: the common files are looked up and parsed last without being set aside.
+ * The shared data files can optionally be looked up in a {@link NetexDocumentCache} before being unmarshalled.
  */
 public class EnturNetexDatasetLoader extends DefaultNetexDatasetLoader {
 
+  private static final NetexXmlParser NETEX_XML_PARSER = new NetexXmlParser();
+
+  private final int parsingParallelism;
+  private final NetexDocumentCache sharedDataCache;
+  private final NetexConversionMetrics conversionMetrics;
+  private final AtomicLong entriesParsed = new AtomicLong();
+
+  public EnturNetexDatasetLoader() {
+    this(1);
+  }
+
+  public EnturNetexDatasetLoader(int parsingParallelism) {
+    this(parsingParallelism, null);
+  }
+
+  public EnturNetexDatasetLoader(
+    int parsingParallelism,
+    NetexDocumentCache sharedDataCache
+  ) {
+    this(parsingParallelism, sharedDataCache, null);
+  }
+
+  /**
+   * @param parsingParallelism number of XML documents unmarshalled concurrently. With a parallelism of 1, the
+   *                           documents are parsed sequentially by the NeTEx parser.
+   * @param sharedDataCache    cache of the unmarshalled shared data files, or null if they are not cached.
+   * @param conversionMetrics  metrics of the conversion the dataset is loaded for, or null if not measured.
+   */
+  public EnturNetexDatasetLoader(
+    int parsingParallelism,
+    NetexDocumentCache sharedDataCache,
+    NetexConversionMetrics conversionMetrics
+  ) {
+    this.parsingParallelism = parsingParallelism;
+    this.sharedDataCache = sharedDataCache;
+    this.conversionMetrics = conversionMetrics;
+  }
+
+  @Override
+  public void load(
+    InputStream timetableDataset,
+    NetexDatasetRepository netexDatasetRepository
+  ) {
+    long start = System.nanoTime();
+    long bytesRead;
+    if (timetableDataset instanceof NetexDatasetFileInputStream datasetFile) {
+      try (ZipFile zipFile = new ZipFile(datasetFile.getFile())) {
+        parseDataset(zipFile, netexDatasetRepository);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      bytesRead = datasetFile.getFile().length();
+    } else {
+      CountingInputStream countingInputStream = new CountingInputStream(
+        timetableDataset
+      );
+      super.load(countingInputStream, netexDatasetRepository);
+      bytesRead = countingInputStream.getByteCount();
+    }
+    if (conversionMetrics != null) {
+      conversionMetrics.recordPhase(
+        NetexConversionMetrics.PHASE_LOAD,
+        System.nanoTime() - start
+      );
+      conversionMetrics.addBytesRead(bytesRead);
+      conversionMetrics.addEntriesParsed(entriesParsed.get());
+      conversionMetrics.addEntitiesIndexed(
+        countIndexedEntities(netexDatasetRepository.getIndex())
+      );
+    }
+  }
+
+  /**
+   * Count the main entities of the timetable in the index.
+   */
+  private static long countIndexedEntities(NetexEntitiesIndex index) {
+    return (
+      index.getAuthorityIndex().getAll().size() +
+      index.getOperatorIndex().getAll().size() +
+      index.getLineIndex().getAll().size() +
+      index.getRouteIndex().getAll().size() +
+      index.getJourneyPatternIndex().getAll().size() +
+      index.getServiceJourneyIndex().getAll().size() +
+      index.getDayTypeIndex().getAll().size()
+    );
+  }
+
+  /**
+   * Parse the entries of a zip file, line files first and common files for non-flexible lines last, so that they do
+   * not get overwritten by the flexible common files.
+   */
+  private void parseDataset(
+    ZipFile zipFile,
+    NetexDatasetRepository netexDatasetRepository
+  ) throws IOException {
+    List<ZipEntry> zipEntries = new ArrayList<>();
+    List<ZipEntry> commonFileEntries = new ArrayList<>();
+    zipFile
+      .stream()
+      .filter(zipEntry -> !zipEntry.isDirectory())
+      .forEach(zipEntry -> {
+        if (isNonFlexibleSharedData(zipEntry)) {
+          commonFileEntries.add(zipEntry);
+        } else {
+          zipEntries.add(zipEntry);
+        }
+      });
+    zipEntries.addAll(commonFileEntries);
+
+    NetexEntitiesIndex index = netexDatasetRepository.getIndex();
+    if (parsingParallelism <= 1) {
+      for (ZipEntry zipEntry : zipEntries) {
+        if (isCachedSharedData(zipEntry)) {
+          parseSharedData(() -> zipFile.getInputStream(zipEntry), index);
+          continue;
+        }
+        try (InputStream entryInputStream = zipFile.getInputStream(zipEntry)) {
+          netexParser.parse(entryInputStream, index);
+        }
+        entriesParsed.incrementAndGet();
+      }
+      return;
+    }
+
+    ExecutorService executorService = Executors.newFixedThreadPool(
+      parsingParallelism
+    );
+    try {
+      Deque<Future<PublicationDeliveryStructure>> documents =
+        new ArrayDeque<>();
+      for (ZipEntry zipEntry : zipEntries) {
+        documents.add(
+          executorService.submit(() ->
+            unmarshal(zipEntry, () -> zipFile.getInputStream(zipEntry))
+          )
+        );
+        if (documents.size() > 2 * parsingParallelism) {
+          populateIndex(index, documents.poll());
+        }
+      }
+      while (!documents.isEmpty()) {
+        populateIndex(index, documents.poll());
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
   @Override
   protected void parseDataset(
     ZipInputStream zipInputStream,
     NetexDatasetRepository netexDatasetRepository
   ) throws IOException {
-    List<byte[]> commonFiles = new ArrayList<>();
-    ZipEntry zipEntry = zipInputStream.getNextEntry();
-    while (zipEntry != null) {
-      // parse the common files for non-flexible lines in the end so that they do not get overwritten by the flexible common files
-      if (
-        zipEntry.getName().endsWith("_shared_data.xml") &&
-        !zipEntry.getName().endsWith("_flexible_shared_data.xml")
-      ) {
-        commonFiles.add(zipInputStream.readAllBytes());
-      } else {
-        byte[] allBytes = zipInputStream.readAllBytes();
-        netexParser.parse(
-          new ByteArrayInputStream(allBytes),
-          netexDatasetRepository.getIndex()
+    if (parsingParallelism > 1) {
+      parseDatasetInParallel(zipInputStream, netexDatasetRepository);
+      return;
+    }
+    List<Path> commonFiles = new ArrayList<>();
+    try {
+      ZipEntry zipEntry = zipInputStream.getNextEntry();
+      while (zipEntry != null) {
+        // parse the common files for non-flexible lines in the end so that they do not get overwritten by the flexible common files
+        if (isNonFlexibleSharedData(zipEntry)) {
+          Path commonFile = Files.createTempFile("netex-shared-data", ".xml");
+          commonFiles.add(commonFile);
+          Files.copy(
+            zipInputStream,
+            commonFile,
+            StandardCopyOption.REPLACE_EXISTING
+          );
+        } else {
+          // the parser closes the stream it reads, the zip stream is shielded so that the next entries can be read
+          netexParser.parse(
+            CloseShieldInputStream.wrap(zipInputStream),
+            netexDatasetRepository.getIndex()
+          );
+          entriesParsed.incrementAndGet();
+        }
+        zipEntry = zipInputStream.getNextEntry();
+      }
+      for (Path commonFile : commonFiles) {
+        if (sharedDataCache != null) {
+          parseSharedData(
+            () -> new BufferedInputStream(Files.newInputStream(commonFile)),
+            netexDatasetRepository.getIndex()
+          );
+          continue;
+        }
+        try (
+          InputStream commonFileInputStream = new BufferedInputStream(
+            Files.newInputStream(commonFile)
+          )
+        ) {
+          netexParser.parse(
+            commonFileInputStream,
+            netexDatasetRepository.getIndex()
+          );
+        }
+        entriesParsed.incrementAndGet();
+      }
+    } finally {
+      for (Path commonFile : commonFiles) {
+        Files.deleteIfExists(commonFile);
+      }
+    }
+  }
+
+  /**
+   * Unmarshal the XML documents in a thread pool while the archive is being read, and index them in the calling
+   * thread in archive order. The number of documents read ahead of the indexing is bounded, so that the archive is
+   * not buffered in memory as a whole.
+   */
+  private void parseDatasetInParallel(
+    ZipInputStream zipInputStream,
+    NetexDatasetRepository netexDatasetRepository
+  ) throws IOException {
+    NetexEntitiesIndex index = netexDatasetRepository.getIndex();
+    List<SetAsideEntry> commonFiles = new ArrayList<>();
+    ExecutorService executorService = Executors.newFixedThreadPool(
+      parsingParallelism
+    );
+    try {
+      Deque<Future<PublicationDeliveryStructure>> documents =
+        new ArrayDeque<>();
+      ZipEntry zipEntry = zipInputStream.getNextEntry();
+      while (zipEntry != null) {
+        // index the common files for non-flexible lines in the end so that they do not get overwritten by the
+        // flexible common files
+        if (isNonFlexibleSharedData(zipEntry)) {
+          Path commonFile = Files.createTempFile("netex-shared-data", ".xml");
+          commonFiles.add(new SetAsideEntry(zipEntry, commonFile));
+          Files.copy(
+            zipInputStream,
+            commonFile,
+            StandardCopyOption.REPLACE_EXISTING
+          );
+        } else {
+          byte[] allBytes = zipInputStream.readAllBytes();
+          ZipEntry documentEntry = zipEntry;
+          documents.add(
+            executorService.submit(() ->
+              unmarshal(documentEntry, () -> new ByteArrayInputStream(allBytes))
+            )
+          );
+          if (documents.size() > 2 * parsingParallelism) {
+            populateIndex(index, documents.poll());
+          }
+        }
+        zipEntry = zipInputStream.getNextEntry();
+      }
+      for (SetAsideEntry commonFile : commonFiles) {
+        documents.add(
+          executorService.submit(() ->
+            unmarshal(
+              commonFile.zipEntry(),
+              () ->
+                new BufferedInputStream(
+                  Files.newInputStream(commonFile.file())
+                )
+            )
+          )
         );
+        if (documents.size() > 2 * parsingParallelism) {
+          populateIndex(index, documents.poll());
+        }
+      }
+      while (!documents.isEmpty()) {
+        populateIndex(index, documents.poll());
+      }
+    } finally {
+      executorService.shutdownNow();
+      for (SetAsideEntry commonFile : commonFiles) {
+        Files.deleteIfExists(commonFile.file());
       }
-      zipEntry = zipInputStream.getNextEntry();
     }
-    commonFiles.forEach(commonFile ->
-      netexParser.parse(
-        new ByteArrayInputStream(commonFile),
-        netexDatasetRepository.getIndex()
-      )
+  }
+
+  /**
+   * An archive entry copied to a temporary file, to be parsed after the rest of the archive.
+   */
+  private record SetAsideEntry(ZipEntry zipEntry, Path file) {}
+
+  /**
+   * Unmarshal a document, through the shared data cache if the document is a cached shared data file.
+   */
+  private PublicationDeliveryStructure unmarshal(
+    ZipEntry zipEntry,
+    DocumentSource documentSource
+  ) throws Exception {
+    if (isCachedSharedData(zipEntry)) {
+      return unmarshalSharedData(documentSource);
+    }
+    try (InputStream document = documentSource.open()) {
+      return NETEX_XML_PARSER.parseXmlDoc(document);
+    }
+  }
+
+  private PublicationDeliveryStructure unmarshalSharedData(
+    DocumentSource documentSource
+  ) throws Exception {
+    NetexDocumentCache.Key key;
+    try (InputStream document = documentSource.open()) {
+      key = NetexDocumentCache.key(document);
+    }
+    PublicationDeliveryStructure cachedDocument = sharedDataCache.get(key);
+    if (cachedDocument != null) {
+      return cachedDocument;
+    }
+    try (InputStream document = documentSource.open()) {
+      PublicationDeliveryStructure unmarshalledDocument =
+        NETEX_XML_PARSER.parseXmlDoc(document);
+      sharedDataCache.put(key, unmarshalledDocument);
+      return unmarshalledDocument;
+    }
+  }
+
+  private void parseSharedData(
+    DocumentSource documentSource,
+    NetexEntitiesIndex index
+  ) throws IOException {
+    try {
+      NetexDocumentParser.parseAndPopulateIndex(
+        index,
+        unmarshalSharedData(documentSource)
+      );
+      entriesParsed.incrementAndGet();
+    } catch (IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private boolean isCachedSharedData(ZipEntry zipEntry) {
+    return (
+      sharedDataCache != null && zipEntry.getName().endsWith("_shared_data.xml")
+    );
+  }
+
+  /**
+   * Open the content of a document, possibly several times.
+   */
+  @FunctionalInterface
+  private interface DocumentSource {
+    InputStream open() throws IOException;
+  }
+
+  private void populateIndex(
+    NetexEntitiesIndex index,
+    Future<PublicationDeliveryStructure> document
+  ) {
+    try {
+      NetexDocumentParser.parseAndPopulateIndex(index, document.get());
+      entriesParsed.incrementAndGet();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static boolean isNonFlexibleSharedData(ZipEntry zipEntry) {
+    return (
+      zipEntry.getName().endsWith("_shared_data.xml") &&
+      !zipEntry.getName().endsWith("_flexible_shared_data.xml")
     );
   }
 }
@@ -0,0 +1,152 @@
+package no.entur.damu.netex;
+
+import io.micrometer.core.instrument.Metrics;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.entur.netex.gtfs.export.stop.StopAreaRepository;
+
+/**
+ * Breakdown of a NeTEx to GTFS conversion into phases, published as Micrometer metrics tagged by codespace.
+ * The phases do not overlap: the stop lookups are measured inside the conversion and excluded from the conversion
+ * phase.
+ * <ul>
+ *   <li>load: unzipping, unmarshalling and indexing the NeTEx dataset.</li>
+ *   <li>stopLookup: lookups in the stop area repository.</li>
+ *   <li>convert: the rest of the conversion, including the GTFS serialization.</li>
+ *   <li>spool: copying the serialized GTFS dataset into the exchange payload.</li>
+ * </ul>
+ */
+public class NetexConversionMetrics {
+
+  public static final String METRIC_PHASE = "damu.gtfs.conversion.phase";
+  public static final String METRIC_BYTES_READ =
+    "damu.gtfs.conversion.bytes.read";
+  public static final String METRIC_ENTRIES_PARSED =
+    "damu.gtfs.conversion.entries.parsed";
+  public static final String METRIC_ENTITIES_INDEXED =
+    "damu.gtfs.conversion.entities.indexed";
+
+  public static final String PHASE_LOAD = "load";
+  public static final String PHASE_STOP_LOOKUP = "stopLookup";
+  public static final String PHASE_CONVERT = "convert";
+  public static final String PHASE_SPOOL = "spool";
+
+  private final String codespace;
+  private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+  private final AtomicLong stopLookupNanos = new AtomicLong();
+  private final AtomicLong stopLookups = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicLong entriesParsed = new AtomicLong();
+  private final AtomicLong entitiesIndexed = new AtomicLong();
+
+  public NetexConversionMetrics(String codespace) {
+    this.codespace = codespace;
+  }
+
+  /**
+   * Record the duration of a phase, both in the breakdown and in the phase timer.
+   */
+  public synchronized void recordPhase(String phase, long nanos) {
+    phaseNanos.merge(phase, nanos, Long::sum);
+    Metrics
+      .timer(METRIC_PHASE, "phase", phase, "codespace", codespace)
+      .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  public synchronized long getPhaseNanos(String phase) {
+    return phaseNanos.getOrDefault(phase, 0L);
+  }
+
+  public void addBytesRead(long bytes) {
+    bytesRead.addAndGet(bytes);
+  }
+
+  public void addEntriesParsed(long entries) {
+    entriesParsed.addAndGet(entries);
+  }
+
+  public void addEntitiesIndexed(long entities) {
+    entitiesIndexed.addAndGet(entities);
+  }
+
+  /**
+   * Record the stop lookups measured by {@link #timeStopLookups(StopAreaRepository)} as a phase.
+   *
+   * @return the duration of the stop lookups.
+   */
+  public long recordStopLookups() {
+    long nanos = stopLookupNanos.getAndSet(0);
+    recordPhase(PHASE_STOP_LOOKUP, nanos);
+    return nanos;
+  }
+
+  /**
+   * Publish the volume counters of the conversion.
+   */
+  public void publishVolumes() {
+    Metrics
+      .summary(METRIC_BYTES_READ, "codespace", codespace)
+      .record(bytesRead.get());
+    Metrics
+      .summary(METRIC_ENTRIES_PARSED, "codespace", codespace)
+      .record(entriesParsed.get());
+    Metrics
+      .summary(METRIC_ENTITIES_INDEXED, "codespace", codespace)
+      .record(entitiesIndexed.get());
+  }
+
+  /**
+   * Wrap a stop area repository so that the time spent in its methods is measured.
+   */
+  public StopAreaRepository timeStopLookups(
+    StopAreaRepository stopAreaRepository
+  ) {
+    return (StopAreaRepository) Proxy.newProxyInstance(
+      StopAreaRepository.class.getClassLoader(),
+      new Class<?>[] { StopAreaRepository.class },
+      (proxy, method, args) -> {
+        if (method.getDeclaringClass() == Object.class) {
+          return method.invoke(stopAreaRepository, args);
+        }
+        long start = System.nanoTime();
+        try {
+          return method.invoke(stopAreaRepository, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        } finally {
+          stopLookupNanos.addAndGet(System.nanoTime() - start);
+          stopLookups.incrementAndGet();
+        }
+      }
+    );
+  }
+
+  @Override
+  public synchronized String toString() {
+    return (
+      phaseNanos
+        .entrySet()
+        .stream()
+        .map(phase ->
+          phase.getKey() +
+          " " +
+          TimeUnit.NANOSECONDS.toMillis(phase.getValue()) +
+          " ms"
+        )
+        .collect(Collectors.joining(", ")) +
+      ", bytes read " +
+      bytesRead.get() +
+      ", entries parsed " +
+      entriesParsed.get() +
+      ", entities indexed " +
+      entitiesIndexed.get() +
+      ", stop lookups " +
+      stopLookups.get()
+    );
+  }
+}
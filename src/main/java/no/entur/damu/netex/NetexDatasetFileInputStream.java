@@ -0,0 +1,23 @@
+package no.entur.damu.netex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+
+/**
+ * Input stream on a NeTEx dataset stored in a local file. The NeTEx dataset loader reads the file through its zip
+ * central directory rather than through this stream.
+ */
+public class NetexDatasetFileInputStream extends FileInputStream {
+
+  private final File file;
+
+  public NetexDatasetFileInputStream(File file) throws FileNotFoundException {
+    super(file);
+    this.file = file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+}
@@ -0,0 +1,132 @@
+package no.entur.damu.netex;
+
+import io.micrometer.core.instrument.Metrics;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.rutebanken.netex.model.PublicationDeliveryStructure;
+
+/**
+ * Least recently used cache of unmarshalled NeTEx documents, keyed by the digest of their XML content, so that the
+ * shared data files that are unchanged between two exports are not unmarshalled again.
+ * The cache is bounded by the heap held by the cached documents, estimated as a multiple of the size of their XML
+ * content, since an unmarshalled document takes several times the size of its XML content.
+ * The cached documents are shared by the exports and must not be modified.
+ */
+public class NetexDocumentCache {
+
+  public static final String METRIC_LOOKUPS = "damu.netex.document.cache";
+  public static final String METRIC_BYTES = "damu.netex.document.cache.bytes";
+  public static final String METRIC_HEAP = "damu.netex.document.cache.heap";
+  public static final String METRIC_ENTRIES =
+    "damu.netex.document.cache.entries";
+
+  /**
+   * Digest and size of the XML content of a NeTEx document.
+   */
+  public record Key(String digest, long size) {}
+
+  private record CachedDocument(
+    PublicationDeliveryStructure document,
+    long size,
+    long heap
+  ) {}
+
+  private final long maxHeap;
+  private final double heapFactor;
+  private final Map<String, CachedDocument> documents = new LinkedHashMap<>(
+    16,
+    0.75f,
+    true
+  );
+  private final AtomicLong cachedSize = new AtomicLong();
+  private final AtomicLong cachedHeap = new AtomicLong();
+  private final AtomicLong cachedEntries = new AtomicLong();
+
+  /**
+   * @param maxHeap    the maximum estimated heap in bytes held by the cached documents.
+   * @param heapFactor the ratio between the heap held by an unmarshalled document and the size of its XML content.
+   */
+  public NetexDocumentCache(long maxHeap, double heapFactor) {
+    this.maxHeap = maxHeap;
+    this.heapFactor = heapFactor;
+    Metrics.gauge(METRIC_BYTES, cachedSize);
+    Metrics.gauge(METRIC_HEAP, cachedHeap);
+    Metrics.gauge(METRIC_ENTRIES, cachedEntries);
+  }
+
+  /**
+   * Compute the cache key of a NeTEx document.
+   *
+   * @param content the XML content of the document. Read to the end but not closed.
+   */
+  public static Key key(InputStream content) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+    long size = new DigestInputStream(content, digest)
+      .transferTo(OutputStream.nullOutputStream());
+    return new Key(HexFormat.of().formatHex(digest.digest()), size);
+  }
+
+  /**
+   * @return the cached document, or null if the document is not cached.
+   */
+  public synchronized PublicationDeliveryStructure get(Key key) {
+    CachedDocument cachedDocument = documents.get(key.digest());
+    String result = cachedDocument != null ? "hit" : "miss";
+    Metrics.counter(METRIC_LOOKUPS, "result", result).increment();
+    return cachedDocument != null ? cachedDocument.document() : null;
+  }
+
+  /**
+   * Cache a document, evicting the least recently used documents if the cache is full. A document whose estimated
+   * heap exceeds the cache is not cached.
+   */
+  public synchronized void put(Key key, PublicationDeliveryStructure document) {
+    long heap = (long) (key.size() * heapFactor);
+    if (heap > maxHeap) {
+      return;
+    }
+    CachedDocument previous = documents.put(
+      key.digest(),
+      new CachedDocument(document, key.size(), heap)
+    );
+    if (previous == null) {
+      cachedSize.addAndGet(key.size());
+      cachedHeap.addAndGet(heap);
+      cachedEntries.incrementAndGet();
+    }
+    Iterator<CachedDocument> eldest = documents.values().iterator();
+    while (cachedHeap.get() > maxHeap) {
+      CachedDocument evicted = eldest.next();
+      eldest.remove();
+      cachedSize.addAndGet(-evicted.size());
+      cachedHeap.addAndGet(-evicted.heap());
+      cachedEntries.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return the estimated heap in bytes held by the cached documents.
+   */
+  public long getCachedHeap() {
+    return cachedHeap.get();
+  }
+
+  synchronized List<PublicationDeliveryStructure> documents() {
+    return documents.values().stream().map(CachedDocument::document).toList();
+  }
+}
@@ -0,0 +1,201 @@
+package no.entur.damu.routes.aggregation;
+
+import static no.entur.damu.Constants.BLOBSTORE_PATH_OUTBOUND;
+import static no.entur.damu.Constants.ORIGINAL_GTFS_FILES_SUB_FOLDER;
+import static org.apache.camel.Exchange.FILE_PARENT;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import no.entur.damu.gtfs.merger.GtfsExport;
+import no.entur.damu.gtfs.merger.GtfsFileUtils;
+import no.entur.damu.gtfs.merger.GtfsFragmentCache;
+import no.entur.damu.gtfs.merger.GtfsMergeOptions;
+import no.entur.damu.gtfs.merger.GtfsMergeTarget;
+import no.entur.damu.services.MardukBlobStoreService;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merge the downloaded GTFS files into both the GTFS extended and the GTFS basic aggregated datasets,
+ * reading each GTFS file only once.
+ * The GTFS extended dataset is set as the message body, the GTFS basic dataset is set in the exchange property
+ * {@link #GTFS_BASIC_MERGED_FILE}.
+ * Route types are converted, shapes are removed and the excluded GTFS files are ignored only in the GTFS basic dataset.
+ * In pipelined mode, the GTFS files listed in the message body are downloaded by the processor itself and merged as
+ * soon as they are downloaded, instead of being downloaded beforehand.
+ * In direct mode, the GTFS files listed in the message body are read from the blob store and merged as they are read,
+ * without being downloaded to the local disk.
+ * With a fragment cache, the downloaded GTFS files are merged incrementally: only the GTFS files that changed since the
+ * previous aggregation are parsed and converted.
+ */
+public class GtfsAggregationProcessor implements Processor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    GtfsAggregationProcessor.class
+  );
+
+  static final String GTFS_BASIC_MERGED_FILE = "GtfsBasicMergedFile";
+
+  private final GtfsMergeTarget extendedTarget;
+  private final GtfsMergeTarget basicTarget;
+  private final GtfsMergeOptions mergeOptions;
+  private final MardukBlobStoreService mardukBlobStoreService;
+  private final int downloadLookAhead;
+  private final boolean directDownload;
+  private final GtfsFragmentCache fragmentCache;
+
+  public GtfsAggregationProcessor(
+    Exchange exchange,
+    GtfsMergeOptions mergeOptions
+  ) {
+    this(exchange, mergeOptions, null, 0, false, null);
+  }
+
+  /**
+   * @param mardukBlobStoreService the blob store the GTFS files are downloaded from, in pipelined mode.
+   * @param downloadLookAhead      the number of GTFS files downloaded ahead of the one being merged, in pipelined
+   *                               mode. 0 disables the pipelined mode: the GTFS files must be downloaded beforehand.
+   * @param directDownload         true to read the GTFS files from the blob store while merging them, without local
+   *                               copy. Takes precedence over the pipelined mode.
+   * @param fragmentCache          the cache of merge fragments used for merging the downloaded GTFS files
+   *                               incrementally, or null to merge all the GTFS files from scratch.
+   */
+  public GtfsAggregationProcessor(
+    Exchange exchange,
+    GtfsMergeOptions mergeOptions,
+    MardukBlobStoreService mardukBlobStoreService,
+    int downloadLookAhead,
+    boolean directDownload,
+    GtfsFragmentCache fragmentCache
+  ) {
+    String excluded = exchange
+      .getContext()
+      .resolvePropertyPlaceholders(
+        "{{damu.gtfs.aggregation.excludedFiles:rb_avi-aggregated-gtfs.zip}}"
+      );
+    this.extendedTarget = new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true);
+    this.basicTarget =
+      new GtfsMergeTarget(
+        GtfsExport.GTFS_BASIC,
+        false,
+        Set.copyOf(Arrays.asList(excluded.split(",")))
+      );
+    this.mergeOptions = mergeOptions;
+    this.mardukBlobStoreService = mardukBlobStoreService;
+    this.downloadLookAhead = downloadLookAhead;
+    this.directDownload = directDownload;
+    this.fragmentCache = fragmentCache;
+  }
+
+  private Collection<File> createListOfGtfsFilesToMerge(File sourceDirectory) {
+    return new ArrayList<>(
+      FileUtils.listFiles(sourceDirectory, new String[] { "zip" }, false)
+    );
+  }
+
+  @Override
+  public void process(Exchange exchange) throws Exception {
+    File sourceDirectory = new File(
+      exchange.getIn().getHeader(FILE_PARENT, String.class) +
+      ORIGINAL_GTFS_FILES_SUB_FOLDER
+    );
+
+    if (!sourceDirectory.isDirectory()) {
+      throw new RuntimeException(sourceDirectory + " is not a directory");
+    }
+
+    Map<GtfsMergeTarget, InputStream> mergedFiles;
+    if (directDownload) {
+      mergedFiles =
+        GtfsFileUtils.readAndMergeGtfsFilesToInputStreams(
+          Arrays.asList(exchange.getIn().getBody(String.class).split(",")),
+          this::openGtfsFile,
+          List.of(extendedTarget, basicTarget),
+          mergeOptions
+        );
+    } else if (downloadLookAhead > 0) {
+      mergedFiles =
+        GtfsFileUtils.fetchAndMergeGtfsFilesToInputStreams(
+          Arrays.asList(exchange.getIn().getBody(String.class).split(",")),
+          gtfsFileName -> downloadGtfsFile(gtfsFileName, sourceDirectory),
+          downloadLookAhead,
+          List.of(extendedTarget, basicTarget),
+          mergeOptions
+        );
+    } else {
+      Collection<File> zipFiles = createListOfGtfsFilesToMerge(
+        sourceDirectory
+      );
+      if (fragmentCache != null) {
+        mergedFiles =
+          GtfsFileUtils.mergeGtfsFilesIncrementallyToInputStreams(
+            zipFiles,
+            fragmentCache,
+            List.of(extendedTarget, basicTarget),
+            mergeOptions
+          );
+      } else {
+        mergedFiles =
+          GtfsFileUtils.mergeGtfsFilesToInputStreams(
+            zipFiles,
+            List.of(extendedTarget, basicTarget),
+            mergeOptions
+          );
+      }
+    }
+
+    exchange.getIn().setBody(mergedFiles.get(extendedTarget));
+    exchange.setProperty(GTFS_BASIC_MERGED_FILE, mergedFiles.get(basicTarget));
+  }
+
+  /**
+   * Open a GTFS file in the blob store.
+   *
+   * @return the content of the GTFS file, or null if the GTFS file is not in the blob store.
+   */
+  private InputStream openGtfsFile(String gtfsFileName) {
+    String blobName = BLOBSTORE_PATH_OUTBOUND + "gtfs/" + gtfsFileName;
+    LOGGER.info("Reading {}", blobName);
+    InputStream blob = mardukBlobStoreService.getBlob(blobName);
+    if (blob == null) {
+      LOGGER.info(
+        "{} was empty when trying to read it from blobstore.",
+        gtfsFileName
+      );
+    }
+    return blob;
+  }
+
+  /**
+   * Download a GTFS file from the blob store into the source directory.
+   *
+   * @return the downloaded file, or null if the GTFS file is not in the blob store.
+   */
+  private File downloadGtfsFile(String gtfsFileName, File sourceDirectory)
+    throws IOException {
+    String blobName = BLOBSTORE_PATH_OUTBOUND + "gtfs/" + gtfsFileName;
+    LOGGER.info("Fetching {}", blobName);
+    try (InputStream blob = mardukBlobStoreService.getBlob(blobName)) {
+      if (blob == null) {
+        LOGGER.info(
+          "{} was empty when trying to fetch it from blobstore.",
+          gtfsFileName
+        );
+        return null;
+      }
+      File gtfsFile = new File(sourceDirectory, gtfsFileName);
+      FileUtils.copyInputStreamToFile(blob, gtfsFile);
+      return gtfsFile;
+    }
+  }
+}
@@ -1,10 +1,16 @@
 package no.entur.damu.routes.aggregation;
 
 import static no.entur.damu.Constants.*;
+import static no.entur.damu.routes.aggregation.GtfsAggregationProcessor.GTFS_BASIC_MERGED_FILE;
 import static org.apache.camel.Exchange.FILE_PARENT;
 
 import java.io.File;
+import java.nio.file.Path;
+import no.entur.damu.gtfs.merger.GtfsFragmentCache;
+import no.entur.damu.gtfs.merger.GtfsMergeOptions;
+import no.entur.damu.gtfs.merger.ZipCompression;
 import no.entur.damu.routes.BaseRouteBuilder;
+import no.entur.damu.services.MardukBlobStoreService;
 import org.apache.camel.LoggingLevel;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -21,10 +27,97 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
   @Value("${gtfs.export.download.directory:files/gtfs/merged}")
   private String localWorkingDirectory;
 
+  /**
+   * Number of GTFS files downloaded concurrently from the blob store. 1 downloads the files sequentially.
+   * The download threads are virtual threads when Camel virtual threads are enabled
+   * (-Dcamel.threads.virtual.enabled=true).
+   */
+  @Value("${damu.gtfs.aggregation.download.concurrency:1}")
+  private int downloadConcurrency;
+
+  /**
+   * Number of GTFS files downloaded ahead of the one being merged, when downloads and merge are pipelined.
+   * 0 downloads all the GTFS files before merging them.
+   */
+  @Value("${damu.gtfs.aggregation.download.lookAhead:0}")
+  private int downloadLookAhead;
+
+  /**
+   * Read the GTFS files from the blob store while merging them, without downloading them to the local disk.
+   * Takes precedence over the pipelined download.
+   */
+  @Value("${damu.gtfs.aggregation.download.direct:false}")
+  private boolean downloadDirect;
+
+  /**
+   * Number of GTFS entries (stop_times.txt, trips.txt, ...) merged concurrently. 1 merges the archives sequentially.
+   */
+  @Value("${damu.gtfs.aggregation.merge.parallelism:1}")
+  private int mergeParallelism;
+
+  /**
+   * Parse and write GTFS records through a reusable row buffer, avoiding per-row allocations.
+   */
+  @Value("${damu.gtfs.aggregation.merge.rowBuffer:false}")
+  private boolean mergeRowBuffer;
+
+  /**
+   * Data structure holding the stop ids and transfers already merged: HASH_SET or COMPACT.
+   */
+  @Value("${damu.gtfs.aggregation.merge.dedupIndex:HASH_SET}")
+  private GtfsMergeOptions.DedupIndexType mergeDedupIndex;
+
+  /**
+   * Write the merged entries directly into the merged zip archives, without working directory.
+   */
+  @Value("${damu.gtfs.aggregation.merge.streaming:false}")
+  private boolean mergeStreaming;
+
+  /**
+   * In streaming mode, number of threads compressing the merged zip entries. 1 compresses in the merging threads.
+   */
+  @Value("${damu.gtfs.aggregation.merge.compression.parallelism:1}")
+  private int mergeCompressionParallelism;
+
+  /**
+   * Compression level of the published merged zip entries: 0 to 9, DEFAULT or STORED.
+   */
+  @Value("${damu.gtfs.aggregation.merge.compression.level:DEFAULT}")
+  private String mergeCompressionLevel;
+
+  /**
+   * Compression level of specific merged zip entries, in the form "stop_times.txt=6,shapes.txt=6".
+   */
+  @Value("${damu.gtfs.aggregation.merge.compression.entryLevels:}")
+  private String mergeCompressionEntryLevels;
+
+  /**
+   * Directory where the converted GTFS files are cached between aggregations, so that only the GTFS files that changed
+   * since the previous aggregation are parsed again. Empty disables the cache.
+   * The cache requires the GTFS files to be downloaded before being merged. It is best-effort: on ephemeral storage,
+   * the first aggregation after a restart converts all the GTFS files again.
+   */
+  @Value("${damu.gtfs.aggregation.fragment.cache.directory:}")
+  private String fragmentCacheDirectory;
+
+  private final MardukBlobStoreService mardukBlobStoreService;
+  private GtfsFragmentCache fragmentCache;
+
+  public GtfsAggregationQueueRouteBuilder(
+    MardukBlobStoreService mardukBlobStoreService
+  ) {
+    this.mardukBlobStoreService = mardukBlobStoreService;
+  }
+
   @Override
   public void configure() throws Exception {
     super.configure();
 
+    checkAggregationOptions();
+    if (!fragmentCacheDirectory.isBlank()) {
+      fragmentCache = new GtfsFragmentCache(Path.of(fragmentCacheDirectory));
+    }
+
     onException(Exception.class)
       .handled(true)
       .maximumRedeliveries(0)
@@ -42,6 +135,10 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
       .to(
         "google-pubsub:{{marduk.pubsub.project.id}}:MardukAggregateGtfsStatusQueue"
       )
+      .filter(header(FILE_PARENT).isNotNull())
+      .to("direct:cleanUpLocalDirectory")
+      //end filter
+      .end()
       .end();
 
     from("direct:aggregateGtfs")
@@ -65,8 +162,21 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
         )
           .mkdirs()
       )
+      // in pipelined and direct modes, the files are read while being merged
+      .filter(exchange -> downloadLookAhead == 0 && !downloadDirect)
+      // the files are merged in alphabetical order, whatever the download order
       .split(body().tokenize(","))
+      .parallelProcessing(downloadConcurrency > 1)
+      .executorService(
+        getContext()
+          .getExecutorServiceManager()
+          .newFixedThreadPool(this, "GtfsDownload", downloadConcurrency)
+      )
+      .stopOnException()
       .to("direct:getGtfsFile")
+      //end split
+      .end()
+      //end filter
       .end()
       .process(this::extendAckDeadline)
       .log(
@@ -80,21 +190,22 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
       )
       .log(
         LoggingLevel.INFO,
-        correlation() + "Starting merging of GTFS extended"
+        correlation() + "Starting merging of GTFS extended and GTFS basic"
       )
-      .to("direct:mergeGtfsExtended")
+      .to("direct:mergeGtfs")
       .process(this::extendAckDeadline)
+      .log(
+        LoggingLevel.INFO,
+        correlation() + "Done merging GTFS extended and GTFS basic"
+      )
       .setProperty(FILE_NAME, simple("rb_norway-aggregated-gtfs.zip"))
       .to("direct:uploadMergedGtfs")
       .process(this::extendAckDeadline)
-      .log(LoggingLevel.INFO, correlation() + "Done merging GTFS extended")
-      .log(LoggingLevel.INFO, correlation() + "Starting merging of GTFS basic")
-      .to("direct:mergeGtfsBasic")
-      .process(this::extendAckDeadline)
+      .setBody(exchangeProperty(GTFS_BASIC_MERGED_FILE))
+      .removeProperty(GTFS_BASIC_MERGED_FILE)
       .setProperty(FILE_NAME, simple("rb_norway-aggregated-gtfs-basic.zip"))
       .to("direct:uploadMergedGtfs")
       .process(this::extendAckDeadline)
-      .log(LoggingLevel.INFO, correlation() + "Done merging GTFS basic")
       .log(
         LoggingLevel.INFO,
         correlation() + "Set header to " + constant(STATUS_MERGE_OK)
@@ -142,6 +253,12 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
       );
 
     from("direct:getGtfsFile")
+      // a failed download is not handled here but propagated to the download split, which then stops and fails the
+      // aggregation once
+      .onException(Exception.class)
+      .handled(false)
+      .maximumRedeliveries(0)
+      .end()
       .log(
         LoggingLevel.INFO,
         getClass().getName(),
@@ -161,12 +278,14 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
         correlation() +
         "Fetched ${exchangeProperty.fileName} from blobstore, storing in local directory."
       )
+      // the directory is created before the split, so that a download still running after a failed download has
+      // cleaned it up does not create it again
       .toD(
         "file:${header." +
         FILE_PARENT +
         "}" +
         ORIGINAL_GTFS_FILES_SUB_FOLDER +
-        "?fileName=${exchangeProperty.fileName}"
+        "?fileName=${exchangeProperty.fileName}&autoCreate=false"
       )
       .otherwise()
       .log(
@@ -177,31 +296,41 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
       )
       .routeId("get-gtfs-file");
 
-    from("direct:mergeGtfsExtended")
+    from("direct:mergeGtfs")
       .log(
         LoggingLevel.DEBUG,
         getClass().getName(),
-        correlation() + "Merging GTFS extended files for all providers."
-      )
-      .process(new GtfsExtendedAggregationProcessor())
-      .log(
-        LoggingLevel.INFO,
-        correlation() + "Done merging GTFS extended files for all providers."
+        correlation() +
+        "Merging GTFS extended and GTFS basic files for all providers."
       )
-      .routeId("gtfs-export-merge-extended");
-
-    from("direct:mergeGtfsBasic")
-      .log(
-        LoggingLevel.DEBUG,
-        getClass().getName(),
-        correlation() + "Merging GTFS basic files for all providers."
+      .process(e ->
+        new GtfsAggregationProcessor(
+          e,
+          GtfsMergeOptions.DEFAULT
+            .withParallelism(mergeParallelism)
+            .withRowBuffer(mergeRowBuffer)
+            .withDedupIndex(mergeDedupIndex)
+            .withStreaming(mergeStreaming)
+            .withCompressionParallelism(mergeCompressionParallelism)
+            .withCompression(
+              ZipCompression.parse(
+                mergeCompressionLevel,
+                mergeCompressionEntryLevels
+              )
+            ),
+          mardukBlobStoreService,
+          downloadLookAhead,
+          downloadDirect,
+          fragmentCache
+        )
+          .process(e)
       )
-      .process(e -> new GtfsBasicAggregationProcessor(e).process(e))
       .log(
         LoggingLevel.INFO,
-        correlation() + "Done merging GTFS basic files for all providers."
+        correlation() +
+        "Done merging GTFS extended and GTFS basic files for all providers."
       )
-      .routeId("gtfs-export-merge-basic");
+      .routeId("gtfs-export-merge");
 
     from("direct:uploadMergedGtfs")
       .process(exchange -> {
@@ -224,4 +353,28 @@ public class GtfsAggregationQueueRouteBuilder extends BaseRouteBuilder {
       )
       .routeId("gtfs-export-upload-merged");
   }
+
+  /**
+   * Reject at startup the combinations of download and merge options in which an option would be silently ignored:
+   * GTFS files read while being merged are merged one at a time into working directories, and without parallelism
+   * when read directly from the blob store.
+   */
+  private void checkAggregationOptions() {
+    boolean readWhileMerging = downloadLookAhead > 0 || downloadDirect;
+    if (readWhileMerging && mergeStreaming) {
+      throw new IllegalArgumentException(
+        "damu.gtfs.aggregation.merge.streaming requires the GTFS files to be downloaded before being merged"
+      );
+    }
+    if (readWhileMerging && !fragmentCacheDirectory.isBlank()) {
+      throw new IllegalArgumentException(
+        "damu.gtfs.aggregation.fragment.cache.directory requires the GTFS files to be downloaded before being merged"
+      );
+    }
+    if (downloadDirect && mergeParallelism > 1) {
+      throw new IllegalArgumentException(
+        "damu.gtfs.aggregation.merge.parallelism is not supported when the GTFS files are read directly from the blob store"
+      );
+    }
+  }
 }
@@ -22,15 +22,37 @@ import static no.entur.damu.Constants.BLOBSTORE_PATH_OUTBOUND;
 import static no.entur.damu.Constants.DATASET_REFERENTIAL;
 import static no.entur.damu.Constants.FILE_HANDLE;
 
+import io.micrometer.core.instrument.Metrics;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.ExecutorService;
 import no.entur.damu.Constants;
+import no.entur.damu.gtfs.merger.GtfsFileUtils;
+import no.entur.damu.gtfs.merger.ZipCompression;
 import no.entur.damu.netex.EnturGtfsExporter;
+import no.entur.damu.netex.NetexConversionMetrics;
+import no.entur.damu.netex.NetexDocumentCache;
 import no.entur.damu.routes.BaseRouteBuilder;
+import no.entur.damu.routes.file.PayloadSpool;
+import no.entur.damu.services.DamuBlobStoreService;
+import no.entur.damu.stop.EnturStopAreaRepositoryFactory;
+import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
-import org.entur.netex.gtfs.export.GtfsExporter;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.ThreadPoolProfileBuilder;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
 import org.entur.netex.gtfs.export.exception.GtfsExportException;
 import org.entur.netex.gtfs.export.stop.StopAreaRepositoryFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.info.BuildProperties;
 import org.springframework.stereotype.Component;
 
 /**
@@ -54,32 +76,155 @@ public class GtfsExportQueueRouteBuilder extends BaseRouteBuilder {
     Constants.GTFS_FILENAME_SUFFIX;
 
   static final String TIMETABLE_DATASET_FILE = "TIMETABLE_DATASET_FILE";
+  static final String CONVERSION_CACHE_KEY = "GtfsConversionCacheKey";
+  static final String CONVERSION_CACHE_HIT = "GtfsConversionCacheHit";
+
+  private static final String CACHED_GTFS_DATASET = "CachedGtfsDataset";
+  private static final String CONVERSION_METRICS = "GtfsConversionMetrics";
+  private static final String CACHED_VALIDATION_REPORTS =
+    "CachedGtfsValidationReports";
+
+  /**
+   * Folder of the conversion cache in the Damu bucket. Cache entries are not removed by Damu, they are expected to be
+   * expired by the lifecycle rules of the bucket.
+   */
+  private static final String CONVERSION_CACHE_FOLDER =
+    "gtfs-conversion-cache/";
+  private static final String CONVERSION_CACHE_GTFS_FILE_NAME = "/gtfs.zip";
+  private static final String CONVERSION_CACHE_VALIDATION_REPORTS_FILE_NAME =
+    "/gtfs-validation-reports.zip";
+
+  /**
+   * Version of the cache key, to be incremented whenever the format of the cache key or of the cache entries changes.
+   * Changes in the conversion itself are covered by the converter and Damu build versions in the cache key.
+   */
+  private static final int CONVERSION_CACHE_VERSION = 1;
+
+  /**
+   * Build property holding the version of the NeTEx to GTFS converter library, added by the build-info goal of the
+   * Spring Boot Maven plugin.
+   */
+  static final String CONVERTER_VERSION_BUILD_PROPERTY =
+    "netex-gtfs-converter-java.version";
+
+  static final String METRIC_CONVERSION_CACHE = "damu.gtfs.conversion.cache";
+
+  static final String METRIC_ASYNC_VALIDATION = "damu.gtfs.validation.async";
 
   private static final String STATUS_EXPORT_STARTED = "started";
   private static final String STATUS_EXPORT_OK = "ok";
   private static final String STATUS_EXPORT_FAILED = "failed";
   private final StopAreaRepositoryFactory stopAreaRepositoryFactory;
+  private final DamuBlobStoreService damuBlobStoreService;
+  private final PayloadSpool payloadSpool;
   private final String gtfsExportFilePath;
   private final boolean generateStaySeatedTransfer;
+  private final ZipCompression uploadCompression;
+  private final ZipCompression validationCompression;
+  private final boolean conversionCacheEnabled;
+  private final String conversionVersion;
+  private final boolean asyncValidation;
+  private final int asyncValidationConcurrency;
+  private final int asyncValidationQueueSize;
+  private final int netexParsingParallelism;
+  private final NetexDocumentCache netexSharedDataCache;
 
+  /**
+   * @param uploadCompression          compression level of the uploaded GTFS dataset: 0 to 9, DEFAULT or STORED.
+   *                                   If empty, the dataset is uploaded as produced by the converter.
+   * @param validationCompression      compression level of the GTFS dataset passed to the validator. If empty, the
+   *                                   dataset is validated as produced by the converter.
+   * @param buildProperties            build information of Damu, identifying the conversion code in the conversion
+   *                                   cache key. If unavailable, the conversion cache is not used.
+   * @param conversionCacheEnabled     reuse the GTFS dataset and validation reports produced from an identical NeTEx
+   *                                   dataset with the same stop areas and export settings, instead of converting
+   *                                   the NeTEx dataset again.
+   * @param asyncValidation            notify Marduk as soon as the GTFS dataset is uploaded, and validate it in the
+   *                                   background.
+   * @param asyncValidationConcurrency number of GTFS datasets validated concurrently in the background.
+   * @param asyncValidationQueueSize   number of GTFS datasets waiting for background validation. When the queue is
+   *                                   full, the GTFS dataset is validated before notifying Marduk.
+   * @param netexParsingParallelism    number of NeTEx XML documents parsed concurrently during the conversion.
+   * @param netexSharedDataCacheHeap   maximum estimated heap in bytes held by the NeTEx shared data files kept
+   *                                   unmarshalled in memory across conversions. If 0, the shared data files are not
+   *                                   cached.
+   * @param netexSharedDataHeapFactor  ratio between the heap held by an unmarshalled shared data file and the size of
+   *                                   its XML content.
+   */
   public GtfsExportQueueRouteBuilder(
     StopAreaRepositoryFactory stopAreaRepositoryFactory,
+    DamuBlobStoreService damuBlobStoreService,
+    PayloadSpool payloadSpool,
+    ObjectProvider<BuildProperties> buildProperties,
     @Value("${damu.gtfs.export.folder:damu}") String gtfsExportFolder,
     @Value(
       "${damu.gtfs.export.transfer.stayseated:false}"
-    ) boolean generateStaySeatedTransfer
+    ) boolean generateStaySeatedTransfer,
+    @Value(
+      "${damu.gtfs.export.compression.upload:}"
+    ) String uploadCompression,
+    @Value(
+      "${damu.gtfs.export.compression.validation:}"
+    ) String validationCompression,
+    @Value(
+      "${damu.gtfs.export.conversion.cache.enabled:false}"
+    ) boolean conversionCacheEnabled,
+    @Value(
+      "${damu.gtfs.export.validation.async:false}"
+    ) boolean asyncValidation,
+    @Value(
+      "${damu.gtfs.export.validation.async.concurrency:1}"
+    ) int asyncValidationConcurrency,
+    @Value(
+      "${damu.gtfs.export.validation.async.queue:10}"
+    ) int asyncValidationQueueSize,
+    @Value(
+      "${damu.gtfs.export.netex.parsing.parallelism:1}"
+    ) int netexParsingParallelism,
+    @Value(
+      "${damu.gtfs.export.netex.shared.data.cache.max.heap:0}"
+    ) long netexSharedDataCacheHeap,
+    @Value(
+      "${damu.gtfs.export.netex.shared.data.cache.heap.factor:5}"
+    ) double netexSharedDataHeapFactor
   ) {
     super();
     this.stopAreaRepositoryFactory = stopAreaRepositoryFactory;
+    this.damuBlobStoreService = damuBlobStoreService;
+    this.payloadSpool = payloadSpool;
     this.gtfsExportFilePath = gtfsExportFolder + '/' + GTFS_EXPORT_FILE_NAME;
     this.generateStaySeatedTransfer = generateStaySeatedTransfer;
+    this.uploadCompression = parseCompression(uploadCompression);
+    this.validationCompression = parseCompression(validationCompression);
+    this.conversionCacheEnabled = conversionCacheEnabled;
+    this.conversionVersion = conversionVersion(
+      buildProperties.getIfAvailable()
+    );
+    this.asyncValidation = asyncValidation;
+    this.asyncValidationConcurrency = asyncValidationConcurrency;
+    this.asyncValidationQueueSize = asyncValidationQueueSize;
+    this.netexParsingParallelism = netexParsingParallelism;
+    this.netexSharedDataCache =
+      netexSharedDataCacheHeap > 0
+        ? new NetexDocumentCache(
+          netexSharedDataCacheHeap,
+          netexSharedDataHeapFactor
+        )
+        : null;
+  }
+
+  private static ZipCompression parseCompression(String level) {
+    return level.isBlank() ? null : ZipCompression.parse(level, "");
   }
 
   @Override
   public void configure() throws Exception {
     super.configure();
 
-    onException(GtfsExportException.class)
+    from("direct:exportGtfs")
+      // scoped to the export route: a failure in a sub-route, including a concurrent branch, is propagated here and
+      // reported once, instead of being handled in the sub-route while the export goes on
+      .onException(GtfsExportException.class)
       .handled(true)
       .log(
         LoggingLevel.ERROR,
@@ -88,10 +233,7 @@ public class GtfsExportQueueRouteBuilder extends BaseRouteBuilder {
       )
       .setBody(constant(STATUS_EXPORT_FAILED))
       .to("direct:notifyMarduk")
-      .end();
-
-    from("direct:exportGtfs")
-      .streamCache("true")
+      .end()
       .process(this::setCorrelationIdIfMissing)
       .setHeader(DATASET_REFERENTIAL, bodyAs(String.class))
       .process(this::updateMdcFromHeaders)
@@ -100,12 +242,30 @@ public class GtfsExportQueueRouteBuilder extends BaseRouteBuilder {
       .to("direct:notifyMarduk")
       .to("direct:downloadNetexTimetableDataset")
       .log(LoggingLevel.INFO, correlation() + "NeTEx Timetable file downloaded")
+      .process(this::lookupConvertedGtfs)
       .setHeader(TIMETABLE_DATASET_FILE, body())
       .process(this::extendAckDeadline)
+      .choice()
+      .when(header(CONVERSION_CACHE_HIT).isEqualTo(true))
+      .to("direct:reuseConvertedGtfs")
+      .otherwise()
       .to("direct:convertToGtfs")
       .process(this::extendAckDeadline)
+      // the branches run concurrently, each one reading the spooled GTFS dataset through its own stream;
+      // the export is reported as successful only once all branches have completed, and as failed if any of them
+      // failed
       .multicast()
-      .to("direct:validateGtfs", "direct:uploadGtfsDataset")
+      .parallelProcessing()
+      .to(
+        asyncValidation
+          ? "direct:enqueueExportedGtfsValidation"
+          : "direct:validateExportedGtfs",
+        "direct:uploadGtfsDataset",
+        "direct:cacheConvertedGtfs"
+      )
+      //end multicast
+      .end()
+      //end choice
       .end()
       .process(this::extendAckDeadline)
       .setBody(constant(STATUS_EXPORT_OK))
@@ -124,33 +284,136 @@ public class GtfsExportQueueRouteBuilder extends BaseRouteBuilder {
       .stop()
       //end filter
       .end()
+      .process(payloadSpool::spoolBody)
       .routeId("download-netex-timetable-dataset");
 
     from("direct:convertToGtfs")
       .log(LoggingLevel.INFO, correlation() + "Converting to GTFS")
       .process(exchange -> {
-        InputStream timetableDataset = exchange
-          .getIn()
-          .getHeader(TIMETABLE_DATASET_FILE, InputStream.class);
         String codespace = exchange
           .getIn()
           .getHeader(DATASET_REFERENTIAL, String.class)
           .replace("rb_", "")
           .toUpperCase();
 
-        GtfsExporter gtfsExporter = new EnturGtfsExporter(
+        EnturGtfsExporter gtfsExporter = new EnturGtfsExporter(
           codespace,
           stopAreaRepositoryFactory.getStopAreaRepository(),
-          generateStaySeatedTransfer
+          generateStaySeatedTransfer,
+          netexParsingParallelism,
+          netexSharedDataCache
         );
-        exchange
-          .getIn()
-          .setBody(gtfsExporter.convertTimetablesToGtfs(timetableDataset));
+        InputStream gtfs;
+        // a spooled NeTEx dataset is read through its zip central directory
+        if (
+          exchange.getIn().getHeader(TIMETABLE_DATASET_FILE) instanceof
+            File timetableDatasetFile
+        ) {
+          gtfs = gtfsExporter.convertTimetablesToGtfs(timetableDatasetFile);
+        } else {
+          try (
+            InputStream timetableDataset = exchange
+              .getIn()
+              .getHeader(TIMETABLE_DATASET_FILE, InputStream.class)
+          ) {
+            gtfs = gtfsExporter.convertTimetablesToGtfs(timetableDataset);
+          }
+        }
+        long spoolStart = System.nanoTime();
+        exchange.getIn().setBody(payloadSpool.spool(exchange, gtfs));
+        NetexConversionMetrics conversionMetrics =
+          gtfsExporter.getConversionMetrics();
+        conversionMetrics.recordPhase(
+          NetexConversionMetrics.PHASE_SPOOL,
+          System.nanoTime() - spoolStart
+        );
+        exchange.setProperty(CONVERSION_METRICS, conversionMetrics);
       })
-      .log(LoggingLevel.INFO, correlation() + "Dataset processing complete")
+      .log(
+        LoggingLevel.INFO,
+        correlation() +
+        "Dataset processing complete: ${exchangeProperty." +
+        CONVERSION_METRICS +
+        "}"
+      )
       .routeId("convert-to-gtfs");
 
+    from("direct:validateExportedGtfs")
+      .process(recompressGtfs(validationCompression, "export-validation"))
+      .to("direct:validateGtfsDataset")
+      .process(payloadSpool::spoolBody)
+      .filter(header(CONVERSION_CACHE_KEY).isNotNull())
+      .process(exchange ->
+        storeInConversionCache(
+          exchange,
+          CONVERSION_CACHE_VALIDATION_REPORTS_FILE_NAME,
+          exchange.getIn().getBody(InputStream.class)
+        )
+      )
+      //end filter
+      .end()
+      .to("direct:uploadValidationReports")
+      .routeId("validate-exported-gtfs");
+
+    // the validation works on its own copy of the GTFS dataset, since the dataset spooled by the export is deleted
+    // as soon as the export completes.
+    // When all workers are busy and the queue is full, the GTFS dataset is validated in the export thread.
+    from("direct:enqueueExportedGtfsValidation")
+      .wireTap("direct:validateExportedGtfsAsync")
+      .executorService(asyncValidationExecutorService())
+      .onPrepare(payloadSpool::copyBody)
+      .log(LoggingLevel.INFO, correlation() + "GTFS validation enqueued")
+      .routeId("enqueue-exported-gtfs-validation");
+
+    from("direct:validateExportedGtfsAsync")
+      .onException(Exception.class)
+      .handled(true)
+      .log(
+        LoggingLevel.ERROR,
+        correlation() +
+        "Asynchronous GTFS validation failed: ${exception.message} stacktrace: ${exception.stacktrace}"
+      )
+      .process(exchange -> countAsyncValidation(false))
+      .end()
+      .log(
+        LoggingLevel.INFO,
+        correlation() + "Starting asynchronous GTFS validation"
+      )
+      .to("direct:validateExportedGtfs")
+      .process(exchange -> countAsyncValidation(true))
+      .log(
+        LoggingLevel.INFO,
+        correlation() + "Asynchronous GTFS validation complete"
+      )
+      .routeId("validate-exported-gtfs-async");
+
+    from("direct:cacheConvertedGtfs")
+      .filter(header(CONVERSION_CACHE_KEY).isNotNull())
+      .process(exchange ->
+        storeInConversionCache(
+          exchange,
+          CONVERSION_CACHE_GTFS_FILE_NAME,
+          exchange.getIn().getBody(InputStream.class)
+        )
+      )
+      //end filter
+      .end()
+      .routeId("cache-converted-gtfs");
+
+    from("direct:reuseConvertedGtfs")
+      .log(
+        LoggingLevel.INFO,
+        correlation() +
+        "Reusing the GTFS dataset converted from an identical NeTEx dataset"
+      )
+      .setBody(exchangeProperty(CACHED_VALIDATION_REPORTS))
+      .to("direct:uploadValidationReports")
+      .setBody(exchangeProperty(CACHED_GTFS_DATASET))
+      .to("direct:uploadGtfsDataset")
+      .routeId("reuse-converted-gtfs");
+
     from("direct:uploadGtfsDataset")
+      .process(recompressGtfs(uploadCompression, "export-upload"))
       .setHeader(FILE_HANDLE, simple(gtfsExportFilePath))
       .log(
         LoggingLevel.INFO,
@@ -177,4 +440,180 @@ public class GtfsExportQueueRouteBuilder extends BaseRouteBuilder {
       .to("google-pubsub:{{damu.pubsub.project.id}}:DamuExportGtfsStatusQueue")
       .routeId("notify-marduk");
   }
+
+  private ExecutorService asyncValidationExecutorService() {
+    return getContext()
+      .getExecutorServiceManager()
+      .newThreadPool(
+        this,
+        "GtfsValidation",
+        new ThreadPoolProfileBuilder("GtfsValidation")
+          .poolSize(asyncValidationConcurrency)
+          .maxPoolSize(asyncValidationConcurrency)
+          .maxQueueSize(asyncValidationQueueSize)
+          .rejectedPolicy(ThreadPoolRejectedPolicy.CallerRuns)
+          .build()
+      );
+  }
+
+  private static void countAsyncValidation(boolean success) {
+    Metrics
+      .counter(METRIC_ASYNC_VALIDATION, "result", success ? "ok" : "failed")
+      .increment();
+  }
+
+  /**
+   * Look up the conversion cache for a GTFS dataset converted from the NeTEx dataset in the message body.
+   * The cache key is a digest of the NeTEx dataset, the dataset referential, the version of the conversion code, the
+   * version of the stop area repository and the export settings. On a hit, the cached GTFS dataset and validation
+   * reports are set in exchange properties.
+   * The cache is not used if the version of the conversion code or of the stop area repository is unknown.
+   */
+  private void lookupConvertedGtfs(Exchange exchange) throws IOException {
+    if (!conversionCacheEnabled || conversionVersion == null) {
+      return;
+    }
+    String stopAreaRepositoryVersion =
+      stopAreaRepositoryFactory instanceof EnturStopAreaRepositoryFactory factory
+        ? factory.getStopAreaRepositoryVersion()
+        : null;
+    if (stopAreaRepositoryVersion == null) {
+      return;
+    }
+
+    String cacheKey;
+    try (
+      InputStream timetableDataset = exchange.getIn().getBody(InputStream.class)
+    ) {
+      cacheKey = conversionCacheKey(
+        conversionVersion,
+        exchange.getIn().getHeader(DATASET_REFERENTIAL, String.class),
+        stopAreaRepositoryVersion,
+        generateStaySeatedTransfer,
+        timetableDataset
+      );
+    }
+    exchange.getIn().setHeader(CONVERSION_CACHE_KEY, cacheKey);
+
+    InputStream cachedGtfsDataset = damuBlobStoreService.getBlob(
+      conversionCachePath(cacheKey, CONVERSION_CACHE_GTFS_FILE_NAME)
+    );
+    InputStream cachedValidationReports = cachedGtfsDataset == null
+      ? null
+      : damuBlobStoreService.getBlob(
+        conversionCachePath(
+          cacheKey,
+          CONVERSION_CACHE_VALIDATION_REPORTS_FILE_NAME
+        )
+      );
+    boolean hit = cachedValidationReports != null;
+    if (hit) {
+      exchange.setProperty(CACHED_GTFS_DATASET, cachedGtfsDataset);
+      exchange.setProperty(CACHED_VALIDATION_REPORTS, cachedValidationReports);
+    } else if (cachedGtfsDataset != null) {
+      cachedGtfsDataset.close();
+    }
+    exchange.getIn().setHeader(CONVERSION_CACHE_HIT, hit);
+    Metrics
+      .counter(METRIC_CONVERSION_CACHE, "result", hit ? "hit" : "miss")
+      .increment();
+  }
+
+  /**
+   * Version of the conversion code: the version of the cache key, of the converter library and of the Damu build.
+   * The build time is included since the version of Damu is not changed from one build to the next.
+   *
+   * @return the version of the conversion code, or null if the build information is not available.
+   */
+  static String conversionVersion(BuildProperties buildProperties) {
+    if (
+      buildProperties == null ||
+      buildProperties.get(CONVERTER_VERSION_BUILD_PROPERTY) == null ||
+      buildProperties.getVersion() == null
+    ) {
+      return null;
+    }
+    return (
+      CONVERSION_CACHE_VERSION +
+      "\n" +
+      buildProperties.get(CONVERTER_VERSION_BUILD_PROPERTY) +
+      "\n" +
+      buildProperties.getVersion() +
+      "\n" +
+      buildProperties.getTime()
+    );
+  }
+
+  /**
+   * Digest of a NeTEx dataset and of everything else the GTFS dataset converted from it depends on.
+   */
+  static String conversionCacheKey(
+    String conversionVersion,
+    String datasetReferential,
+    String stopAreaRepositoryVersion,
+    boolean generateStaySeatedTransfer,
+    InputStream timetableDataset
+  ) throws IOException {
+    MessageDigest digest = sha256();
+    String keyPrefix =
+      conversionVersion +
+      "\n" +
+      datasetReferential +
+      "\n" +
+      stopAreaRepositoryVersion +
+      "\n" +
+      generateStaySeatedTransfer +
+      "\n";
+    digest.update(keyPrefix.getBytes(StandardCharsets.UTF_8));
+    timetableDataset.transferTo(
+      new DigestOutputStream(OutputStream.nullOutputStream(), digest)
+    );
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  private void storeInConversionCache(
+    Exchange exchange,
+    String fileName,
+    InputStream content
+  ) throws IOException {
+    damuBlobStoreService.uploadBlob(
+      conversionCachePath(
+        exchange.getIn().getHeader(CONVERSION_CACHE_KEY, String.class),
+        fileName
+      ),
+      content
+    );
+  }
+
+  private static String conversionCachePath(String cacheKey, String fileName) {
+    return CONVERSION_CACHE_FOLDER + cacheKey + fileName;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Copy the GTFS dataset with the given compression, or leave it unchanged if the compression is not configured.
+   */
+  private static Processor recompressGtfs(
+    ZipCompression compression,
+    String output
+  ) {
+    return exchange -> {
+      if (compression != null) {
+        try (InputStream gtfs = exchange.getIn().getBody(InputStream.class)) {
+          exchange
+            .getIn()
+            .setBody(
+              GtfsFileUtils.recompressToInputStream(gtfs, output, compression)
+            );
+        }
+      }
+    };
+  }
 }
@@ -0,0 +1,138 @@
+package no.entur.damu.routes.file;
+
+import io.micrometer.core.instrument.Metrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Replace streamed exchange bodies by re-readable payloads, so that large datasets are carried through a route as
+ * files rather than buffered in memory.
+ * A payload up to the spool threshold is kept in memory as a byte array. A larger payload is spooled to a temporary
+ * file in the spool directory, and the file is deleted when the exchange completes.
+ * Both kinds of payload are converted by Camel into a new input stream each time the body is read as an input stream,
+ * and are therefore not spooled again.
+ */
+@Component
+public class PayloadSpool {
+
+  public static final String METRIC_SPOOLED_BYTES = "damu.spool.bytes";
+  public static final String METRIC_SPOOLED_FILES = "damu.spool.files";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    PayloadSpool.class
+  );
+
+  private final Path spoolDirectory;
+  private final int spoolThreshold;
+  private final AtomicLong spooledBytes = new AtomicLong();
+  private final AtomicLong spooledFiles = new AtomicLong();
+
+  /**
+   * @param spoolDirectory the directory of the spooled payloads. If empty, the default temporary directory is used.
+   * @param spoolThreshold the size in bytes above which payloads are spooled to disk.
+   */
+  public PayloadSpool(
+    @Value("${damu.spool.directory:}") String spoolDirectory,
+    @Value("${damu.spool.threshold:1048576}") int spoolThreshold
+  ) {
+    this.spoolDirectory =
+      spoolDirectory.isBlank()
+        ? Path.of(System.getProperty("java.io.tmpdir"))
+        : Path.of(spoolDirectory);
+    this.spoolThreshold = spoolThreshold;
+    Metrics.gauge(METRIC_SPOOLED_BYTES, spooledBytes);
+    Metrics.gauge(METRIC_SPOOLED_FILES, spooledFiles);
+  }
+
+  /**
+   * Replace the body of the exchange by a re-readable payload. A null body, or a body that is already a byte array or
+   * a file, is left unchanged.
+   */
+  public void spoolBody(Exchange exchange) throws IOException {
+    Object body = exchange.getIn().getBody();
+    if (body instanceof byte[] || body instanceof File) {
+      return;
+    }
+    InputStream content = exchange.getIn().getBody(InputStream.class);
+    if (content != null) {
+      exchange.getIn().setBody(spool(exchange, content));
+    }
+  }
+
+  /**
+   * Replace the body of the exchange by a payload owned by the exchange, typically a copy made by a wire tap that
+   * outlives the original exchange. A file body is spooled again, since the file is deleted when the exchange that
+   * spooled it completes. A byte array body is shared, and any other body is spooled.
+   */
+  public void copyBody(Exchange exchange) throws IOException {
+    if (exchange.getIn().getBody() instanceof File file) {
+      exchange
+        .getIn()
+        .setBody(spool(exchange, Files.newInputStream(file.toPath())));
+    } else {
+      spoolBody(exchange);
+    }
+  }
+
+  /**
+   * Read a stream into a re-readable payload that lives as long as the exchange.
+   *
+   * @param exchange the exchange owning the payload.
+   * @param content  the content of the payload. Closed once read.
+   * @return the payload, either a byte array or a file.
+   */
+  public Object spool(Exchange exchange, InputStream content)
+    throws IOException {
+    try (content) {
+      byte[] head = content.readNBytes(spoolThreshold + 1);
+      if (head.length <= spoolThreshold) {
+        return head;
+      }
+      Files.createDirectories(spoolDirectory);
+      Path spoolFile = Files.createTempFile(spoolDirectory, "damu-spool", "");
+      long size;
+      try (OutputStream spoolStream = Files.newOutputStream(spoolFile)) {
+        spoolStream.write(head);
+        size = head.length + content.transferTo(spoolStream);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(spoolFile);
+        throw e;
+      }
+      spooledBytes.addAndGet(size);
+      spooledFiles.incrementAndGet();
+      LOGGER.debug("Spooled {} bytes to {}", size, spoolFile);
+      exchange
+        .getExchangeExtension()
+        .addOnCompletion(
+          new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+              delete(spoolFile, size);
+            }
+          }
+        );
+      return spoolFile.toFile();
+    }
+  }
+
+  private void delete(Path spoolFile, long size) {
+    try {
+      Files.deleteIfExists(spoolFile);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to delete spooled payload {}", spoolFile, e);
+    }
+    spooledBytes.addAndGet(-size);
+    spooledFiles.decrementAndGet();
+  }
+}
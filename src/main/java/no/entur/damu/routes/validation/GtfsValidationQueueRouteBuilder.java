@@ -21,11 +21,14 @@ package no.entur.damu.routes.validation;
 import static no.entur.damu.Constants.DATASET_REFERENTIAL;
 import static no.entur.damu.Constants.FILE_HANDLE;
 
-import java.io.InputStream;
+import java.io.File;
 import no.entur.damu.Constants;
+import no.entur.damu.gtfs.validator.GtfsValidationExecutor;
 import no.entur.damu.gtfs.validator.GtfsValidator;
 import no.entur.damu.routes.BaseRouteBuilder;
+import no.entur.damu.routes.file.PayloadSpool;
 import org.apache.camel.LoggingLevel;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 @Component
@@ -39,16 +42,37 @@ public class GtfsValidationQueueRouteBuilder extends BaseRouteBuilder {
     Constants.GTFS_VALIDATION_REPORTS_FILENAME_SUFFIX;
 
   private final String gtfsValidationReportsFilePath;
+  private final PayloadSpool payloadSpool;
+  private final GtfsValidationExecutor gtfsValidationExecutor;
+  private final boolean warmUpValidator;
 
-  public GtfsValidationQueueRouteBuilder() {
+  /**
+   * @param warmUpValidator validate a minimal GTFS feed at startup, so that the first exported dataset is not
+   *                        slowed down by the loading of the validator.
+   */
+  public GtfsValidationQueueRouteBuilder(
+    PayloadSpool payloadSpool,
+    GtfsValidationExecutor gtfsValidationExecutor,
+    @Value("${damu.gtfs.validation.warmup:false}") boolean warmUpValidator
+  ) {
     super();
     this.gtfsValidationReportsFilePath = GTFS_VALIDATION_REPORT_FILE_NAME;
+    this.payloadSpool = payloadSpool;
+    this.gtfsValidationExecutor = gtfsValidationExecutor;
+    this.warmUpValidator = warmUpValidator;
   }
 
   @Override
   public void configure() throws Exception {
     super.configure();
 
+    if (warmUpValidator) {
+      from("quartz://damu/warmUpGtfsValidatorAtStartup?trigger.repeatCount=0")
+        .log(LoggingLevel.INFO, "Warming up the GTFS validator")
+        .process(exchange -> GtfsValidator.warmUp())
+        .routeId("gtfs-validator-warm-up-at-startup-quartz");
+    }
+
     from("direct:validateGtfs")
       .to("direct:validateGtfsDataset")
       .to("direct:uploadValidationReports")
@@ -56,14 +80,22 @@ public class GtfsValidationQueueRouteBuilder extends BaseRouteBuilder {
 
     from("direct:validateGtfsDataset")
       .log(LoggingLevel.INFO, "Validating GTFS dataset")
+      .process(payloadSpool::spoolBody)
       .process(exchange -> {
+        String datasetReferential = exchange
+          .getIn()
+          .getHeader(DATASET_REFERENTIAL, String.class);
+        // a spooled GTFS dataset is validated in place
+        Object gtfs = exchange.getIn().getBody();
         exchange
           .getIn()
           .setBody(
-            GtfsValidator.validate(
-              exchange.getIn().getHeader(DATASET_REFERENTIAL, String.class),
-              exchange.getIn().getBody(InputStream.class)
-            )
+            gtfs instanceof File gtfsFile
+              ? gtfsValidationExecutor.validate(datasetReferential, gtfsFile)
+              : gtfsValidationExecutor.validate(
+                datasetReferential,
+                exchange.getIn().getMandatoryBody(byte[].class)
+              )
           );
       })
       .log(LoggingLevel.INFO, "GTFS validation complete")
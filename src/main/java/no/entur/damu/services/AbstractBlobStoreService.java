@@ -18,6 +18,7 @@
 
 package no.entur.damu.services;
 
+import java.io.IOException;
 import java.io.InputStream;
 import no.entur.damu.Constants;
 import org.apache.camel.Header;
@@ -41,10 +42,15 @@ public abstract class AbstractBlobStoreService {
     return repository.getBlob(name);
   }
 
+  /**
+   * Upload a blob. The input stream is closed once uploaded.
+   */
   public void uploadBlob(
     @Header(value = Constants.FILE_HANDLE) String name,
     InputStream inputStream
-  ) {
-    repository.uploadBlob(name, inputStream);
+  ) throws IOException {
+    try (inputStream) {
+      repository.uploadBlob(name, inputStream);
+    }
   }
 }
@@ -1,18 +1,27 @@
 package no.entur.damu.stop;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.entur.netex.gtfs.export.stop.DefaultStopAreaRepository;
 import org.entur.netex.gtfs.export.stop.DefaultStopAreaRepositoryFactory;
 
 /**
  * A stop area repository factory that builds stop area repositories from a NeTEx dataset archive.
- * The dataset can be refreshed at runtime by calling {@link #refreshStopAreaRepository(InputStream)}
+ * The dataset can be refreshed at runtime by calling {@link #refreshStopAreaRepository(InputStream)}.
+ * The version of the current stop area repository is the SHA-256 hash of the NeTEx dataset archive it was loaded from.
  */
 public class EnturStopAreaRepositoryFactory
   extends DefaultStopAreaRepositoryFactory {
 
   private final QuayFetcher quayFetcher;
   private final StopPlaceFetcher stopPlaceFetcher;
+  private volatile String stopAreaRepositoryVersion;
 
   public EnturStopAreaRepositoryFactory(
     QuayFetcher quayFetcher,
@@ -31,7 +40,37 @@ public class EnturStopAreaRepositoryFactory
   public synchronized void refreshStopAreaRepository(InputStream stopDataset) {
     DefaultStopAreaRepository defaultStopAreaRepository =
       new DefaultStopAreaRepository(quayFetcher, stopPlaceFetcher);
-    defaultStopAreaRepository.loadStopAreas(stopDataset);
+    MessageDigest digest = sha256();
+    try (
+      DigestInputStream digestStream = new DigestInputStream(
+        stopDataset,
+        digest
+      )
+    ) {
+      defaultStopAreaRepository.loadStopAreas(
+        CloseShieldInputStream.wrap(digestStream)
+      );
+      // hash the trailing bytes of the archive that are not read by the loader
+      digestStream.transferTo(OutputStream.nullOutputStream());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
     setStopAreaRepository(defaultStopAreaRepository);
+    stopAreaRepositoryVersion = HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * @return the version of the current stop area repository, or null if no stop area repository is loaded.
+   */
+  public String getStopAreaRepositoryVersion() {
+    return stopAreaRepositoryVersion;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
   }
 }
@@ -0,0 +1,61 @@
+package no.entur.damu.gtfs.merger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class CompactDedupIndexTest {
+
+  @Test
+  void add_shouldTrackKeysPerTarget() {
+    CompactDedupIndex dedupIndex = new CompactDedupIndex(2, 10);
+
+    assertThat(dedupIndex.add(0, "NSR:Quay:1")).isTrue();
+    assertThat(dedupIndex.add(0, "NSR:Quay:1")).isFalse();
+    assertThat(dedupIndex.add(1, "NSR:Quay:1")).isTrue();
+    assertThat(dedupIndex.add(1, "NSR:Quay:1")).isFalse();
+    assertThat(dedupIndex.add(0, "NSR:Quay:2")).isTrue();
+    assertThat(dedupIndex.size()).isEqualTo(2);
+  }
+
+  @Test
+  void add_shouldCompareKeysExactly() {
+    CompactDedupIndex dedupIndex = new CompactDedupIndex(1, 10);
+
+    assertThat(dedupIndex.add(0, "")).isTrue();
+    assertThat(dedupIndex.add(0, "")).isFalse();
+    assertThat(dedupIndex.add(0, "Ås")).isTrue();
+    assertThat(dedupIndex.add(0, "Ås")).isFalse();
+    assertThat(dedupIndex.add(0, "ŠŽ")).isTrue();
+    assertThat(dedupIndex.add(0, "ŠŽ")).isFalse();
+    assertThat(dedupIndex.add(0, "Š")).isTrue();
+    assertThat(dedupIndex.add(0, "x".repeat(1000))).isTrue();
+    assertThat(dedupIndex.add(0, "x".repeat(1001))).isTrue();
+    assertThat(dedupIndex.add(0, "x".repeat(1000))).isFalse();
+  }
+
+  @Test
+  void add_shouldMatchHashSetIndexBeyondExpectedSize() {
+    DedupIndex compactIndex = new CompactDedupIndex(2, 16);
+    DedupIndex hashSetIndex = new HashSetDedupIndex(2, 16);
+    Random random = new Random(42);
+
+    for (int i = 0; i < 200_000; i++) {
+      String key = "NSR:Quay:" + random.nextInt(50_000);
+      int targetIndex = random.nextInt(2);
+      assertThat(compactIndex.add(targetIndex, key))
+        .as("Key %s for target %d", key, targetIndex)
+        .isEqualTo(hashSetIndex.add(targetIndex, key));
+    }
+  }
+
+  @Test
+  void constructor_shouldRejectTooManyTargets() {
+    assertThrows(
+      IllegalArgumentException.class,
+      () -> new CompactDedupIndex(CompactDedupIndex.MAX_TARGETS + 1, 10)
+    );
+  }
+}
@@ -0,0 +1,39 @@
+package no.entur.damu.gtfs.merger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class DedupKeyTest {
+
+  @Test
+  void addTo_shouldDistinguishFieldBoundaries() {
+    DedupIndex dedupIndex = new CompactDedupIndex(1, 10);
+
+    assertThat(addTo(dedupIndex, List.of("ab", "c", ""))).isTrue();
+    assertThat(addTo(dedupIndex, List.of("a", "bc", ""))).isTrue();
+    assertThat(addTo(dedupIndex, List.of("a", "b", "c"))).isTrue();
+    assertThat(addTo(dedupIndex, List.of("ab", "c", ""))).isFalse();
+    assertThat(addTo(dedupIndex, List.of("ab", "c"))).isTrue();
+  }
+
+  @Test
+  void addTo_shouldYieldSameKeyForStringsAndCharRanges() {
+    DedupIndex dedupIndex = new CompactDedupIndex(1, 10);
+    DedupKey dedupKey = new DedupKey();
+    char[] chars = "xxNSR:Quay:1NSR:Quay:2yy".toCharArray();
+    dedupKey.addField(chars, 2, 12);
+    dedupKey.addField(chars, 12, 22);
+
+    assertThat(dedupKey.addTo(dedupIndex, 0)).isTrue();
+    assertThat(addTo(dedupIndex, List.of("NSR:Quay:1", "NSR:Quay:2")))
+      .isFalse();
+  }
+
+  private static boolean addTo(DedupIndex dedupIndex, List<String> fields) {
+    DedupKey dedupKey = new DedupKey();
+    fields.forEach(dedupKey::addField);
+    return dedupKey.addTo(dedupIndex, 0);
+  }
+}
@@ -0,0 +1,233 @@
+package no.entur.damu.gtfs.merger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeroturnaround.zip.ZipUtil;
+
+class GtfsCsvRowTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    GtfsCsvRowTest.class
+  );
+
+  private static final String EXTENDED_GTFS_FILE =
+    "src/test/resources/extended_gtfs.zip";
+
+  private static final CSVFormat PARSER_FORMAT = CSVFormat.DEFAULT
+    .builder()
+    .setTrim(true)
+    .get();
+
+  @Test
+  void readRow_shouldParseLikeCommonsCsv() throws IOException {
+    String content =
+      "a,b,c\r\n" +
+      "\n\n" +
+      " x ,\"y,\"\"z\"\" \" ,\n" +
+      "\"multi\nline\"  ,#,\"\"\r" +
+      "\"é\",not\"quoted\",\n" +
+      "  \n" +
+      "last,row";
+
+    assertThat(readRows(content)).isEqualTo(parseRecords(content));
+  }
+
+  @Test
+  void readRow_shouldRejectUnterminatedQuotes() {
+    assertThrows(IOException.class, () -> readRows("a,\"b\nc"));
+    assertThrows(IOException.class, () -> readRows("a,\"b\"c\n"));
+  }
+
+  @Test
+  void writeRow_shouldWriteLikeCsvPrinter() throws IOException {
+    List<List<String>> rows = List.of(
+      List.of("", "", ""),
+      List.of("a", "", "b"),
+      List.of(" leading", "trailing ", "in side"),
+      List.of("comma,", "quote\"", "line\nbreak", "cr\rreturn"),
+      List.of("#comment", "!bang", "$dollar", "é"),
+      List.of("\"quoted\"", "tab\t", "0")
+    );
+
+    StringWriter csvPrinterOutput = new StringWriter();
+    try (
+      CSVPrinter csvPrinter = new CSVPrinter(
+        csvPrinterOutput,
+        CSVFormat.DEFAULT
+      )
+    ) {
+      for (List<String> row : rows) {
+        csvPrinter.printRecord(row);
+      }
+    }
+
+    StringWriter rowWriterOutput = new StringWriter();
+    GtfsCsvRow csvRow = new GtfsCsvRow();
+    try (GtfsCsvWriter csvWriter = new GtfsCsvWriter(rowWriterOutput)) {
+      for (List<String> row : rows) {
+        csvRow.clear();
+        row.forEach(csvRow::addField);
+        csvWriter.writeRow(csvRow);
+      }
+    }
+
+    assertThat(rowWriterOutput).hasToString(csvPrinterOutput.toString());
+  }
+
+  /**
+   * Compare the heap allocated per million converted stop times rows by the CSVRecord path and by the row buffer
+   * path, measured with the per-thread allocation counter of the JVM.
+   * Measured with JDK 21: about 835 MB per million rows on the CSVRecord path and 6.8 MB on the row buffer path.
+   * Run with -Ddamu.benchmark=true.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "damu.benchmark", matches = "true")
+  void benchmark_allocationPerMillionRows() throws IOException {
+    String content = new String(
+      ZipUtil.unpackEntry(
+        new File(EXTENDED_GTFS_FILE),
+        GtfsConstants.STOP_TIMES_TXT
+      ),
+      StandardCharsets.UTF_8
+    );
+    GtfsMergeTarget target = new GtfsMergeTarget(
+      GtfsExport.GTFS_BASIC,
+      false
+    );
+    String[] targetHeaders = target
+      .gtfsExport()
+      .getHeaders()
+      .get(GtfsConstants.STOP_TIMES_TXT);
+    GtfsRecordConverter recordConverter = GtfsRecordConverter.compile(
+      target,
+      targetHeaders,
+      Arrays.asList(content.substring(0, content.indexOf('\n')).split(","))
+    );
+
+    int iterations = 50;
+    long csvRecordRows = 0;
+    long rowBufferRows = 0;
+    for (int warmup = 0; warmup < 5; warmup++) {
+      writeWithCsvRecords(content, recordConverter);
+      writeWithRowBuffer(content, recordConverter);
+    }
+
+    long start = allocatedBytes();
+    for (int i = 0; i < iterations; i++) {
+      csvRecordRows += writeWithCsvRecords(content, recordConverter);
+    }
+    long csvRecordBytes = allocatedBytes() - start;
+
+    start = allocatedBytes();
+    for (int i = 0; i < iterations; i++) {
+      rowBufferRows += writeWithRowBuffer(content, recordConverter);
+    }
+    long rowBufferBytes = allocatedBytes() - start;
+
+    LOGGER.info(
+      "Allocated bytes per million rows: CSVRecord {}, row buffer {}",
+      csvRecordBytes * 1_000_000 / csvRecordRows,
+      rowBufferBytes * 1_000_000 / rowBufferRows
+    );
+    assertThat(rowBufferRows).isEqualTo(csvRecordRows);
+  }
+
+  private static long writeWithCsvRecords(
+    String content,
+    GtfsRecordConverter recordConverter
+  ) throws IOException {
+    long rows = 0;
+    try (
+      CSVParser csvParser = CSVParser
+        .builder()
+        .setFormat(
+          PARSER_FORMAT
+            .builder()
+            .setHeader()
+            .setSkipHeaderRecord(true)
+            .setIgnoreHeaderCase(true)
+            .get()
+        )
+        .setReader(new StringReader(content))
+        .get();
+      CSVPrinter csvPrinter = new CSVPrinter(
+        Writer.nullWriter(),
+        CSVFormat.DEFAULT
+      )
+    ) {
+      for (CSVRecord csvRecord : csvParser) {
+        csvPrinter.printRecord(recordConverter.convert(csvRecord));
+        rows++;
+      }
+    }
+    return rows;
+  }
+
+  private static long writeWithRowBuffer(
+    String content,
+    GtfsRecordConverter recordConverter
+  ) throws IOException {
+    long rows = 0;
+    GtfsCsvReader csvReader = new GtfsCsvReader(new StringReader(content));
+    GtfsCsvRow sourceRow = new GtfsCsvRow();
+    GtfsCsvRow targetRow = new GtfsCsvRow();
+    try (GtfsCsvWriter csvWriter = new GtfsCsvWriter(Writer.nullWriter())) {
+      csvReader.readRow(sourceRow);
+      while (csvReader.readRow(sourceRow)) {
+        recordConverter.convert(sourceRow, targetRow);
+        csvWriter.writeRow(targetRow);
+        rows++;
+      }
+    }
+    return rows;
+  }
+
+  private static long allocatedBytes() {
+    return (
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+    ).getCurrentThreadAllocatedBytes();
+  }
+
+  private static List<List<String>> readRows(String content)
+    throws IOException {
+    GtfsCsvReader csvReader = new GtfsCsvReader(new StringReader(content));
+    GtfsCsvRow row = new GtfsCsvRow();
+    List<List<String>> rows = new ArrayList<>();
+    while (csvReader.readRow(row)) {
+      rows.add(row.getStrings());
+    }
+    return rows;
+  }
+
+  private static List<List<String>> parseRecords(String content)
+    throws IOException {
+    try (
+      CSVParser csvParser = CSVParser
+        .builder()
+        .setFormat(PARSER_FORMAT)
+        .setReader(new StringReader(content))
+        .get()
+    ) {
+      return csvParser.stream().map(CSVRecord::toList).toList();
+    }
+  }
+}
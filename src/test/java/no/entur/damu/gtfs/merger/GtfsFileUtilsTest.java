@@ -22,12 +22,19 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import no.entur.damu.routes.file.ZipFileUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
@@ -37,6 +44,8 @@ class GtfsFileUtilsTest {
 
   private static final String GTFS_FILE_1 = "src/test/resources/gtfs.zip";
   private static final String GTFS_FILE_2 = "src/test/resources/gtfs2.zip";
+  private static final String EXTENDED_GTFS_FILE =
+    "src/test/resources/extended_gtfs.zip";
 
   @Test
   void notADirectory() {
@@ -125,4 +134,552 @@ class GtfsFileUtilsTest {
       )
       .hasSize(3);
   }
+
+  @Test
+  void mergeGtfsFiles_parallelMergeShouldYieldSameEntriesAsSequentialMerge()
+    throws Exception {
+    List<File> inputs = List.of(new File(GTFS_FILE_1), new File(GTFS_FILE_2));
+    File sequentiallyMerged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      GtfsExport.GTFS_EXTENDED,
+      true,
+      1
+    );
+    File parallelMerged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      GtfsExport.GTFS_EXTENDED,
+      true,
+      4
+    );
+
+    assertSameEntries(sequentiallyMerged, parallelMerged);
+  }
+
+  @Test
+  void mergeGtfsFiles_multipleTargetsShouldRemoveDuplicatesPerTarget()
+    throws Exception {
+    File sourceDirectory = Files
+      .createTempDirectory("damu-test-multiple-targets")
+      .toFile();
+    try {
+      String stopsHeader = "stop_id,stop_name,stop_lat,stop_lon\n";
+      String routesHeader =
+        "agency_id,route_id,route_short_name,route_long_name,route_type\n";
+      List<File> inputs = List.of(
+        createGtfsFile(
+          new File(sourceDirectory, "a-excluded.zip"),
+          Map.of(
+            GtfsConstants.STOPS_TXT,
+            stopsHeader +
+            "NSR:Quay:2,Duplicate,59.8,10.6\n" +
+            "NSR:Quay:3,Ferry quay,60.0,11.0\n",
+            GtfsConstants.ROUTES_TXT,
+            routesHeader + "B,R2,2,Ferry,1200\n"
+          )
+        ),
+        createGtfsFile(
+          new File(sourceDirectory, "b.zip"),
+          Map.of(
+            GtfsConstants.STOPS_TXT,
+            stopsHeader +
+            "NSR:Quay:1,\"Bus, stop\",59.9,10.7\n" +
+            "NSR:Quay:2,\"The \"\"Hub\"\"\",59.8,10.6\n",
+            GtfsConstants.ROUTES_TXT,
+            routesHeader + "A,R1,1,\"Line \"\"One\"\"\",701\n",
+            GtfsConstants.SHAPES_TXT,
+            "shape_id,shape_pt_sequence,shape_pt_lat,shape_pt_lon,shape_dist_traveled\n" +
+            "S1,1,59.9,10.7,0\n"
+          )
+        )
+      );
+      GtfsMergeTarget extendedTarget = new GtfsMergeTarget(
+        GtfsExport.GTFS_EXTENDED,
+        true
+      );
+      GtfsMergeTarget basicTarget = new GtfsMergeTarget(
+        GtfsExport.GTFS_BASIC,
+        false,
+        Set.of("a-excluded.zip")
+      );
+      String stopsTargetHeader =
+        "stop_id,stop_name,stop_lat,stop_lon,stop_desc,location_type," +
+        "parent_station,wheelchair_boarding,stop_timezone,vehicle_type," +
+        "platform_code\r\n";
+      String routesTargetHeader =
+        "agency_id,route_id,route_short_name,route_long_name,route_type," +
+        "route_desc,route_url,route_color,route_text_color\r\n";
+
+      for (GtfsMergeOptions mergeOptions : List.of(
+        GtfsMergeOptions.DEFAULT,
+        GtfsMergeOptions.DEFAULT
+          .withRowBuffer(true)
+          .withDedupIndex(GtfsMergeOptions.DedupIndexType.COMPACT),
+        GtfsMergeOptions.DEFAULT
+          .withDedupIndex(GtfsMergeOptions.DedupIndexType.COMPACT)
+          .withStreaming(true)
+          .withParallelism(4)
+      )) {
+        Map<GtfsMergeTarget, File> merged = GtfsFileUtils.mergeGtfsFiles(
+          inputs,
+          List.of(extendedTarget, basicTarget),
+          mergeOptions
+        );
+
+        // the first occurrence of a stop is kept, among the GTFS files merged into the target
+        assertThat(
+          entryContent(merged.get(extendedTarget), GtfsConstants.STOPS_TXT)
+        )
+          .isEqualTo(
+            stopsTargetHeader +
+            "NSR:Quay:2,Duplicate,59.8,10.6,,,,,,,\r\n" +
+            "NSR:Quay:3,Ferry quay,60.0,11.0,,,,,,,\r\n" +
+            "NSR:Quay:1,\"Bus, stop\",59.9,10.7,,,,,,,\r\n"
+          );
+        assertThat(
+          entryContent(merged.get(basicTarget), GtfsConstants.STOPS_TXT)
+        )
+          .isEqualTo(
+            stopsTargetHeader +
+            "NSR:Quay:1,\"Bus, stop\",59.9,10.7,,,,,,,\r\n" +
+            "NSR:Quay:2,\"The \"\"Hub\"\"\",59.8,10.6,,,,,,,\r\n"
+          );
+        assertThat(
+          entryContent(merged.get(extendedTarget), GtfsConstants.ROUTES_TXT)
+        )
+          .isEqualTo(
+            routesTargetHeader +
+            "B,R2,2,Ferry,1200,,,,\r\n" +
+            "A,R1,1,\"Line \"\"One\"\"\",701,,,,\r\n"
+          );
+        assertThat(
+          entryContent(merged.get(basicTarget), GtfsConstants.ROUTES_TXT)
+        )
+          .isEqualTo(
+            routesTargetHeader + "A,R1,1,\"Line \"\"One\"\"\",3,,,,\r\n"
+          );
+        assertThat(ZipFileUtils.listFilesInZip(merged.get(extendedTarget)))
+          .extracting(ZipEntry::getName)
+          .contains(GtfsConstants.SHAPES_TXT);
+        assertThat(ZipFileUtils.listFilesInZip(merged.get(basicTarget)))
+          .extracting(ZipEntry::getName)
+          .doesNotContain(GtfsConstants.SHAPES_TXT);
+      }
+    } finally {
+      FileUtils.deleteQuietly(sourceDirectory);
+    }
+  }
+
+  @Test
+  void mergeGtfsFiles_entriesWithTargetHeadersShouldBeCopiedAsIs()
+    throws Exception {
+    File input1 = new File(GTFS_FILE_1);
+    File input2 = new File(GTFS_FILE_2);
+    File merged = GtfsFileUtils.mergeGtfsFiles(
+      List.of(input1, input2),
+      GtfsExport.GTFS_BASIC,
+      false
+    );
+
+    // the source entries have LF line terminators
+    String expectedCalendarDates = (
+      "service_id,date,exception_type\n" +
+      withoutHeader(input1, GtfsConstants.CALENDAR_DATES_TXT) +
+      withoutHeader(input2, GtfsConstants.CALENDAR_DATES_TXT)
+    ).replace("\n", "\r\n");
+    assertThat(
+      new String(
+        ZipFileUtils.extractFileFromZipFile(
+          merged,
+          GtfsConstants.CALENDAR_DATES_TXT
+        ),
+        StandardCharsets.UTF_8
+      )
+    )
+      .isEqualTo(expectedCalendarDates);
+  }
+
+  @Test
+  void mergeGtfsFiles_copiedEntriesShouldBeNormalised() throws Exception {
+    File sourceDirectory = Files
+      .createTempDirectory("damu-test-copied-entries")
+      .toFile();
+    try {
+      File paddedGtfsFile = createGtfsFile(
+        new File(sourceDirectory, "padded.zip"),
+        Map.of(
+          GtfsConstants.CALENDAR_DATES_TXT,
+          "service_id,date,exception_type\n" +
+          " S1 ,20240101, 1\n" +
+          "\n" +
+          "S2,20240102,1 \n" +
+          "  \n" +
+          "\"S 3\",20240103,2\n" +
+          "\n"
+        )
+      );
+      File unterminatedGtfsFile = createGtfsFile(
+        new File(sourceDirectory, "unterminated.zip"),
+        Map.of(
+          GtfsConstants.CALENDAR_DATES_TXT,
+          "service_id,date,exception_type\r\nS4,20240104,1"
+        )
+      );
+      File merged = GtfsFileUtils.mergeGtfsFiles(
+        List.of(paddedGtfsFile, unterminatedGtfsFile),
+        GtfsExport.GTFS_BASIC,
+        false
+      );
+
+      assertThat(entryContent(merged, GtfsConstants.CALENDAR_DATES_TXT))
+        .isEqualTo(
+          "service_id,date,exception_type\r\n" +
+          "S1,20240101,1\r\n" +
+          "S2,20240102,1\r\n" +
+          "\"S 3\",20240103,2\r\n" +
+          "S4,20240104,1\r\n"
+        );
+    } finally {
+      FileUtils.deleteQuietly(sourceDirectory);
+    }
+  }
+
+  @Test
+  void mergeGtfsFiles_rowBufferShouldYieldSameEntriesAsCsvRecords()
+    throws Exception {
+    List<File> inputs = List.of(
+      new File(GTFS_FILE_1),
+      new File(GTFS_FILE_2),
+      new File(EXTENDED_GTFS_FILE)
+    );
+    List<GtfsMergeTarget> targets = List.of(
+      new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true),
+      new GtfsMergeTarget(GtfsExport.GTFS_BASIC, false)
+    );
+
+    Map<GtfsMergeTarget, File> csvRecordMerged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      targets,
+      GtfsMergeOptions.DEFAULT
+    );
+    Map<GtfsMergeTarget, File> rowBufferMerged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      targets,
+      GtfsMergeOptions.DEFAULT.withRowBuffer(true)
+    );
+
+    for (GtfsMergeTarget target : targets) {
+      assertSameEntries(
+        csvRecordMerged.get(target),
+        rowBufferMerged.get(target)
+      );
+    }
+  }
+
+  @Test
+  void mergeGtfsFiles_streamingShouldYieldSameEntriesAsWorkingDirectory()
+    throws Exception {
+    List<File> inputs = List.of(
+      new File(GTFS_FILE_1),
+      new File(GTFS_FILE_2),
+      new File(EXTENDED_GTFS_FILE)
+    );
+    List<GtfsMergeTarget> targets = List.of(
+      new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true),
+      new GtfsMergeTarget(GtfsExport.GTFS_BASIC, false, Set.of("gtfs2.zip"))
+    );
+
+    Map<GtfsMergeTarget, File> workingDirectoryMerged =
+      GtfsFileUtils.mergeGtfsFiles(inputs, targets, GtfsMergeOptions.DEFAULT);
+    for (int parallelism : new int[] { 1, 4 }) {
+      Map<GtfsMergeTarget, File> streamed = GtfsFileUtils.mergeGtfsFiles(
+        inputs,
+        targets,
+        GtfsMergeOptions.DEFAULT
+          .withStreaming(true)
+          .withParallelism(parallelism)
+      );
+      for (GtfsMergeTarget target : targets) {
+        assertSameEntries(
+          workingDirectoryMerged.get(target),
+          streamed.get(target)
+        );
+      }
+    }
+  }
+
+  @Test
+  void mergeGtfsFiles_parallelCompressionShouldYieldSameEntries()
+    throws Exception {
+    List<File> inputs = List.of(
+      new File(GTFS_FILE_1),
+      new File(GTFS_FILE_2),
+      new File(EXTENDED_GTFS_FILE)
+    );
+    List<GtfsMergeTarget> targets = List.of(
+      new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true),
+      new GtfsMergeTarget(GtfsExport.GTFS_BASIC, false)
+    );
+
+    Map<GtfsMergeTarget, File> merged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      targets,
+      GtfsMergeOptions.DEFAULT
+    );
+    Map<GtfsMergeTarget, File> compressed = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      targets,
+      GtfsMergeOptions.DEFAULT
+        .withStreaming(true)
+        .withParallelism(2)
+        .withCompressionParallelism(4)
+        .withCompression(ZipCompression.parse("9", "stop_times.txt=1"))
+    );
+    for (GtfsMergeTarget target : targets) {
+      assertSameEntries(merged.get(target), compressed.get(target));
+    }
+  }
+
+  @Test
+  void fetchAndMergeGtfsFiles_shouldYieldSameEntriesAsMergeOfDownloadedFiles()
+    throws Exception {
+    // in alphabetical order
+    List<File> inputs = List.of(
+      new File(EXTENDED_GTFS_FILE),
+      new File(GTFS_FILE_1),
+      new File(GTFS_FILE_2)
+    );
+    List<GtfsMergeTarget> targets = List.of(
+      new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true),
+      new GtfsMergeTarget(GtfsExport.GTFS_BASIC, false, Set.of("gtfs2.zip"))
+    );
+    Map<GtfsMergeTarget, File> merged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      targets,
+      GtfsMergeOptions.DEFAULT
+    );
+
+    File downloadDirectory = Files
+      .createTempDirectory("damu-test-download")
+      .toFile();
+    try {
+      for (int lookAhead : new int[] { 1, 2, 5 }) {
+        Map<GtfsMergeTarget, File> pipelined =
+          GtfsFileUtils.fetchAndMergeGtfsFiles(
+            // unsorted, with a GTFS file missing from the blob store
+            List.of(
+              "gtfs2.zip",
+              "missing.zip",
+              "gtfs.zip",
+              "extended_gtfs.zip"
+            ),
+            gtfsFileName -> {
+              File source = new File("src/test/resources", gtfsFileName);
+              if (!source.exists()) {
+                return null;
+              }
+              File downloaded = new File(downloadDirectory, gtfsFileName);
+              FileUtils.copyFile(source, downloaded);
+              return downloaded;
+            },
+            lookAhead,
+            targets,
+            GtfsMergeOptions.DEFAULT.withParallelism(lookAhead)
+          );
+        for (GtfsMergeTarget target : targets) {
+          assertSameEntries(merged.get(target), pipelined.get(target));
+        }
+        assertThat(downloadDirectory.list()).isEmpty();
+      }
+    } finally {
+      FileUtils.deleteQuietly(downloadDirectory);
+    }
+  }
+
+  @Test
+  void fetchAndMergeGtfsFiles_fetchFailureShouldFailTheMerge() {
+    List<GtfsMergeTarget> targets = List.of(
+      new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true)
+    );
+    assertThrows(
+      IOException.class,
+      () ->
+        GtfsFileUtils.fetchAndMergeGtfsFiles(
+          List.of("gtfs.zip", "gtfs2.zip"),
+          gtfsFileName -> {
+            throw new IOException("Download failed: " + gtfsFileName);
+          },
+          2,
+          targets,
+          GtfsMergeOptions.DEFAULT
+        )
+    );
+  }
+
+  @Test
+  void readAndMergeGtfsFiles_shouldYieldSameEntriesAsMergeOfDownloadedFiles()
+    throws Exception {
+    // in alphabetical order
+    List<File> inputs = List.of(
+      new File(EXTENDED_GTFS_FILE),
+      new File(GTFS_FILE_1),
+      new File(GTFS_FILE_2)
+    );
+    List<GtfsMergeTarget> targets = List.of(
+      new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true),
+      new GtfsMergeTarget(GtfsExport.GTFS_BASIC, false, Set.of("gtfs2.zip"))
+    );
+    Map<GtfsMergeTarget, File> merged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      targets,
+      GtfsMergeOptions.DEFAULT
+    );
+
+    Map<GtfsMergeTarget, File> direct = GtfsFileUtils.readAndMergeGtfsFiles(
+      // unsorted, with a GTFS file missing from the blob store
+      List.of("gtfs2.zip", "missing.zip", "gtfs.zip", "extended_gtfs.zip"),
+      gtfsFileName -> {
+        File source = new File("src/test/resources", gtfsFileName);
+        return source.exists() ? new FileInputStream(source) : null;
+      },
+      targets,
+      GtfsMergeOptions.DEFAULT
+    );
+    for (GtfsMergeTarget target : targets) {
+      assertSameEntries(merged.get(target), direct.get(target));
+    }
+  }
+
+  @Test
+  void mergeGtfsFilesIncrementally_shouldYieldSameEntriesAsFullMerge()
+    throws Exception {
+    // in alphabetical order
+    List<File> inputs = List.of(
+      new File(EXTENDED_GTFS_FILE),
+      new File(GTFS_FILE_1),
+      new File(GTFS_FILE_2)
+    );
+    List<GtfsMergeTarget> targets = List.of(
+      new GtfsMergeTarget(GtfsExport.GTFS_EXTENDED, true),
+      new GtfsMergeTarget(GtfsExport.GTFS_BASIC, false, Set.of("gtfs2.zip"))
+    );
+    Map<GtfsMergeTarget, File> merged = GtfsFileUtils.mergeGtfsFiles(
+      inputs,
+      targets,
+      GtfsMergeOptions.DEFAULT
+    );
+
+    File cacheDirectory = Files
+      .createTempDirectory("damu-test-fragments")
+      .toFile();
+    try {
+      GtfsFragmentCache fragmentCache = new GtfsFragmentCache(
+        cacheDirectory.toPath()
+      );
+      // the first merge converts the GTFS files concurrently, the second one reuses the fragments cached by the first
+      for (int run = 0; run < 2; run++) {
+        Map<GtfsMergeTarget, File> incremental =
+          GtfsFileUtils.mergeGtfsFilesIncrementally(
+            inputs,
+            fragmentCache,
+            targets,
+            GtfsMergeOptions.DEFAULT
+              .withRowBuffer(run == 0)
+              .withParallelism(run == 0 ? 4 : 1)
+          );
+        for (GtfsMergeTarget target : targets) {
+          assertSameEntries(merged.get(target), incremental.get(target));
+        }
+        assertThat(cacheDirectory.list()).hasSize(inputs.size());
+      }
+
+      // the fragments of the GTFS files that are no longer merged are removed
+      GtfsFileUtils.mergeGtfsFilesIncrementally(
+        List.of(new File(GTFS_FILE_1)),
+        fragmentCache,
+        targets,
+        GtfsMergeOptions.DEFAULT
+      );
+      assertThat(cacheDirectory.list()).hasSize(1);
+    } finally {
+      FileUtils.deleteQuietly(cacheDirectory);
+    }
+  }
+
+  @Test
+  void recompressShouldYieldSameEntries() throws Exception {
+    File recompressed = File.createTempFile("damu-recompressed", ".zip");
+    try {
+      try (
+        InputStream source = new FileInputStream(EXTENDED_GTFS_FILE);
+        InputStream stored = GtfsFileUtils.recompressToInputStream(
+          source,
+          "test",
+          ZipCompression.of(ZipCompression.STORED)
+        )
+      ) {
+        FileUtils.copyInputStreamToFile(stored, recompressed);
+      }
+      assertSameEntries(new File(EXTENDED_GTFS_FILE), recompressed);
+      assertThat(ZipFileUtils.listFilesInZip(recompressed))
+        .allMatch(zipEntry -> zipEntry.getMethod() == ZipEntry.STORED);
+    } finally {
+      FileUtils.deleteQuietly(recompressed);
+    }
+  }
+
+  private static File createGtfsFile(
+    File gtfsFile,
+    Map<String, String> entries
+  ) throws IOException {
+    try (
+      ZipOutputStream zipOutputStream = new ZipOutputStream(
+        new FileOutputStream(gtfsFile)
+      )
+    ) {
+      for (Map.Entry<String, String> entry : entries.entrySet()) {
+        zipOutputStream.putNextEntry(new ZipEntry(entry.getKey()));
+        zipOutputStream.write(
+          entry.getValue().getBytes(StandardCharsets.UTF_8)
+        );
+        zipOutputStream.closeEntry();
+      }
+    }
+    return gtfsFile;
+  }
+
+  private static String entryContent(File gtfsFile, String entryName) {
+    return new String(
+      ZipFileUtils.extractFileFromZipFile(gtfsFile, entryName),
+      StandardCharsets.UTF_8
+    );
+  }
+
+  private static String withoutHeader(File gtfsFile, String entryName) {
+    String content = new String(
+      ZipFileUtils.extractFileFromZipFile(gtfsFile, entryName),
+      StandardCharsets.UTF_8
+    );
+    return content.substring(content.indexOf('\n') + 1);
+  }
+
+  private static void assertSameEntries(File expected, File actual) {
+    assertThat(ZipFileUtils.listFilesInZip(actual))
+      .extracting(ZipEntry::getName)
+      .containsExactlyInAnyOrderElementsOf(
+        ZipFileUtils
+          .listFilesInZip(expected)
+          .stream()
+          .map(ZipEntry::getName)
+          .toList()
+      );
+    for (ZipEntry zipEntry : ZipFileUtils.listFilesInZip(expected)) {
+      assertThat(
+        ZipFileUtils.extractFileFromZipFile(actual, zipEntry.getName())
+      )
+        .as("Entry %s", zipEntry.getName())
+        .isEqualTo(
+          ZipFileUtils.extractFileFromZipFile(expected, zipEntry.getName())
+        );
+    }
+  }
 }
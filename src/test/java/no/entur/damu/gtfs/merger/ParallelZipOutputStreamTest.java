@@ -0,0 +1,281 @@
+package no.entur.damu.gtfs.merger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParallelZipOutputStreamTest {
+
+  private static final ZipCompression COMPRESSION = new ZipCompression(
+    6,
+    Map.of("stored.txt", ZipCompression.STORED, "fast.txt", 1)
+  );
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void entriesCompressedInlineShouldBeReadable() throws IOException {
+    Path zipFile = tempDir.resolve("inline.zip");
+    Map<String, byte[]> entries = testEntries();
+    writeZip(zipFile, entries, null, 1);
+    assertEntries(zipFile, entries);
+  }
+
+  @Test
+  void entriesCompressedInParallelShouldBeReadable() throws IOException {
+    Path zipFile = tempDir.resolve("parallel.zip");
+    Map<String, byte[]> entries = testEntries();
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      writeZip(zipFile, entries, executorService, 4);
+    } finally {
+      executorService.shutdownNow();
+    }
+    assertEntries(zipFile, entries);
+  }
+
+  @Test
+  void parallelCompressionShouldCompressAsInlineCompression()
+    throws IOException {
+    Path inlineZipFile = tempDir.resolve("inline.zip");
+    Path parallelZipFile = tempDir.resolve("parallel.zip");
+    Map<String, byte[]> entries = Map.of("large.txt", csv(3_000_000));
+    writeZip(inlineZipFile, entries, null, 1);
+    ExecutorService executorService = Executors.newFixedThreadPool(4);
+    try {
+      writeZip(parallelZipFile, entries, executorService, 4);
+    } finally {
+      executorService.shutdownNow();
+    }
+    try (
+      ZipFile inline = new ZipFile(inlineZipFile.toFile());
+      ZipFile parallel = new ZipFile(parallelZipFile.toFile())
+    ) {
+      assertThat(parallel.getEntry("large.txt").getCompressedSize())
+        .isEqualTo(inline.getEntry("large.txt").getCompressedSize());
+    }
+  }
+
+  @Test
+  void storedEntryShouldNotBeCompressed() throws IOException {
+    Path zipFile = tempDir.resolve("stored.zip");
+    Map<String, byte[]> entries = Map.of("stored.txt", csv(100_000));
+    writeZip(zipFile, entries, null, 1);
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      assertThat(zip.getEntry("stored.txt").getCompressedSize())
+        .isEqualTo(100_000);
+    }
+    assertEntries(zipFile, entries);
+  }
+
+  @Test
+  void compressionMetricsShouldBeRecorded() throws IOException {
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    Metrics.addRegistry(meterRegistry);
+    try {
+      Path zipFile = tempDir.resolve("metrics.zip");
+      writeZip(zipFile, Map.of("large.txt", csv(3_000_000)), null, 1);
+      assertThat(
+        meterRegistry
+          .get(ParallelZipOutputStream.METRIC_BYTES_IN)
+          .tag(ParallelZipOutputStream.METRIC_OUTPUT_TAG, "test")
+          .counter()
+          .count()
+      )
+        .isEqualTo(3_000_000);
+      assertThat(
+        meterRegistry
+          .get(ParallelZipOutputStream.METRIC_BYTES_OUT)
+          .tag(ParallelZipOutputStream.METRIC_OUTPUT_TAG, "test")
+          .counter()
+          .count()
+      )
+        .isEqualTo(compressedSize(zipFile, "large.txt"));
+      assertThat(
+        meterRegistry
+          .get(ParallelZipOutputStream.METRIC_COMPRESSION_TIME)
+          .tag(ParallelZipOutputStream.METRIC_OUTPUT_TAG, "test")
+          .timer()
+          .count()
+      )
+        .isEqualTo(1);
+    } finally {
+      Metrics.removeRegistry(meterRegistry);
+    }
+  }
+
+  @Test
+  void duplicateEntryShouldFail() throws IOException {
+    try (
+      ParallelZipOutputStream zipOutputStream = new ParallelZipOutputStream(
+        tempDir.resolve("duplicate.zip"),
+        "test",
+        ZipCompression.DEFAULT,
+        null,
+        1
+      )
+    ) {
+      zipOutputStream.putNextEntry("stops.txt");
+      assertThrows(
+        ZipException.class,
+        () -> zipOutputStream.putNextEntry("stops.txt")
+      );
+    }
+  }
+
+  @Test
+  void dosTime() {
+    int dosTime = ParallelZipOutputStream.dosTime(
+      LocalDateTime.of(2024, 5, 17, 13, 45, 31)
+    );
+    assertThat(dosTime >>> 25).isEqualTo(2024 - 1980);
+    assertThat((dosTime >> 21) & 0xf).isEqualTo(5);
+    assertThat((dosTime >> 16) & 0x1f).isEqualTo(17);
+    assertThat((dosTime >> 11) & 0x1f).isEqualTo(13);
+    assertThat((dosTime >> 5) & 0x3f).isEqualTo(45);
+    assertThat(dosTime & 0x1f).isEqualTo(15);
+  }
+
+  private static Map<String, byte[]> testEntries() {
+    return Map.of(
+      "empty.txt",
+      new byte[0],
+      "small.txt",
+      "stop_id,stop_name\r\n1,Oslo S\r\n".getBytes(StandardCharsets.UTF_8),
+      "block.txt",
+      csv(ParallelZipOutputStream.BLOCK_SIZE),
+      "large.txt",
+      csv(3 * ParallelZipOutputStream.BLOCK_SIZE + 12345),
+      "fast.txt",
+      csv(ParallelZipOutputStream.BLOCK_SIZE + 1),
+      "stored.txt",
+      random(2 * ParallelZipOutputStream.BLOCK_SIZE + 7)
+    );
+  }
+
+  private static void writeZip(
+    Path zipFile,
+    Map<String, byte[]> entries,
+    ExecutorService executorService,
+    int parallelism
+  ) throws IOException {
+    try (
+      ParallelZipOutputStream zipOutputStream = new ParallelZipOutputStream(
+        zipFile,
+        "test",
+        COMPRESSION,
+        executorService,
+        parallelism
+      )
+    ) {
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        zipOutputStream.putNextEntry(entry.getKey());
+        byte[] data = entry.getValue();
+        // write in uneven chunks to cross block boundaries within a write
+        int offset = 0;
+        while (offset < data.length) {
+          int length = Math.min(data.length - offset, 70001);
+          zipOutputStream.write(data, offset, length);
+          offset += length;
+        }
+        zipOutputStream.closeEntry();
+      }
+    }
+  }
+
+  private static void assertEntries(Path zipFile, Map<String, byte[]> entries)
+    throws IOException {
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      assertThat(zip.size()).isEqualTo(entries.size());
+      for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+        ZipEntry zipEntry = zip.getEntry(entry.getKey());
+        assertThat(zipEntry.getMethod())
+          .isEqualTo(
+            "stored.txt".equals(entry.getKey())
+              ? ZipEntry.STORED
+              : ZipEntry.DEFLATED
+          );
+        assertThat(zipEntry.getSize()).isEqualTo(entry.getValue().length);
+        CRC32 crc = new CRC32();
+        crc.update(entry.getValue());
+        assertThat(zipEntry.getCrc()).isEqualTo(crc.getValue());
+        try (InputStream inputStream = zip.getInputStream(zipEntry)) {
+          assertThat(inputStream.readAllBytes())
+            .as("Entry %s", entry.getKey())
+            .isEqualTo(entry.getValue());
+        }
+      }
+    }
+    // the local headers are complete: the archive can also be read sequentially
+    try (
+      ZipInputStream zipInputStream = new ZipInputStream(
+        Files.newInputStream(zipFile)
+      )
+    ) {
+      int count = 0;
+      ZipEntry zipEntry = zipInputStream.getNextEntry();
+      while (zipEntry != null) {
+        assertThat(zipInputStream.readAllBytes())
+          .as("Entry %s", zipEntry.getName())
+          .isEqualTo(entries.get(zipEntry.getName()));
+        count++;
+        zipEntry = zipInputStream.getNextEntry();
+      }
+      assertThat(count).isEqualTo(entries.size());
+    }
+  }
+
+  private static long compressedSize(Path zipFile, String entryName)
+    throws IOException {
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      return zip.getEntry(entryName).getCompressedSize();
+    }
+  }
+
+  private static byte[] csv(int size) {
+    Random random = new Random(size);
+    ByteArrayOutputStream csv = new ByteArrayOutputStream(size + 64);
+    int row = 0;
+    while (csv.size() < size) {
+      String line =
+        "NSR:Quay:" +
+        random.nextInt(100000) +
+        ",RUT:ServiceJourney:" +
+        (row++ / 20) +
+        ",08:" +
+        (10 + random.nextInt(50)) +
+        ":00\r\n";
+      csv.writeBytes(line.getBytes(StandardCharsets.UTF_8));
+    }
+    byte[] bytes = new byte[size];
+    System.arraycopy(csv.toByteArray(), 0, bytes, 0, size);
+    return bytes;
+  }
+
+  private static byte[] random(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,85 @@
+package no.entur.damu.gtfs.validator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class GtfsValidationExecutorTest {
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  void testUncompressedSizeFromCentralDirectoryMatchesInflatedSize()
+    throws IOException {
+    File gtfsFile = copyTestGtfsFile();
+
+    long uncompressedSize = GtfsValidationExecutor.uncompressedSize(gtfsFile);
+
+    assertTrue(uncompressedSize > gtfsFile.length());
+    assertEquals(
+      GtfsValidationExecutor.uncompressedSize(
+        Files.readAllBytes(gtfsFile.toPath())
+      ),
+      uncompressedSize
+    );
+  }
+
+  @Test
+  void testValidationLargerThanTheMemoryBudgetIsAdmitted() throws Exception {
+    GtfsValidationExecutor gtfsValidationExecutor = new GtfsValidationExecutor(
+      1,
+      0.0,
+      1_000_000,
+      0
+    );
+    assertEquals(1, gtfsValidationExecutor.memoryBudgetMegabytes());
+
+    try (
+      InputStream validationReports = gtfsValidationExecutor.validate(
+        "rb_avi",
+        copyTestGtfsFile()
+      );
+      ZipInputStream zis = new ZipInputStream(validationReports)
+    ) {
+      ZipEntry entry = zis.getNextEntry();
+      assertNotNull(entry, "Validation reports should not be empty");
+    }
+  }
+
+  @Test
+  void testMemoryReservedForTheSharedDataCacheIsDeductedFromTheBudget() {
+    long reservedMemory = 64 * 1024 * 1024;
+
+    int budget = new GtfsValidationExecutor(1, 1.0, 8, 0)
+      .memoryBudgetMegabytes();
+    int budgetWithReservation = new GtfsValidationExecutor(
+      1,
+      1.0,
+      8,
+      reservedMemory
+    )
+      .memoryBudgetMegabytes();
+
+    assertEquals(64, budget - budgetWithReservation);
+  }
+
+  private File copyTestGtfsFile() throws IOException {
+    Path gtfsFile = tempDir.resolve("rb_avi-aggregated-gtfs.zip");
+    try (
+      InputStream gtfsInputStream = getClass()
+        .getResourceAsStream("/rb_avi-aggregated-gtfs.zip")
+    ) {
+      Files.copy(gtfsInputStream, gtfsFile);
+    }
+    return gtfsFile.toFile();
+  }
+}
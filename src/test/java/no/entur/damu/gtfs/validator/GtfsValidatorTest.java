@@ -2,15 +2,38 @@ package no.entur.damu.gtfs.validator;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 class GtfsValidatorTest {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    GtfsValidatorTest.class
+  );
+
+  @TempDir
+  Path tempDir;
+
   @Test
   void testValidateWithValidGtfsFile() throws IOException {
     try (
@@ -80,4 +103,123 @@ class GtfsValidatorTest {
       "Validation should throw an exception for null input"
     );
   }
+
+  @Test
+  void testValidateGtfsFileInPlace() throws IOException {
+    Path gtfsFile = copyTestGtfsFile();
+
+    try (
+      InputStream validationResult = GtfsValidator.validate("rb_avi", gtfsFile)
+    ) {
+      assertEquals(
+        Set.of("report.html", "report.json", "system_errors.json"),
+        reportNames(validationResult)
+      );
+    }
+    assertTrue(Files.exists(gtfsFile), "The GTFS file should not be consumed");
+  }
+
+  @Test
+  void testConcurrentValidationsShouldYieldSameNoticesAsSequentialValidation()
+    throws Exception {
+    Path gtfsFile = copyTestGtfsFile();
+    JsonElement expectedNotices = notices(
+      GtfsValidator.validate("rb_avi", gtfsFile)
+    );
+
+    int concurrency = 3;
+    ExecutorService executorService = Executors.newFixedThreadPool(
+      concurrency
+    );
+    try {
+      List<Future<JsonElement>> notices = new ArrayList<>();
+      for (int i = 0; i < concurrency; i++) {
+        notices.add(
+          executorService.submit(() ->
+            notices(GtfsValidator.validate("rb_avi", gtfsFile))
+          )
+        );
+      }
+      for (Future<JsonElement> validationNotices : notices) {
+        assertEquals(expectedNotices, validationNotices.get());
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test
+  void testWarmUp() {
+    assertDoesNotThrow(GtfsValidator::warmUp);
+  }
+
+  /**
+   * Compare the latency of the first validation in the JVM with the latency of the following validations.
+   * Run with -Ddamu.benchmark=true, in a fresh JVM for the first call to be cold.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "damu.benchmark", matches = "true")
+  void benchmark_firstVersusWarmValidation() throws IOException {
+    Path gtfsFile = copyTestGtfsFile();
+
+    long start = System.nanoTime();
+    GtfsValidator.validate("rb_avi", gtfsFile).close();
+    long firstNanos = System.nanoTime() - start;
+
+    int iterations = 5;
+    long warmNanos = 0;
+    for (int i = 0; i < iterations; i++) {
+      start = System.nanoTime();
+      GtfsValidator.validate("rb_avi", gtfsFile).close();
+      warmNanos += System.nanoTime() - start;
+    }
+
+    LOGGER.info(
+      "Validated GTFS dataset: first call {} ms, warm calls {} ms on average",
+      firstNanos / 1_000_000,
+      warmNanos / iterations / 1_000_000
+    );
+  }
+
+  private Path copyTestGtfsFile() throws IOException {
+    Path gtfsFile = tempDir.resolve("rb_avi-aggregated-gtfs.zip");
+    try (
+      InputStream gtfsInputStream = getClass()
+        .getResourceAsStream("/rb_avi-aggregated-gtfs.zip")
+    ) {
+      Files.copy(gtfsInputStream, gtfsFile);
+    }
+    return gtfsFile;
+  }
+
+  /**
+   * @return the notices of the JSON validation report. The summary is left out, since it holds the validation time.
+   */
+  private static JsonElement notices(InputStream validationResult)
+    throws IOException {
+    try (ZipInputStream zis = new ZipInputStream(validationResult)) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        if (entry.getName().equals("report.json")) {
+          return JsonParser
+            .parseString(new String(zis.readAllBytes(), StandardCharsets.UTF_8))
+            .getAsJsonObject()
+            .get("notices");
+        }
+      }
+    }
+    throw new AssertionError("Missing report.json in the validation reports");
+  }
+
+  private static Set<String> reportNames(InputStream validationResult)
+    throws IOException {
+    Set<String> reportNames = new HashSet<>();
+    try (ZipInputStream zis = new ZipInputStream(validationResult)) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        reportNames.add(entry.getName());
+      }
+    }
+    return reportNames;
+  }
 }
@@ -18,14 +18,20 @@
 
 package no.entur.damu.netex;
 
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Marshaller;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.IOUtils;
@@ -34,6 +40,8 @@ import org.entur.netex.gtfs.export.stop.DefaultStopAreaRepositoryFactory;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import org.rutebanken.netex.model.ObjectFactory;
+import org.rutebanken.netex.model.PublicationDeliveryStructure;
 import org.zeroturnaround.zip.ZipUtil;
 
 /**
@@ -75,6 +83,190 @@ class EnturGtfsExportTest {
     IOUtils.closeQuietly(exportedGtfs);
   }
 
+  @Test
+  void testParallelParsingProducesTheSameExport(@TempDir Path tempDir)
+    throws IOException {
+    DefaultStopAreaRepositoryFactory factory =
+      new DefaultStopAreaRepositoryFactory();
+    factory.refreshStopAreaRepository(
+      getClass().getResourceAsStream("/RailStations_latest.zip")
+    );
+
+    File sequentialGtfsFile = tempDir.resolve("sequential-gtfs.zip").toFile();
+    File parallelGtfsFile = tempDir.resolve("parallel-gtfs.zip").toFile();
+    for (File gtfsFile : new File[] { sequentialGtfsFile, parallelGtfsFile }) {
+      GtfsExporter gtfsExport = new EnturGtfsExporter(
+        "FLB",
+        factory.getStopAreaRepository(),
+        false,
+        gtfsFile == parallelGtfsFile ? 4 : 1
+      );
+      try (
+        InputStream netexTimetableDataset = getClass()
+          .getResourceAsStream("/rb_flb-aggregated-netex.zip");
+        InputStream exportedGtfs = gtfsExport.convertTimetablesToGtfs(
+          netexTimetableDataset
+        )
+      ) {
+        java.nio.file.Files.copy(
+          exportedGtfs,
+          gtfsFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING
+        );
+      }
+    }
+
+    for (String entryName : new String[] {
+      "agency.txt",
+      "routes.txt",
+      "trips.txt",
+      "stop_times.txt",
+      "calendar_dates.txt",
+    }) {
+      Assertions.assertEquals(
+        ZipUtil.containsEntry(sequentialGtfsFile, entryName),
+        ZipUtil.containsEntry(parallelGtfsFile, entryName)
+      );
+      if (ZipUtil.containsEntry(sequentialGtfsFile, entryName)) {
+        Assertions.assertArrayEquals(
+          ZipUtil.unpackEntry(sequentialGtfsFile, entryName),
+          ZipUtil.unpackEntry(parallelGtfsFile, entryName),
+          entryName
+        );
+      }
+    }
+  }
+
+  @Test
+  void testCachedSharedDataIsNotModifiedByTheConversion(@TempDir Path tempDir)
+    throws IOException, JAXBException {
+    DefaultStopAreaRepositoryFactory factory =
+      new DefaultStopAreaRepositoryFactory();
+    factory.refreshStopAreaRepository(
+      getClass().getResourceAsStream("/RailStations_latest.zip")
+    );
+    NetexDocumentCache sharedDataCache = new NetexDocumentCache(
+      Long.MAX_VALUE,
+      1
+    );
+    Marshaller marshaller = JAXBContext
+      .newInstance(PublicationDeliveryStructure.class)
+      .createMarshaller();
+
+    File uncachedGtfsFile = tempDir.resolve("uncached-gtfs.zip").toFile();
+    File firstGtfsFile = tempDir.resolve("first-gtfs.zip").toFile();
+    File secondGtfsFile = tempDir.resolve("second-gtfs.zip").toFile();
+    exportFlb(factory, null, uncachedGtfsFile);
+    exportFlb(factory, sharedDataCache, firstGtfsFile);
+    List<String> cachedDocuments = marshal(marshaller, sharedDataCache);
+    Assertions.assertFalse(cachedDocuments.isEmpty());
+    // the second conversion indexes the documents cached by the first one
+    exportFlb(factory, sharedDataCache, secondGtfsFile);
+
+    Assertions.assertEquals(
+      cachedDocuments,
+      marshal(marshaller, sharedDataCache)
+    );
+    for (String entryName : new String[] {
+      "agency.txt",
+      "routes.txt",
+      "trips.txt",
+      "stop_times.txt",
+      "calendar_dates.txt",
+    }) {
+      if (ZipUtil.containsEntry(uncachedGtfsFile, entryName)) {
+        Assertions.assertArrayEquals(
+          ZipUtil.unpackEntry(uncachedGtfsFile, entryName),
+          ZipUtil.unpackEntry(secondGtfsFile, entryName),
+          entryName
+        );
+      }
+    }
+  }
+
+  @Test
+  void testConversionPhasesAreMeasured() throws IOException {
+    DefaultStopAreaRepositoryFactory factory =
+      new DefaultStopAreaRepositoryFactory();
+    factory.refreshStopAreaRepository(
+      getClass().getResourceAsStream("/RailStations_latest.zip")
+    );
+    EnturGtfsExporter gtfsExport = new EnturGtfsExporter(
+      "FLB",
+      factory.getStopAreaRepository()
+    );
+
+    try (
+      InputStream netexTimetableDataset = getClass()
+        .getResourceAsStream("/rb_flb-aggregated-netex.zip");
+      InputStream exportedGtfs = gtfsExport.convertTimetablesToGtfs(
+        netexTimetableDataset
+      )
+    ) {
+      Assertions.assertNotNull(exportedGtfs);
+    }
+
+    NetexConversionMetrics conversionMetrics =
+      gtfsExport.getConversionMetrics();
+    Assertions.assertTrue(
+      conversionMetrics.getPhaseNanos(NetexConversionMetrics.PHASE_LOAD) > 0
+    );
+    Assertions.assertTrue(
+      conversionMetrics.getPhaseNanos(NetexConversionMetrics.PHASE_CONVERT) > 0
+    );
+    Assertions.assertTrue(
+      conversionMetrics.toString().contains("entries parsed"),
+      conversionMetrics.toString()
+    );
+  }
+
+  private void exportFlb(
+    DefaultStopAreaRepositoryFactory factory,
+    NetexDocumentCache sharedDataCache,
+    File gtfsFile
+  ) throws IOException {
+    GtfsExporter gtfsExport = new EnturGtfsExporter(
+      "FLB",
+      factory.getStopAreaRepository(),
+      false,
+      4,
+      sharedDataCache
+    );
+    try (
+      InputStream netexTimetableDataset = getClass()
+        .getResourceAsStream("/rb_flb-aggregated-netex.zip");
+      InputStream exportedGtfs = gtfsExport.convertTimetablesToGtfs(
+        netexTimetableDataset
+      )
+    ) {
+      java.nio.file.Files.copy(
+        exportedGtfs,
+        gtfsFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING
+      );
+    }
+  }
+
+  /**
+   * Serialize the cached documents, so that any change made to their entities shows in the XML.
+   */
+  private static List<String> marshal(
+    Marshaller marshaller,
+    NetexDocumentCache sharedDataCache
+  ) throws JAXBException {
+    List<String> documents = new ArrayList<>();
+    for (PublicationDeliveryStructure document : sharedDataCache.documents()) {
+      StringWriter xml = new StringWriter();
+      marshaller.marshal(
+        new ObjectFactory().createPublicationDelivery(document),
+        xml
+      );
+      documents.add(xml.toString());
+    }
+    // sorted, since the lookups change the order of the cached documents
+    return documents.stream().sorted().toList();
+  }
+
   private void checkAgency(File gtfsFile, String codespace) throws IOException {
     Iterable<CSVRecord> csvRecords = getCsvRecords(gtfsFile, "agency.txt");
     Assertions.assertTrue(csvRecords.iterator().hasNext());
@@ -0,0 +1,230 @@
+package no.entur.damu.netex;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.entur.netex.gtfs.export.loader.NetexDatasetLoader;
+import org.entur.netex.gtfs.export.repository.DefaultNetexDatasetRepository;
+import org.entur.netex.gtfs.export.repository.NetexDatasetRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+class EnturNetexDatasetLoaderTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(
+    EnturNetexDatasetLoaderTest.class
+  );
+
+  private static final String NETEX_DATASET = "/rb_avi-aggregated-netex.zip";
+
+  @Test
+  void streamedLoadShouldIndexTheSameEntitiesAsBufferedLoad()
+    throws IOException {
+    NetexDatasetRepository buffered = load(new BufferedNetexDatasetLoader());
+
+    for (int parsingParallelism : new int[] { 1, 4 }) {
+      NetexDatasetRepository streamed = load(
+        new EnturNetexDatasetLoader(parsingParallelism)
+      );
+
+      assertThat(streamed.getIndex().getLineIndex().getAll())
+        .isNotEmpty()
+        .hasSameSizeAs(buffered.getIndex().getLineIndex().getAll());
+      assertThat(streamed.getIndex().getServiceJourneyIndex().getAll())
+        .hasSameSizeAs(buffered.getIndex().getServiceJourneyIndex().getAll());
+      assertThat(streamed.getIndex().getAuthorityIndex().getAll())
+        .hasSameSizeAs(buffered.getIndex().getAuthorityIndex().getAll());
+    }
+  }
+
+  @Test
+  void randomAccessLoadShouldIndexTheSameEntitiesAsStreamedLoad(
+    @TempDir Path tempDir
+  ) throws IOException {
+    Path netexDatasetFile = tempDir.resolve("netex.zip");
+    try (
+      InputStream netexDataset = getClass().getResourceAsStream(NETEX_DATASET)
+    ) {
+      Files.copy(netexDataset, netexDatasetFile);
+    }
+    NetexDatasetRepository streamed = load(new EnturNetexDatasetLoader());
+
+    for (int parsingParallelism : new int[] { 1, 4 }) {
+      NetexDatasetRepository randomAccess = new DefaultNetexDatasetRepository();
+      try (
+        InputStream netexDataset = new NetexDatasetFileInputStream(
+          netexDatasetFile.toFile()
+        )
+      ) {
+        new EnturNetexDatasetLoader(parsingParallelism)
+          .load(netexDataset, randomAccess);
+      }
+
+      assertThat(randomAccess.getIndex().getLineIndex().getAll())
+        .isNotEmpty()
+        .hasSameSizeAs(streamed.getIndex().getLineIndex().getAll());
+      assertThat(randomAccess.getIndex().getServiceJourneyIndex().getAll())
+        .hasSameSizeAs(streamed.getIndex().getServiceJourneyIndex().getAll());
+    }
+  }
+
+  @Test
+  void cachedSharedDataShouldIndexTheSameEntitiesAsUncachedSharedData()
+    throws IOException {
+    NetexDocumentCache sharedDataCache = new NetexDocumentCache(
+      Long.MAX_VALUE,
+      1
+    );
+    NetexDatasetRepository uncached = load(new EnturNetexDatasetLoader());
+
+    for (int parsingParallelism : new int[] { 1, 4, 1 }) {
+      NetexDatasetRepository cached = load(
+        new EnturNetexDatasetLoader(parsingParallelism, sharedDataCache)
+      );
+
+      assertThat(cached.getIndex().getLineIndex().getAll())
+        .isNotEmpty()
+        .hasSameSizeAs(uncached.getIndex().getLineIndex().getAll());
+      assertThat(cached.getIndex().getAuthorityIndex().getAll())
+        .hasSameSizeAs(uncached.getIndex().getAuthorityIndex().getAll());
+      assertThat(cached.getIndex().getDayTypeIndex().getAll())
+        .hasSameSizeAs(uncached.getIndex().getDayTypeIndex().getAll());
+    }
+  }
+
+  /**
+   * Compare the peak heap usage of the streamed load with the buffered load it replaces, in sequential mode and with
+   * the parsing parallelism deployed in production, and with the load of a dataset stored in a local file as
+   * performed by the export.
+   * Run with -Ddamu.benchmark=true.
+   */
+  @Test
+  @EnabledIfSystemProperty(named = "damu.benchmark", matches = "true")
+  void benchmark_peakHeapStreamedVersusBuffered(@TempDir Path tempDir)
+    throws IOException {
+    int deployedParsingParallelism = 4;
+    Path netexDatasetFile = tempDir.resolve("netex.zip");
+    try (
+      InputStream netexDataset = getClass().getResourceAsStream(NETEX_DATASET)
+    ) {
+      Files.copy(netexDataset, netexDatasetFile);
+    }
+    // load once to exclude class loading from the measures
+    load(new EnturNetexDatasetLoader(deployedParsingParallelism));
+
+    long bufferedPeakHeap = peakHeapUsage(() ->
+      load(new BufferedNetexDatasetLoader())
+    );
+    long streamedPeakHeap = peakHeapUsage(() ->
+      load(new EnturNetexDatasetLoader())
+    );
+    long parallelStreamedPeakHeap = peakHeapUsage(() ->
+      load(new EnturNetexDatasetLoader(deployedParsingParallelism))
+    );
+    long parallelFilePeakHeap = peakHeapUsage(() -> {
+      try (
+        InputStream netexDataset = new NetexDatasetFileInputStream(
+          netexDatasetFile.toFile()
+        )
+      ) {
+        new EnturNetexDatasetLoader(deployedParsingParallelism)
+          .load(netexDataset, new DefaultNetexDatasetRepository());
+      }
+    });
+
+    LOGGER.info(
+      "Loaded {}: peak heap buffered {} MB, streamed {} MB, streamed with parallelism {} {} MB, " +
+      "local file with parallelism {} {} MB",
+      NETEX_DATASET,
+      bufferedPeakHeap / (1024 * 1024),
+      streamedPeakHeap / (1024 * 1024),
+      deployedParsingParallelism,
+      parallelStreamedPeakHeap / (1024 * 1024),
+      deployedParsingParallelism,
+      parallelFilePeakHeap / (1024 * 1024)
+    );
+  }
+
+  private NetexDatasetRepository load(NetexDatasetLoader netexDatasetLoader)
+    throws IOException {
+    NetexDatasetRepository netexDatasetRepository =
+      new DefaultNetexDatasetRepository();
+    try (
+      InputStream netexDataset = getClass().getResourceAsStream(NETEX_DATASET)
+    ) {
+      netexDatasetLoader.load(netexDataset, netexDatasetRepository);
+    }
+    return netexDatasetRepository;
+  }
+
+  private static long peakHeapUsage(Load load) throws IOException {
+    System.gc();
+    List<MemoryPoolMXBean> heapPools = ManagementFactory
+      .getMemoryPoolMXBeans()
+      .stream()
+      .filter(pool -> pool.getType() == MemoryType.HEAP)
+      .toList();
+    heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+    load.run();
+    return heapPools
+      .stream()
+      .mapToLong(pool -> pool.getPeakUsage().getUsed())
+      .sum();
+  }
+
+  @FunctionalInterface
+  private interface Load {
+    void run() throws IOException;
+  }
+
+  /**
+   * Load buffering every entry in memory, as performed before the entries were streamed.
+   */
+  private static class BufferedNetexDatasetLoader
+    extends EnturNetexDatasetLoader {
+
+    @Override
+    protected void parseDataset(
+      ZipInputStream zipInputStream,
+      NetexDatasetRepository netexDatasetRepository
+    ) throws IOException {
+      List<byte[]> commonFiles = new ArrayList<>();
+      ZipEntry zipEntry = zipInputStream.getNextEntry();
+      while (zipEntry != null) {
+        byte[] allBytes = zipInputStream.readAllBytes();
+        if (
+          zipEntry.getName().endsWith("_shared_data.xml") &&
+          !zipEntry.getName().endsWith("_flexible_shared_data.xml")
+        ) {
+          commonFiles.add(allBytes);
+        } else {
+          netexParser.parse(
+            new ByteArrayInputStream(allBytes),
+            netexDatasetRepository.getIndex()
+          );
+        }
+        zipEntry = zipInputStream.getNextEntry();
+      }
+      commonFiles.forEach(commonFile ->
+        netexParser.parse(
+          new ByteArrayInputStream(commonFile),
+          netexDatasetRepository.getIndex()
+        )
+      );
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package no.entur.damu.netex;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.rutebanken.netex.model.PublicationDeliveryStructure;
+
+class NetexDocumentCacheTest {
+
+  @Test
+  void keyShouldBeTheDigestAndSizeOfTheContent() throws IOException {
+    NetexDocumentCache.Key key = key("<PublicationDelivery/>");
+
+    assertThat(key).isEqualTo(key("<PublicationDelivery/>"));
+    assertThat(key).isNotEqualTo(key("<PublicationDelivery />"));
+    assertThat(key.size()).isEqualTo(22);
+  }
+
+  @Test
+  void leastRecentlyUsedDocumentsShouldBeEvicted() throws IOException {
+    NetexDocumentCache cache = new NetexDocumentCache(40, 1);
+    NetexDocumentCache.Key first = key("<first>0123456789</first>");
+    NetexDocumentCache.Key second = key("<second/>");
+    NetexDocumentCache.Key third = key("<third/>");
+    PublicationDeliveryStructure firstDocument =
+      new PublicationDeliveryStructure();
+
+    cache.put(first, firstDocument);
+    cache.put(second, new PublicationDeliveryStructure());
+    assertThat(cache.get(second)).isNotNull();
+    assertThat(cache.get(first)).isSameAs(firstDocument);
+
+    cache.put(third, new PublicationDeliveryStructure());
+    assertThat(cache.get(first)).isSameAs(firstDocument);
+    assertThat(cache.get(second)).isNull();
+    assertThat(cache.get(third)).isNotNull();
+  }
+
+  @Test
+  void documentLargerThanTheCacheShouldNotBeCached() throws IOException {
+    NetexDocumentCache cache = new NetexDocumentCache(4, 1);
+    NetexDocumentCache.Key key = key("<PublicationDelivery/>");
+
+    cache.put(key, new PublicationDeliveryStructure());
+
+    assertThat(cache.get(key)).isNull();
+  }
+
+  @Test
+  void cacheShouldBeBoundedByTheEstimatedHeap() throws IOException {
+    NetexDocumentCache cache = new NetexDocumentCache(60, 5);
+    NetexDocumentCache.Key first = key("<first/>");
+    NetexDocumentCache.Key second = key("<second/>");
+
+    cache.put(first, new PublicationDeliveryStructure());
+    assertThat(cache.getCachedHeap()).isEqualTo(40);
+    cache.put(second, new PublicationDeliveryStructure());
+
+    assertThat(cache.get(first)).isNull();
+    assertThat(cache.get(second)).isNotNull();
+    assertThat(cache.getCachedHeap()).isEqualTo(45);
+  }
+
+  private static NetexDocumentCache.Key key(String content)
+    throws IOException {
+    return NetexDocumentCache.key(
+      new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))
+    );
+  }
+}
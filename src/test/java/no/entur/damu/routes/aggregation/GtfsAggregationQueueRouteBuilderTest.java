@@ -1,7 +1,11 @@
 package no.entur.damu.routes.aggregation;
 
 import static no.entur.damu.Constants.*;
+import static org.apache.camel.Exchange.FILE_PARENT;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import no.entur.damu.DamuRouteBuilderIntegrationTestBase;
@@ -24,6 +28,15 @@ public class GtfsAggregationQueueRouteBuilderTest
   @EndpointInject("mock:aggregateGtfsDone")
   private MockEndpoint aggregateGtfsDone;
 
+  @EndpointInject("mock:gtfsFileDownloaded")
+  private MockEndpoint gtfsFileDownloaded;
+
+  @EndpointInject("mock:mergeGtfs")
+  private MockEndpoint mergeGtfs;
+
+  @EndpointInject("mock:cleanUpLocalDirectory")
+  private MockEndpoint cleanUpLocalDirectory;
+
   @Produce(
     "google-pubsub:{{marduk.pubsub.project.id}}:GtfsRouteDispatcherTopic"
   )
@@ -45,7 +58,13 @@ public class GtfsAggregationQueueRouteBuilderTest
       "aggregate-gtfs",
       a -> a.weaveAddLast().to("mock:aggregateGtfsDone")
     );
+    AdviceWith.adviceWith(
+      context,
+      "get-gtfs-file",
+      a -> a.weaveAddLast().to("mock:gtfsFileDownloaded")
+    );
     aggregateGtfsDone.setExpectedMessageCount(1);
+    gtfsFileDownloaded.setExpectedMessageCount(2);
     context.start();
 
     Map<String, String> headers = new HashMap<>();
@@ -57,5 +76,80 @@ public class GtfsAggregationQueueRouteBuilderTest
     sendBodyAndHeadersToPubSub(producerTemplate, "gtfs.zip,gtfs2.zip", headers);
 
     aggregateGtfsDone.assertIsSatisfied();
+    gtfsFileDownloaded.assertIsSatisfied();
+  }
+
+  @Test
+  public void testRouteForGtfsAggregationStopsOnFailedDownload()
+    throws Exception {
+    mardukInMemoryBlobStoreRepository.uploadBlob(
+      "outbound/gtfs/gtfs.zip",
+      getClass().getResourceAsStream("/gtfs.zip")
+    );
+    mardukInMemoryBlobStoreRepository.uploadBlob(
+      "outbound/gtfs/gtfs2.zip",
+      getClass().getResourceAsStream("/gtfs2.zip")
+    );
+
+    AdviceWith.adviceWith(
+      context,
+      "blobstore-download",
+      a ->
+        a
+          .weaveAddFirst()
+          .process(e -> {
+            String fileHandle = e.getIn().getHeader(FILE_HANDLE, String.class);
+            if (fileHandle.endsWith("broken.zip")) {
+              throw new IOException("Download failed");
+            }
+          })
+    );
+    AdviceWith.adviceWith(
+      context,
+      "aggregate-gtfs",
+      a -> a.weaveAddLast().to("mock:aggregateGtfsDone")
+    );
+    AdviceWith.adviceWith(
+      context,
+      "gtfs-export-merge",
+      a -> a.weaveAddFirst().to("mock:mergeGtfs")
+    );
+    AdviceWith.adviceWith(
+      context,
+      "cleanup-local-dir",
+      a -> a.weaveAddLast().to("mock:cleanUpLocalDirectory")
+    );
+    aggregateGtfsDone.setExpectedMessageCount(0);
+    mergeGtfs.setExpectedMessageCount(0);
+    cleanUpLocalDirectory.setExpectedMessageCount(1);
+    // the local directory is cleaned up once, not once per failed download
+    cleanUpLocalDirectory.setAssertPeriod(2000);
+    context.start();
+
+    Map<String, String> headers = new HashMap<>();
+    headers.put(INCLUDE_SHAPES, "true");
+    headers.put(
+      GTFS_ROUTE_DISPATCHER_HEADER_NAME,
+      GTFS_ROUTE_DISPATCHER_AGGREGATION_HEADER_VALUE
+    );
+    sendBodyAndHeadersToPubSub(
+      producerTemplate,
+      "broken.zip,gtfs.zip,gtfs2.zip",
+      headers
+    );
+
+    cleanUpLocalDirectory.assertIsSatisfied();
+    mergeGtfs.assertIsSatisfied();
+    aggregateGtfsDone.assertIsSatisfied();
+    assertFalse(
+      new File(
+        cleanUpLocalDirectory
+          .getReceivedExchanges()
+          .get(0)
+          .getIn()
+          .getHeader(FILE_PARENT, String.class)
+      )
+        .exists()
+    );
   }
 }
@@ -0,0 +1,217 @@
+package no.entur.damu.routes.export;
+
+import static no.entur.damu.Constants.GTFS_ROUTE_DISPATCHER_EXPORT_HEADER_VALUE;
+import static no.entur.damu.Constants.GTFS_ROUTE_DISPATCHER_HEADER_NAME;
+import static no.entur.damu.routes.export.GtfsExportQueueRouteBuilder.METRIC_ASYNC_VALIDATION;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import no.entur.damu.DamuRouteBuilderIntegrationTestBase;
+import no.entur.damu.TestApp;
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.AdviceWith;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(
+  webEnvironment = SpringBootTest.WebEnvironment.NONE,
+  classes = TestApp.class,
+  properties = "damu.gtfs.export.validation.async=true"
+)
+class GtfsExportAsyncValidationTest
+  extends DamuRouteBuilderIntegrationTestBase {
+
+  @Produce(
+    "google-pubsub:{{marduk.pubsub.project.id}}:GtfsRouteDispatcherTopic"
+  )
+  protected ProducerTemplate gtfsRouteDispatcher;
+
+  @EndpointInject("mock:validateGtfsDataset")
+  private MockEndpoint validateGtfsDataset;
+
+  @EndpointInject("mock:uploadValidationReports")
+  private MockEndpoint uploadValidationReports;
+
+  @EndpointInject("mock:uploadGtfsDataset")
+  private MockEndpoint uploadGtfsDataset;
+
+  @EndpointInject("mock:notifyMarduk")
+  private MockEndpoint notifyMarduk;
+
+  private SimpleMeterRegistry meterRegistry;
+
+  @BeforeEach
+  void addMeterRegistry() {
+    meterRegistry = new SimpleMeterRegistry();
+    Metrics.addRegistry(meterRegistry);
+  }
+
+  @AfterEach
+  void removeMeterRegistry() {
+    Metrics.removeRegistry(meterRegistry);
+  }
+
+  @Test
+  void testExportIsReportedBeforeTheValidationCompletes() throws Exception {
+    adviceExportBranches();
+    // the validation waits for the export to be reported, which would never happen if it ran in the export thread
+    CountDownLatch exportReported = new CountDownLatch(1);
+    AtomicBoolean validatedAfterExportReported = new AtomicBoolean();
+    notifyMarduk.whenExchangeReceived(
+      2,
+      exchange -> exportReported.countDown()
+    );
+    validateGtfsDataset.whenAnyExchangeReceived(exchange ->
+      validatedAfterExportReported.set(
+        exportReported.await(10, TimeUnit.SECONDS)
+      )
+    );
+    context.start();
+
+    notifyMarduk.expectedBodiesReceived("started", "ok");
+    validateGtfsDataset.expectedMessageCount(1);
+    uploadValidationReports.expectedMessageCount(1);
+    uploadGtfsDataset.expectedMessageCount(1);
+
+    exportGtfs();
+
+    MockEndpoint.assertIsSatisfied(
+      notifyMarduk,
+      validateGtfsDataset,
+      uploadValidationReports,
+      uploadGtfsDataset
+    );
+    assertTrue(validatedAfterExportReported.get());
+    assertEquals(1, awaitAsyncValidations("ok"));
+    assertEquals(0, asyncValidations("failed"));
+  }
+
+  @Test
+  void testFailedValidationDoesNotFailTheExport() throws Exception {
+    adviceExportBranches();
+    validateGtfsDataset.whenAnyExchangeReceived(exchange -> {
+      throw new IllegalStateException("Validation failed");
+    });
+    context.start();
+
+    notifyMarduk.expectedBodiesReceived("started", "ok");
+    notifyMarduk.setAssertPeriod(2000);
+    validateGtfsDataset.expectedMessageCount(1);
+    uploadValidationReports.expectedMessageCount(0);
+    uploadGtfsDataset.expectedMessageCount(1);
+
+    exportGtfs();
+
+    MockEndpoint.assertIsSatisfied(
+      notifyMarduk,
+      validateGtfsDataset,
+      uploadValidationReports,
+      uploadGtfsDataset
+    );
+    assertEquals(1, awaitAsyncValidations("failed"));
+    assertEquals(0, asyncValidations("ok"));
+  }
+
+  /**
+   * Replace the conversion with a prepared GTFS dataset and the endpoints of the export branches and of the status
+   * notification with mock endpoints.
+   */
+  private void adviceExportBranches() throws Exception {
+    mardukInMemoryBlobStoreRepository.uploadBlob(
+      "outbound/netex/rb_avi-aggregated-netex.zip",
+      getClass().getResourceAsStream("/rb_avi-aggregated-netex.zip")
+    );
+    byte[] gtfsDataset;
+    try (
+      InputStream gtfs = Objects.requireNonNull(
+        getClass().getResourceAsStream("/rb_avi-aggregated-gtfs.zip")
+      )
+    ) {
+      gtfsDataset = gtfs.readAllBytes();
+    }
+
+    AdviceWith.adviceWith(
+      context,
+      "gtfs-export-queue",
+      a ->
+        a
+          .weaveByToUri("direct:convertToGtfs")
+          .replace()
+          .process(exchange -> exchange.getIn().setBody(gtfsDataset))
+    );
+    AdviceWith.adviceWith(
+      context,
+      "validate-exported-gtfs",
+      a -> {
+        a
+          .weaveByToUri("direct:validateGtfsDataset")
+          .replace()
+          .to("mock:validateGtfsDataset");
+        a
+          .weaveByToUri("direct:uploadValidationReports")
+          .replace()
+          .to("mock:uploadValidationReports");
+      }
+    );
+    AdviceWith.adviceWith(
+      context,
+      "upload-gtfs-dataset",
+      a ->
+        a
+          .weaveByToUri("direct:uploadMardukBlob")
+          .replace()
+          .to("mock:uploadGtfsDataset")
+    );
+    AdviceWith.adviceWith(
+      context,
+      "notify-marduk",
+      a -> a.weaveByToUri("google-pubsub:*").replace().to("mock:notifyMarduk")
+    );
+  }
+
+  private void exportGtfs() {
+    sendBodyAndHeadersToPubSub(
+      gtfsRouteDispatcher,
+      "rb_avi",
+      Map.of(
+        GTFS_ROUTE_DISPATCHER_HEADER_NAME,
+        GTFS_ROUTE_DISPATCHER_EXPORT_HEADER_VALUE
+      )
+    );
+  }
+
+  /**
+   * Wait for an asynchronous validation with the given result to be counted, since the counter is updated after the
+   * validation endpoints have been called.
+   */
+  private double awaitAsyncValidations(String result)
+    throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (asyncValidations(result) == 0 && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    return asyncValidations(result);
+  }
+
+  private double asyncValidations(String result) {
+    Counter counter = meterRegistry
+      .find(METRIC_ASYNC_VALIDATION)
+      .tag("result", result)
+      .counter();
+    return counter != null ? counter.count() : 0;
+  }
+}
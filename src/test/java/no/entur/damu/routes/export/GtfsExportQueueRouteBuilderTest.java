@@ -1,12 +1,24 @@
 package no.entur.damu.routes.export;
 
 import static no.entur.damu.Constants.DATASET_REFERENTIAL;
+import static no.entur.damu.Constants.GTFS_ROUTE_DISPATCHER_EXPORT_HEADER_VALUE;
+import static no.entur.damu.Constants.GTFS_ROUTE_DISPATCHER_HEADER_NAME;
+import static no.entur.damu.routes.export.GtfsExportQueueRouteBuilder.CONVERTER_VERSION_BUILD_PROPERTY;
 import static no.entur.damu.routes.export.GtfsExportQueueRouteBuilder.TIMETABLE_DATASET_FILE;
+import static no.entur.damu.routes.export.GtfsExportQueueRouteBuilder.conversionCacheKey;
+import static no.entur.damu.routes.export.GtfsExportQueueRouteBuilder.conversionVersion;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.Mockito.*;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
 import no.entur.damu.DamuRouteBuilderIntegrationTestBase;
 import no.entur.damu.TestApp;
 import no.entur.damu.stop.QuayFetcher;
@@ -15,8 +27,10 @@ import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.builder.AdviceWith;
 import org.apache.camel.component.mock.MockEndpoint;
+import org.entur.netex.gtfs.export.exception.GtfsExportException;
 import org.entur.netex.gtfs.export.stop.StopAreaRepositoryFactory;
 import org.junit.jupiter.api.Test;
+import org.springframework.boot.info.BuildProperties;
 import org.rutebanken.netex.model.LocationStructure;
 import org.rutebanken.netex.model.Quay;
 import org.rutebanken.netex.model.SimplePoint_VersionStructure;
@@ -37,6 +51,26 @@ class GtfsExportQueueRouteBuilderTest
   @EndpointInject("mock:gtfsDataset")
   private MockEndpoint gtfsDataset;
 
+  @Produce(
+    "google-pubsub:{{marduk.pubsub.project.id}}:GtfsRouteDispatcherTopic"
+  )
+  protected ProducerTemplate gtfsRouteDispatcher;
+
+  @EndpointInject("mock:validateGtfsDataset")
+  private MockEndpoint validateGtfsDataset;
+
+  @EndpointInject("mock:uploadValidationReports")
+  private MockEndpoint uploadValidationReports;
+
+  @EndpointInject("mock:uploadGtfsDataset")
+  private MockEndpoint uploadGtfsDataset;
+
+  @EndpointInject("mock:cacheConvertedGtfs")
+  private MockEndpoint cacheConvertedGtfs;
+
+  @EndpointInject("mock:notifyMarduk")
+  private MockEndpoint notifyMarduk;
+
   @Autowired
   private StopAreaRepositoryFactory stopAreaRepositoryFactory;
 
@@ -124,6 +158,230 @@ class GtfsExportQueueRouteBuilderTest
     verify(quayFetcher, times(2)).tryFetch(anyString());
   }
 
+  @Test
+  void testExportedGtfsIsValidatedUploadedAndCachedConcurrently()
+    throws Exception {
+    byte[] gtfsDataset = adviceExportBranches();
+    context.start();
+
+    validateGtfsDataset.expectedMessageCount(1);
+    uploadValidationReports.expectedMessageCount(1);
+    uploadGtfsDataset.expectedMessageCount(1);
+    cacheConvertedGtfs.expectedMessageCount(1);
+    notifyMarduk.expectedBodiesReceived("started", "ok");
+
+    exportGtfs();
+
+    MockEndpoint.assertIsSatisfied(
+      validateGtfsDataset,
+      uploadValidationReports,
+      uploadGtfsDataset,
+      cacheConvertedGtfs,
+      notifyMarduk
+    );
+    // each branch reads the whole GTFS dataset
+    assertArrayEquals(gtfsDataset, receivedBody(validateGtfsDataset));
+    assertArrayEquals(gtfsDataset, receivedBody(uploadGtfsDataset));
+    assertArrayEquals(gtfsDataset, receivedBody(cacheConvertedGtfs));
+  }
+
+  @Test
+  void testFailedUploadIsReportedOnce() throws Exception {
+    adviceExportBranches();
+    uploadGtfsDataset.whenAnyExchangeReceived(exchange -> {
+      throw new GtfsExportException("Upload failed");
+    });
+    context.start();
+
+    // the other branches complete, but the export is reported as failed only
+    validateGtfsDataset.expectedMessageCount(1);
+    cacheConvertedGtfs.expectedMessageCount(1);
+    notifyMarduk.expectedBodiesReceived("started", "failed");
+    notifyMarduk.setAssertPeriod(2000);
+
+    exportGtfs();
+
+    MockEndpoint.assertIsSatisfied(
+      validateGtfsDataset,
+      cacheConvertedGtfs,
+      notifyMarduk
+    );
+  }
+
+  @Test
+  void testFailedValidationIsReportedOnce() throws Exception {
+    adviceExportBranches();
+    validateGtfsDataset.whenAnyExchangeReceived(exchange -> {
+      throw new GtfsExportException("Validation failed");
+    });
+    context.start();
+
+    uploadValidationReports.expectedMessageCount(0);
+    uploadGtfsDataset.expectedMessageCount(1);
+    notifyMarduk.expectedBodiesReceived("started", "failed");
+    notifyMarduk.setAssertPeriod(2000);
+
+    exportGtfs();
+
+    MockEndpoint.assertIsSatisfied(
+      uploadValidationReports,
+      uploadGtfsDataset,
+      notifyMarduk
+    );
+  }
+
+  @Test
+  void testConversionCacheKeyDependsOnConversionVersion() throws IOException {
+    String cacheKey = conversionCacheKey(
+      conversionVersion(buildProperties("3.0.4", "1.0.0")),
+      "rb_avi",
+      "1",
+      false,
+      netexDataset()
+    );
+
+    assertEquals(
+      cacheKey,
+      conversionCacheKey(
+        conversionVersion(buildProperties("3.0.4", "1.0.0")),
+        "rb_avi",
+        "1",
+        false,
+        netexDataset()
+      )
+    );
+    assertNotEquals(
+      cacheKey,
+      conversionCacheKey(
+        conversionVersion(buildProperties("3.0.5", "1.0.0")),
+        "rb_avi",
+        "1",
+        false,
+        netexDataset()
+      ),
+      "A different converter version must miss the cache"
+    );
+    assertNotEquals(
+      cacheKey,
+      conversionCacheKey(
+        conversionVersion(buildProperties("3.0.4", "1.0.1")),
+        "rb_avi",
+        "1",
+        false,
+        netexDataset()
+      ),
+      "A different Damu build must miss the cache"
+    );
+  }
+
+  @Test
+  void testConversionVersionIsUnknownWithoutBuildInformation() {
+    assertNull(conversionVersion(null));
+    assertNull(conversionVersion(buildProperties(null, "1.0.0")));
+  }
+
+  private static BuildProperties buildProperties(
+    String converterVersion,
+    String version
+  ) {
+    Properties entries = new Properties();
+    if (converterVersion != null) {
+      entries.setProperty(CONVERTER_VERSION_BUILD_PROPERTY, converterVersion);
+    }
+    entries.setProperty("version", version);
+    return new BuildProperties(entries);
+  }
+
+  private InputStream netexDataset() {
+    return Objects.requireNonNull(
+      getClass().getResourceAsStream("/rb_avi-aggregated-netex.zip")
+    );
+  }
+
+  /**
+   * Replace the conversion with a prepared GTFS dataset and the endpoints of the export branches and of the status
+   * notification with mock endpoints.
+   *
+   * @return the GTFS dataset passed to the branches.
+   */
+  private byte[] adviceExportBranches() throws Exception {
+    mardukInMemoryBlobStoreRepository.uploadBlob(
+      "outbound/netex/rb_avi-aggregated-netex.zip",
+      getClass().getResourceAsStream("/rb_avi-aggregated-netex.zip")
+    );
+    byte[] gtfsDataset;
+    try (
+      InputStream gtfs = Objects.requireNonNull(
+        getClass().getResourceAsStream("/rb_avi-aggregated-gtfs.zip")
+      )
+    ) {
+      gtfsDataset = gtfs.readAllBytes();
+    }
+
+    AdviceWith.adviceWith(
+      context,
+      "gtfs-export-queue",
+      a ->
+        a
+          .weaveByToUri("direct:convertToGtfs")
+          .replace()
+          .process(exchange -> exchange.getIn().setBody(gtfsDataset))
+    );
+    AdviceWith.adviceWith(
+      context,
+      "validate-exported-gtfs",
+      a -> {
+        a
+          .weaveByToUri("direct:validateGtfsDataset")
+          .replace()
+          .to("mock:validateGtfsDataset");
+        a
+          .weaveByToUri("direct:uploadValidationReports")
+          .replace()
+          .to("mock:uploadValidationReports");
+      }
+    );
+    AdviceWith.adviceWith(
+      context,
+      "upload-gtfs-dataset",
+      a ->
+        a
+          .weaveByToUri("direct:uploadMardukBlob")
+          .replace()
+          .to("mock:uploadGtfsDataset")
+    );
+    AdviceWith.adviceWith(
+      context,
+      "cache-converted-gtfs",
+      a -> a.weaveAddLast().to("mock:cacheConvertedGtfs")
+    );
+    AdviceWith.adviceWith(
+      context,
+      "notify-marduk",
+      a -> a.weaveByToUri("google-pubsub:*").replace().to("mock:notifyMarduk")
+    );
+    return gtfsDataset;
+  }
+
+  private void exportGtfs() {
+    sendBodyAndHeadersToPubSub(
+      gtfsRouteDispatcher,
+      "rb_avi",
+      Map.of(
+        GTFS_ROUTE_DISPATCHER_HEADER_NAME,
+        GTFS_ROUTE_DISPATCHER_EXPORT_HEADER_VALUE
+      )
+    );
+  }
+
+  private static byte[] receivedBody(MockEndpoint mockEndpoint) {
+    return mockEndpoint
+      .getReceivedExchanges()
+      .get(0)
+      .getIn()
+      .getBody(byte[].class);
+  }
+
   private void removeAndMockFetchQuayById(String quayId) {
     // Removing the quay with the given id from the repository,
     // to simulate the situation where the quay not exists.
@@ -0,0 +1,116 @@
+package no.entur.damu.routes.file;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PayloadSpoolTest {
+
+  @TempDir
+  Path spoolDirectory;
+
+  @Test
+  void smallPayloadShouldBeKeptInMemory() throws IOException {
+    PayloadSpool payloadSpool = new PayloadSpool(spoolDirectory.toString(), 4);
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+
+    Object payload = payloadSpool.spool(
+      exchange,
+      new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 })
+    );
+
+    assertThat(payload).isEqualTo(new byte[] { 1, 2, 3, 4 });
+    assertThat(spoolDirectory).isEmptyDirectory();
+  }
+
+  @Test
+  void largePayloadShouldBeSpooledUntilTheExchangeCompletes()
+    throws IOException {
+    PayloadSpool payloadSpool = new PayloadSpool(spoolDirectory.toString(), 4);
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+    exchange
+      .getIn()
+      .setBody(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 }));
+
+    payloadSpool.spoolBody(exchange);
+
+    File spoolFile = exchange.getIn().getBody(File.class);
+    assertThat(spoolFile).hasBinaryContent(new byte[] { 1, 2, 3, 4, 5 });
+    for (int i = 0; i < 2; i++) {
+      try (InputStream body = exchange.getIn().getBody(InputStream.class)) {
+        assertThat(body.readAllBytes()).hasSize(5);
+      }
+    }
+
+    exchange
+      .getExchangeExtension()
+      .handoverCompletions()
+      .forEach(synchronization -> synchronization.onComplete(exchange));
+
+    assertThat(spoolFile).doesNotExist();
+  }
+
+  @Test
+  void spooledPayloadShouldNotBeSpooledAgain() throws IOException {
+    PayloadSpool payloadSpool = new PayloadSpool(spoolDirectory.toString(), 4);
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+    exchange
+      .getIn()
+      .setBody(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 }));
+
+    payloadSpool.spoolBody(exchange);
+    File spoolFile = exchange.getIn().getBody(File.class);
+    payloadSpool.spoolBody(exchange);
+
+    assertThat(exchange.getIn().getBody()).isSameAs(spoolFile);
+    assertThat(spoolDirectory.toFile().list()).hasSize(1);
+  }
+
+  @Test
+  void byteArrayPayloadShouldNotBeSpooled() throws IOException {
+    PayloadSpool payloadSpool = new PayloadSpool(spoolDirectory.toString(), 4);
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+    byte[] payload = { 1, 2, 3, 4, 5 };
+    exchange.getIn().setBody(payload);
+
+    payloadSpool.spoolBody(exchange);
+
+    assertThat(exchange.getIn().getBody()).isSameAs(payload);
+    assertThat(spoolDirectory).isEmptyDirectory();
+  }
+
+  @Test
+  void copiedPayloadShouldOutliveTheOriginalExchange() throws IOException {
+    PayloadSpool payloadSpool = new PayloadSpool(spoolDirectory.toString(), 4);
+    CamelContext camelContext = new DefaultCamelContext();
+    Exchange exchange = new DefaultExchange(camelContext);
+    exchange
+      .getIn()
+      .setBody(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5 }));
+    payloadSpool.spoolBody(exchange);
+    File spoolFile = exchange.getIn().getBody(File.class);
+    Exchange copy = new DefaultExchange(camelContext);
+    copy.getIn().setBody(spoolFile);
+
+    payloadSpool.copyBody(copy);
+    exchange
+      .getExchangeExtension()
+      .handoverCompletions()
+      .forEach(synchronization -> synchronization.onComplete(exchange));
+
+    File copiedFile = copy.getIn().getBody(File.class);
+    assertThat(copiedFile).isNotEqualTo(spoolFile);
+    assertThat(spoolFile).doesNotExist();
+    assertThat(copiedFile).hasBinaryContent(new byte[] { 1, 2, 3, 4, 5 });
+  }
+}
@@ -0,0 +1,27 @@
+package no.entur.damu.stop;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class EnturStopAreaRepositoryFactoryTest {
+
+  @Test
+  void stopAreaRepositoryVersionShouldBeTheHashOfTheStopDataset() {
+    EnturStopAreaRepositoryFactory factory = new EnturStopAreaRepositoryFactory(
+      null,
+      null
+    );
+    assertThat(factory.getStopAreaRepositoryVersion()).isNull();
+
+    factory.refreshStopAreaRepository(
+      getClass().getResourceAsStream("/Airports_latest.zip")
+    );
+
+    assertThat(factory.getStopAreaRepositoryVersion())
+      .isEqualTo(
+        "241b305beade41683f03d1467858a52a36fe8b559780356e137c53b631772264"
+      );
+    assertThat(factory.getStopAreaRepository().getAllQuays()).isNotEmpty();
+  }
+}